@@ -0,0 +1,113 @@
+package thjread.annulus;
+
+/**
+ * The forecast for one location, assembled from partial forecast.io responses. Each request
+ * fetches only some blocks (see {@link RequestPlanner}); the rest are carried over from
+ * earlier responses, each with the time it was fetched.
+ *
+ * {@link #get()} returns an object that is never modified afterwards, so it can be handed to
+ * other threads.
+ */
+class CachedForecast {
+    static final int BLOCK_CURRENTLY = 1;
+    static final int BLOCK_MINUTELY = 2;
+    static final int BLOCK_HOURLY = 4;
+    static final int ALL_BLOCKS = BLOCK_CURRENTLY | BLOCK_MINUTELY | BLOCK_HOURLY;
+
+    private WeatherService.WeatherData mData = null;
+    private final double mLatitude;
+    private final double mLongitude;
+    private long mCurrentlyFetchedAt = 0;
+    private long mMinutelyFetchedAt = 0;
+    private long mHourlyFetchedAt = 0;
+
+    CachedForecast(double latitude, double longitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    synchronized WeatherService.WeatherData get() {
+        return mData;
+    }
+
+    /**
+     * Where the forecast is requested for.
+     */
+    double latitude() {
+        return mLatitude;
+    }
+
+    double longitude() {
+        return mLongitude;
+    }
+
+    /**
+     * When a block was last fetched, or 0 if it never was.
+     */
+    synchronized long fetchedAt(int block) {
+        switch (block) {
+            case BLOCK_CURRENTLY:
+                return mCurrentlyFetchedAt;
+            case BLOCK_MINUTELY:
+                return mMinutelyFetchedAt;
+            case BLOCK_HOURLY:
+                return mHourlyFetchedAt;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Puts back a forecast saved earlier, with the times its blocks were fetched.
+     */
+    synchronized void restore(WeatherService.WeatherData data, long currentlyFetchedAt,
+                              long minutelyFetchedAt, long hourlyFetchedAt) {
+        mData = data;
+        mCurrentlyFetchedAt = currentlyFetchedAt;
+        mMinutelyFetchedAt = minutelyFetchedAt;
+        mHourlyFetchedAt = hourlyFetchedAt;
+    }
+
+    synchronized long lastFetchedAt() {
+        return Math.max(mCurrentlyFetchedAt, Math.max(mMinutelyFetchedAt, mHourlyFetchedAt));
+    }
+
+    /**
+     * Merges a response that was asked for the given blocks. A requested block missing from
+     * the response is taken to be absent for this location and cleared.
+     *
+     * Minutely isn't carried over once it is {@link RequestPlanner#MINUTELY_MAX_AGE_MS} old.
+     * The forecast is dated by its currently block, so a minutely series kept across several
+     * refreshes of currently would pass for a fresh one. It is only left unfetched while rain
+     * is implausible, when the hourly forecast says as much.
+     */
+    synchronized WeatherService.WeatherData merge(WeatherService.WeatherData partial, int blocks, long now) {
+        WeatherService.WeatherData old = mData != null ? mData : new WeatherService.WeatherData();
+        WeatherService.WeatherData m = new WeatherService.WeatherData();
+        m.latitude = partial.latitude;
+        m.longitude = partial.longitude;
+        m.timezone = partial.timezone;
+        m.offset = partial.offset;
+        m.flags = partial.flags != null ? partial.flags : old.flags;
+        if ((blocks & BLOCK_CURRENTLY) != 0) {
+            m.currently = partial.currently;
+            mCurrentlyFetchedAt = now;
+        } else {
+            m.currently = old.currently;
+        }
+        if ((blocks & BLOCK_MINUTELY) != 0) {
+            m.minutely = partial.minutely;
+            mMinutelyFetchedAt = now;
+        } else if (now - mMinutelyFetchedAt < RequestPlanner.MINUTELY_MAX_AGE_MS) {
+            m.minutely = old.minutely;
+        }
+        if ((blocks & BLOCK_HOURLY) != 0) {
+            m.hourly = partial.hourly;
+            mHourlyFetchedAt = now;
+        } else {
+            m.hourly = old.hourly;
+        }
+        mData = m;
+        return m;
+    }
+}
@@ -0,0 +1,95 @@
+package thjread.annulus;
+
+import java.util.Random;
+
+/**
+ * Spaces out forecast downloads after failures. Each consecutive failure doubles the wait
+ * before the next attempt, from {@link #BASE_DELAY_MS} up to {@link #MAX_DELAY_MS}, with a
+ * random half of it jittered away so that retries don't line up. After
+ * {@link #FAILURE_THRESHOLD} failures in a row the circuit opens: nothing is attempted until
+ * the wait is over, then a single probe decides whether to close it again or keep it open
+ * for longer. Callers serve cached data whenever {@link #allow} says no.
+ */
+class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_DELAY_MS = 30 * 1000;
+    static final long MAX_DELAY_MS = 30 * 60 * 1000;
+
+    static final int CLOSED = 0;
+    static final int BACKING_OFF = 1;
+    static final int OPEN = 2;
+
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom;
+    private int mFailures = 0;
+    private long mRetryAt = 0;
+    private boolean mProbing = false;
+
+    CircuitBreaker() {
+        this(BASE_DELAY_MS, MAX_DELAY_MS, new Random());
+    }
+
+    CircuitBreaker(long baseDelay, long maxDelay, Random random) {
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRandom = random;
+    }
+
+    /**
+     * Whether a download may start now. Once the circuit is open only one probe is let
+     * through at a time.
+     */
+    synchronized boolean allow(long now) {
+        if (now < mRetryAt) {
+            return false;
+        }
+        if (mFailures >= FAILURE_THRESHOLD) {
+            if (mProbing) {
+                return false;
+            }
+            mProbing = true;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        mFailures = 0;
+        mRetryAt = 0;
+        mProbing = false;
+    }
+
+    /**
+     * Ends an attempt that neither succeeded nor failed, e.g. one cancelled by the caller,
+     * without counting it, so that it doesn't keep the probe.
+     */
+    synchronized void release() {
+        mProbing = false;
+    }
+
+    synchronized void onFailure(long now) {
+        mFailures++;
+        mProbing = false;
+        long delay = mBaseDelay << Math.min(mFailures - 1, 20);
+        delay = Math.min(delay, mMaxDelay);
+        mRetryAt = now + delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    synchronized int state() {
+        if (mFailures >= FAILURE_THRESHOLD) {
+            return OPEN;
+        }
+        return mFailures > 0 ? BACKING_OFF : CLOSED;
+    }
+
+    synchronized int failures() {
+        return mFailures;
+    }
+
+    /**
+     * When the next attempt will be allowed, or 0 if it already is.
+     */
+    synchronized long retryAt() {
+        return mRetryAt;
+    }
+}
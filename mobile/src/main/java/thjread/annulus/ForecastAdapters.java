@@ -0,0 +1,583 @@
+package thjread.annulus;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gson adapters for the {@link WeatherService} model, so that decoding a forecast neither
+ * builds adapters by reflection on first use nor sets each field reflectively. They read
+ * and write the same JSON as Gson's reflective adapters: unknown names are skipped, null
+ * values clear a field and missing ones leave its initial value.
+ *
+ * Generated by ForecastAdapterGenerator in the unit tests, which fail if this file no
+ * longer matches the model. Don't edit it by hand.
+ */
+class ForecastAdapters implements TypeAdapterFactory {
+    static final TypeAdapter<String> STRING = new TypeAdapter<String>() {
+        @Override
+        public void write(JsonWriter out, String value) throws IOException {
+            out.value(value);
+        }
+
+        @Override
+        public String read(JsonReader in) throws IOException {
+            return readString(in);
+        }
+    };
+    static final TypeAdapter<WeatherService.Datum> DATUM = new DatumAdapter();
+    static final TypeAdapter<WeatherService.Minutely> MINUTELY = new MinutelyAdapter();
+    static final TypeAdapter<WeatherService.Hourly> HOURLY = new HourlyAdapter();
+    static final TypeAdapter<WeatherService.Daily> DAILY = new DailyAdapter();
+    static final TypeAdapter<WeatherService.Flags> FLAGS = new FlagsAdapter();
+    static final TypeAdapter<WeatherService.WeatherData> WEATHER_DATA = new WeatherDataAdapter();
+    static final TypeAdapter<List<WeatherService.Datum>> DATUM_LIST = new ListAdapter<>(DATUM);
+    static final TypeAdapter<List<String>> STRING_LIST = new ListAdapter<>(STRING);
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+        if (raw == WeatherService.Datum.class) {
+            return (TypeAdapter<T>) DATUM;
+        }
+        if (raw == WeatherService.Minutely.class) {
+            return (TypeAdapter<T>) MINUTELY;
+        }
+        if (raw == WeatherService.Hourly.class) {
+            return (TypeAdapter<T>) HOURLY;
+        }
+        if (raw == WeatherService.Daily.class) {
+            return (TypeAdapter<T>) DAILY;
+        }
+        if (raw == WeatherService.Flags.class) {
+            return (TypeAdapter<T>) FLAGS;
+        }
+        if (raw == WeatherService.WeatherData.class) {
+            return (TypeAdapter<T>) WEATHER_DATA;
+        }
+        return null;
+    }
+
+    private static class DatumAdapter extends TypeAdapter<WeatherService.Datum> {
+        @Override
+        public void write(JsonWriter out, WeatherService.Datum value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("time");
+            out.value(value.time);
+            out.name("summary");
+            out.value(value.summary);
+            out.name("icon");
+            out.value(value.icon);
+            out.name("sunriseTime");
+            out.value(value.sunriseTime);
+            out.name("sunsetTime");
+            out.value(value.sunsetTime);
+            out.name("moonPhase");
+            out.value(value.moonPhase);
+            out.name("precipIntensity");
+            out.value(value.precipIntensity);
+            out.name("precipIntensityMax");
+            out.value(value.precipIntensityMax);
+            out.name("precipIntensityMaxTime");
+            out.value(value.precipIntensityMaxTime);
+            out.name("precipProbability");
+            out.value(value.precipProbability);
+            out.name("precipType");
+            out.value(value.precipType);
+            out.name("temperature");
+            out.value(value.temperature);
+            out.name("temperatureMin");
+            out.value(value.temperatureMin);
+            out.name("temperatureMinTime");
+            out.value(value.temperatureMinTime);
+            out.name("temperatureMax");
+            out.value(value.temperatureMax);
+            out.name("temperatureMaxTime");
+            out.value(value.temperatureMaxTime);
+            out.name("apparentTemperatureMin");
+            out.value(value.apparentTemperatureMin);
+            out.name("apparentTemperatureMinTime");
+            out.value(value.apparentTemperatureMinTime);
+            out.name("apparentTemperatureMax");
+            out.value(value.apparentTemperatureMax);
+            out.name("apparentTemperatureMaxTime");
+            out.value(value.apparentTemperatureMaxTime);
+            out.name("dewPoint");
+            out.value(value.dewPoint);
+            out.name("humidity");
+            out.value(value.humidity);
+            out.name("windSpeed");
+            out.value(value.windSpeed);
+            out.name("windBearing");
+            out.value(value.windBearing);
+            out.name("visibility");
+            out.value(value.visibility);
+            out.name("cloudCover");
+            out.value(value.cloudCover);
+            out.name("pressure");
+            out.value(value.pressure);
+            out.name("ozone");
+            out.value(value.ozone);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.Datum read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.Datum value = new WeatherService.Datum();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "time":
+                        value.time = readInteger(in);
+                        break;
+                    case "summary":
+                        value.summary = readString(in);
+                        break;
+                    case "icon":
+                        value.icon = readString(in);
+                        break;
+                    case "sunriseTime":
+                        value.sunriseTime = readInteger(in);
+                        break;
+                    case "sunsetTime":
+                        value.sunsetTime = readInteger(in);
+                        break;
+                    case "moonPhase":
+                        value.moonPhase = readDouble(in);
+                        break;
+                    case "precipIntensity":
+                        value.precipIntensity = readDouble(in);
+                        break;
+                    case "precipIntensityMax":
+                        value.precipIntensityMax = readDouble(in);
+                        break;
+                    case "precipIntensityMaxTime":
+                        value.precipIntensityMaxTime = readInteger(in);
+                        break;
+                    case "precipProbability":
+                        value.precipProbability = readDouble(in);
+                        break;
+                    case "precipType":
+                        value.precipType = readString(in);
+                        break;
+                    case "temperature":
+                        value.temperature = readDouble(in);
+                        break;
+                    case "temperatureMin":
+                        value.temperatureMin = readDouble(in);
+                        break;
+                    case "temperatureMinTime":
+                        value.temperatureMinTime = readInteger(in);
+                        break;
+                    case "temperatureMax":
+                        value.temperatureMax = readDouble(in);
+                        break;
+                    case "temperatureMaxTime":
+                        value.temperatureMaxTime = readInteger(in);
+                        break;
+                    case "apparentTemperatureMin":
+                        value.apparentTemperatureMin = readDouble(in);
+                        break;
+                    case "apparentTemperatureMinTime":
+                        value.apparentTemperatureMinTime = readInteger(in);
+                        break;
+                    case "apparentTemperatureMax":
+                        value.apparentTemperatureMax = readDouble(in);
+                        break;
+                    case "apparentTemperatureMaxTime":
+                        value.apparentTemperatureMaxTime = readInteger(in);
+                        break;
+                    case "dewPoint":
+                        value.dewPoint = readDouble(in);
+                        break;
+                    case "humidity":
+                        value.humidity = readDouble(in);
+                        break;
+                    case "windSpeed":
+                        value.windSpeed = readDouble(in);
+                        break;
+                    case "windBearing":
+                        value.windBearing = readInteger(in);
+                        break;
+                    case "visibility":
+                        value.visibility = readDouble(in);
+                        break;
+                    case "cloudCover":
+                        value.cloudCover = readDouble(in);
+                        break;
+                    case "pressure":
+                        value.pressure = readDouble(in);
+                        break;
+                    case "ozone":
+                        value.ozone = readDouble(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class MinutelyAdapter extends TypeAdapter<WeatherService.Minutely> {
+        @Override
+        public void write(JsonWriter out, WeatherService.Minutely value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("summary");
+            out.value(value.summary);
+            out.name("icon");
+            out.value(value.icon);
+            out.name("data");
+            DATUM_LIST.write(out, value.data);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.Minutely read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.Minutely value = new WeatherService.Minutely();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "summary":
+                        value.summary = readString(in);
+                        break;
+                    case "icon":
+                        value.icon = readString(in);
+                        break;
+                    case "data":
+                        value.data = DATUM_LIST.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class HourlyAdapter extends TypeAdapter<WeatherService.Hourly> {
+        @Override
+        public void write(JsonWriter out, WeatherService.Hourly value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("summary");
+            out.value(value.summary);
+            out.name("icon");
+            out.value(value.icon);
+            out.name("data");
+            DATUM_LIST.write(out, value.data);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.Hourly read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.Hourly value = new WeatherService.Hourly();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "summary":
+                        value.summary = readString(in);
+                        break;
+                    case "icon":
+                        value.icon = readString(in);
+                        break;
+                    case "data":
+                        value.data = DATUM_LIST.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class DailyAdapter extends TypeAdapter<WeatherService.Daily> {
+        @Override
+        public void write(JsonWriter out, WeatherService.Daily value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("summary");
+            out.value(value.summary);
+            out.name("icon");
+            out.value(value.icon);
+            out.name("data");
+            DATUM_LIST.write(out, value.data);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.Daily read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.Daily value = new WeatherService.Daily();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "summary":
+                        value.summary = readString(in);
+                        break;
+                    case "icon":
+                        value.icon = readString(in);
+                        break;
+                    case "data":
+                        value.data = DATUM_LIST.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class FlagsAdapter extends TypeAdapter<WeatherService.Flags> {
+        @Override
+        public void write(JsonWriter out, WeatherService.Flags value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("sources");
+            STRING_LIST.write(out, value.sources);
+            out.name("darkskyStations");
+            STRING_LIST.write(out, value.darkskyStations);
+            out.name("datapointStations");
+            STRING_LIST.write(out, value.datapointStations);
+            out.name("metnoLicense");
+            out.value(value.metnoLicense);
+            out.name("isdStations");
+            STRING_LIST.write(out, value.isdStations);
+            out.name("madisStations");
+            STRING_LIST.write(out, value.madisStations);
+            out.name("units");
+            out.value(value.units);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.Flags read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.Flags value = new WeatherService.Flags();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "sources":
+                        value.sources = STRING_LIST.read(in);
+                        break;
+                    case "darkskyStations":
+                        value.darkskyStations = STRING_LIST.read(in);
+                        break;
+                    case "datapointStations":
+                        value.datapointStations = STRING_LIST.read(in);
+                        break;
+                    case "metnoLicense":
+                        value.metnoLicense = readString(in);
+                        break;
+                    case "isdStations":
+                        value.isdStations = STRING_LIST.read(in);
+                        break;
+                    case "madisStations":
+                        value.madisStations = STRING_LIST.read(in);
+                        break;
+                    case "units":
+                        value.units = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class WeatherDataAdapter extends TypeAdapter<WeatherService.WeatherData> {
+        @Override
+        public void write(JsonWriter out, WeatherService.WeatherData value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("latitude");
+            out.value(value.latitude);
+            out.name("longitude");
+            out.value(value.longitude);
+            out.name("timezone");
+            out.value(value.timezone);
+            out.name("offset");
+            out.value(value.offset);
+            out.name("currently");
+            DATUM.write(out, value.currently);
+            out.name("minutely");
+            MINUTELY.write(out, value.minutely);
+            out.name("hourly");
+            HOURLY.write(out, value.hourly);
+            out.name("daily");
+            DAILY.write(out, value.daily);
+            out.name("flags");
+            FLAGS.write(out, value.flags);
+            out.endObject();
+        }
+
+        @Override
+        public WeatherService.WeatherData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            WeatherService.WeatherData value = new WeatherService.WeatherData();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "latitude":
+                        value.latitude = readDouble(in);
+                        break;
+                    case "longitude":
+                        value.longitude = readDouble(in);
+                        break;
+                    case "timezone":
+                        value.timezone = readString(in);
+                        break;
+                    case "offset":
+                        value.offset = readInteger(in);
+                        break;
+                    case "currently":
+                        value.currently = DATUM.read(in);
+                        break;
+                    case "minutely":
+                        value.minutely = MINUTELY.read(in);
+                        break;
+                    case "hourly":
+                        value.hourly = HOURLY.read(in);
+                        break;
+                    case "daily":
+                        value.daily = DAILY.read(in);
+                        break;
+                    case "flags":
+                        value.flags = FLAGS.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    }
+
+    private static class ListAdapter<E> extends TypeAdapter<List<E>> {
+        private final TypeAdapter<E> mElement;
+
+        ListAdapter(TypeAdapter<E> element) {
+            mElement = element;
+        }
+
+        @Override
+        public void write(JsonWriter out, List<E> value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (E e : value) {
+                mElement.write(out, e);
+            }
+            out.endArray();
+        }
+
+        @Override
+        public List<E> read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<E> list = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                list.add(mElement.read(in));
+            }
+            in.endArray();
+            return list;
+        }
+    }
+
+    private static Integer readInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static Double readDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextDouble();
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+}
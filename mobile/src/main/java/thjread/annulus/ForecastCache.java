@@ -0,0 +1,126 @@
+package thjread.annulus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent forecasts by location. Locations are bucketed into geohash cells of
+ * {@link #CELL_PRECISION} characters, about 1.2 by 0.6 km, and forecasts are requested for the
+ * cell's centre, so moving around within a cell reuses the same forecast. The
+ * {@link #MAX_CELLS} most recently used cells are kept, each for up to {@link #TTL_MS} after
+ * its last fetch.
+ */
+class ForecastCache {
+    static final int CELL_PRECISION = 6;
+    static final int MAX_CELLS = 8;
+    static final long TTL_MS = 2 * 60 * 60 * 1000;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private final Map<String, CachedForecast> mCells =
+            new LinkedHashMap<String, CachedForecast>(MAX_CELLS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedForecast> eldest) {
+                    return size() > MAX_CELLS;
+                }
+            };
+    private CachedForecast mLatest = null;
+
+    /**
+     * The forecast for the cell containing a location, empty if the cell is new or its
+     * forecast has expired.
+     */
+    synchronized CachedForecast get(double latitude, double longitude, long now) {
+        String cell = cell(latitude, longitude);
+        CachedForecast forecast = mCells.get(cell);
+        if (forecast == null || (forecast.get() != null && now - forecast.lastFetchedAt() >= TTL_MS)) {
+            double centre[] = centre(cell);
+            forecast = new CachedForecast(centre[0], centre[1]);
+            mCells.put(cell, forecast);
+        }
+        mLatest = forecast;
+        return forecast;
+    }
+
+    /**
+     * Puts back a forecast saved earlier, as the most recently used one, unless its cell
+     * already has a forecast.
+     */
+    synchronized void restore(CachedForecast forecast) {
+        String cell = cell(forecast.latitude(), forecast.longitude());
+        CachedForecast current = mCells.get(cell);
+        if (current != null && current.get() != null) {
+            return;
+        }
+        mCells.put(cell, forecast);
+        if (mLatest == null || mLatest.get() == null) {
+            mLatest = forecast;
+        }
+    }
+
+    /**
+     * The most recently used forecast, or null.
+     */
+    synchronized WeatherService.WeatherData latest() {
+        return mLatest != null ? mLatest.get() : null;
+    }
+
+    synchronized CachedForecast latestForecast() {
+        return mLatest;
+    }
+
+    synchronized int size() {
+        return mCells.size();
+    }
+
+    static String cell(double latitude, double longitude) {
+        double latRange[] = {-90, 90};
+        double lonRange[] = {-180, 180};
+        StringBuilder sb = new StringBuilder(CELL_PRECISION);
+        boolean even = true;
+        int bit = 0;
+        int ch = 0;
+        while (sb.length() < CELL_PRECISION) {
+            double range[] = even ? lonRange : latRange;
+            double value = even ? longitude : latitude;
+            double mid = (range[0] + range[1]) / 2;
+            ch <<= 1;
+            if (value >= mid) {
+                ch |= 1;
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            even = !even;
+            if (++bit == 5) {
+                sb.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Latitude and longitude of the centre of a geohash cell.
+     */
+    static double[] centre(String cell) {
+        double latRange[] = {-90, 90};
+        double lonRange[] = {-180, 180};
+        boolean even = true;
+        for (int i = 0; i < cell.length(); ++i) {
+            int ch = BASE32.indexOf(cell.charAt(i));
+            for (int b = 4; b >= 0; --b) {
+                double range[] = even ? lonRange : latRange;
+                double mid = (range[0] + range[1]) / 2;
+                if ((ch & (1 << b)) != 0) {
+                    range[0] = mid;
+                } else {
+                    range[1] = mid;
+                }
+                even = !even;
+            }
+        }
+        return new double[]{(latRange[0] + latRange[1]) / 2, (lonRange[0] + lonRange[1]) / 2};
+    }
+}
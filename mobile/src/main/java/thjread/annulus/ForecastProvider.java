@@ -0,0 +1,59 @@
+package thjread.annulus;
+
+import com.google.gson.GsonBuilder;
+import com.squareup.okhttp.OkHttpClient;
+
+import retrofit.Call;
+import retrofit.GsonConverterFactory;
+import retrofit.Retrofit;
+
+/**
+ * A forecast service answering in the {@link WeatherService.WeatherData} model.
+ */
+interface ForecastProvider {
+    ForecastProvider DARK_SKY = new Rest("darksky", "https://api.darksky.net/");
+
+    String name();
+
+    /**
+     * A request for the forecast at a location, without the comma separated blocks in
+     * exclude.
+     */
+    Call<WeatherService.WeatherData> newCall(String key, double latitude, double longitude,
+                                             String exclude, OkHttpClient client);
+
+    /**
+     * A service with the forecast.io API, which Dark Sky now serves under its own name.
+     */
+    class Rest implements ForecastProvider {
+        /**
+         * Shared so that every call decodes with the same Gson and its generated adapters.
+         */
+        private static final GsonConverterFactory CONVERTER = GsonConverterFactory.create(
+                new GsonBuilder().registerTypeAdapterFactory(new ForecastAdapters()).create());
+
+        private final String mName;
+        private final String mBaseUrl;
+
+        Rest(String name, String baseUrl) {
+            mName = name;
+            mBaseUrl = baseUrl;
+        }
+
+        @Override
+        public String name() {
+            return mName;
+        }
+
+        @Override
+        public Call<WeatherService.WeatherData> newCall(String key, double latitude, double longitude,
+                                                        String exclude, OkHttpClient client) {
+            Retrofit retrofit = new Retrofit.Builder()
+                    .baseUrl(mBaseUrl)
+                    .addConverterFactory(CONVERTER)
+                    .client(client)
+                    .build();
+            return retrofit.create(WeatherService.class).getWeatherData(key, latitude, longitude, exclude);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package thjread.annulus;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import retrofit.Call;
+import retrofit.Response;
+
+/**
+ * Sends up to a given number of requests for a forecast, spread over interchangeable
+ * {@link ForecastProvider}s, to cut the tail latency of any one request. The provider with
+ * the lowest median latency is asked first. If it hasn't answered by its
+ * {@link #HEDGE_PERCENTILE} latency, the next one is asked as well, going round the providers
+ * again if there are more requests than providers, and the first good answer wins; the
+ * others are cancelled. A provider that fails is failed over from straight away, but only to
+ * one not asked yet: a failure is left to {@link CircuitBreaker} rather than retried.
+ *
+ * With a single provider this hedges the one endpoint against a slow connection or server,
+ * not against the service being down, and each hedge is one more billable request to it.
+ *
+ * Latency is tracked over each provider's last {@link #SAMPLES} answers. Failures count as
+ * at least {@link #DEFAULT_HEDGE_MS}, so a provider that fails quickly doesn't look fast.
+ */
+class HedgedFetcher {
+    static final int SAMPLES = 32;
+    static final int MIN_SAMPLES = 5;
+    static final double HEDGE_PERCENTILE = 0.95;
+    static final long DEFAULT_HEDGE_MS = 2000;
+    static final long MIN_HEDGE_MS = 50;
+
+    /**
+     * Recent latencies of one provider.
+     */
+    static class Latency {
+        private final long mSamples[] = new long[SAMPLES];
+        private int mCount = 0;
+
+        synchronized void add(long ms) {
+            mSamples[mCount++ % SAMPLES] = ms;
+        }
+
+        synchronized int size() {
+            return Math.min(mCount, SAMPLES);
+        }
+
+        /**
+         * The given percentile of the recent latencies, or 0 if there are none.
+         */
+        synchronized long percentile(double p) {
+            int n = size();
+            if (n == 0) {
+                return 0;
+            }
+            long sorted[] = Arrays.copyOf(mSamples, n);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, Math.min(n - 1, (int) Math.ceil(n * p) - 1))];
+        }
+    }
+
+    private final SyncStats mStats;
+    private final int mMaxRequests;
+    private final ForecastProvider mProviders[];
+    private final Latency mLatency[];
+    private final ExecutorService mThreads = Executors.newCachedThreadPool(SyncExecutor.threadFactory("hedge"));
+
+    /**
+     * Asks each provider at most once.
+     */
+    HedgedFetcher(SyncStats stats, ForecastProvider... providers) {
+        this(stats, providers.length, providers);
+    }
+
+    /**
+     * @param maxRequests how many requests a fetch may send in all
+     */
+    HedgedFetcher(SyncStats stats, int maxRequests, ForecastProvider... providers) {
+        mStats = stats;
+        mMaxRequests = Math.max(maxRequests, providers.length);
+        mProviders = providers;
+        mLatency = new Latency[providers.length];
+        for (int i = 0; i < providers.length; ++i) {
+            mLatency[i] = new Latency();
+        }
+    }
+
+    Latency latency(ForecastProvider provider) {
+        return mLatency[Arrays.asList(mProviders).indexOf(provider)];
+    }
+
+    /**
+     * Providers in the order they will be asked, fastest median first. Providers without
+     * {@link #MIN_SAMPLES} latencies yet come first, so that every provider gets measured.
+     */
+    ForecastProvider[] ranked() {
+        final long median[] = new long[mProviders.length];
+        Integer order[] = new Integer[mProviders.length];
+        for (int i = 0; i < mProviders.length; ++i) {
+            median[i] = mLatency[i].size() >= MIN_SAMPLES ? mLatency[i].percentile(0.5) : 0;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(median[a], median[b]);
+            }
+        });
+        ForecastProvider ranked[] = new ForecastProvider[mProviders.length];
+        for (int i = 0; i < order.length; ++i) {
+            ranked[i] = mProviders[order[i]];
+        }
+        return ranked;
+    }
+
+    /**
+     * How long to wait for a provider before asking the next one as well.
+     */
+    long hedgeDelay(ForecastProvider provider) {
+        Latency latency = latency(provider);
+        if (latency.size() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_MS;
+        }
+        return Math.max(MIN_HEDGE_MS, latency.percentile(HEDGE_PERCENTILE));
+    }
+
+    Hedge newHedge(String key, double latitude, double longitude, String exclude, OkHttpClient client,
+                   long requestId) {
+        return new Hedge(key, latitude, longitude, exclude, client, requestId);
+    }
+
+    private class Attempt implements Runnable {
+        final ForecastProvider mProvider;
+        final Call<WeatherService.WeatherData> mCall;
+        final BlockingQueue<Attempt> mDone;
+        final long mRequestId;
+        volatile boolean mCancelled = false;
+        volatile Response<WeatherService.WeatherData> mResponse;
+        volatile IOException mError;
+
+        Attempt(ForecastProvider provider, Call<WeatherService.WeatherData> call,
+                BlockingQueue<Attempt> done, long requestId) {
+            mProvider = provider;
+            mCall = call;
+            mDone = done;
+            mRequestId = requestId;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                mResponse = mCall.execute();
+            } catch (IOException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                // e.g. a JsonParseException from a truncated body
+                mError = new IOException("Bad forecast from " + mProvider.name(), e);
+            }
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (succeeded()) {
+                latency(mProvider).add(ms);
+                mStats.record("weather." + mProvider.name() + ".ms", mRequestId, ms);
+            } else if (!mCancelled) {
+                latency(mProvider).add(Math.max(ms, DEFAULT_HEDGE_MS));
+                mStats.event("weather." + mProvider.name() + ".failed", mRequestId);
+            }
+            mDone.add(this);
+        }
+
+        boolean succeeded() {
+            return mResponse != null && mResponse.isSuccess() && mResponse.body() != null;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mCall.cancel();
+        }
+    }
+
+    /**
+     * One hedged request, executed like a {@link Call}.
+     */
+    class Hedge {
+        private final String mKey;
+        private final double mLatitude;
+        private final double mLongitude;
+        private final String mExclude;
+        private final OkHttpClient mClient;
+        private final long mRequestId;
+        private final BlockingQueue<Attempt> mDone = new LinkedBlockingQueue<>();
+        private final List<Attempt> mAttempts = new CopyOnWriteArrayList<>();
+        private volatile boolean mCancelled = false;
+
+        private Hedge(String key, double latitude, double longitude, String exclude, OkHttpClient client,
+                      long requestId) {
+            mKey = key;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mExclude = exclude;
+            mClient = client;
+            mRequestId = requestId;
+        }
+
+        /**
+         * Returns the first successful response, or if there is none, the last unsuccessful
+         * one.
+         */
+        Response<WeatherService.WeatherData> execute() throws IOException {
+            ForecastProvider ranked[] = ranked();
+            List<Attempt> failed = new ArrayList<>();
+            start(ranked[0]);
+            try {
+                while (!mCancelled && failed.size() < mAttempts.size()) {
+                    Attempt a;
+                    if (mAttempts.size() < mMaxRequests) {
+                        int last = mAttempts.size() - 1;
+                        a = mDone.poll(hedgeDelay(ranked[last % ranked.length]), TimeUnit.MILLISECONDS);
+                        if (a == null) {
+                            mStats.event("weather.hedged", mRequestId);
+                            start(ranked[(last + 1) % ranked.length]);
+                            continue;
+                        }
+                    } else {
+                        a = mDone.take();
+                    }
+                    if (a.succeeded()) {
+                        mStats.event("weather.answered." + a.mProvider.name(), mRequestId);
+                        return a.mResponse;
+                    }
+                    failed.add(a);
+                    if (!mCancelled && mAttempts.size() < ranked.length) {
+                        mStats.event("weather.failover", mRequestId);
+                        start(ranked[mAttempts.size()]);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for forecast");
+            } finally {
+                stop();
+            }
+            for (int i = failed.size() - 1; i >= 0; --i) {
+                if (failed.get(i).mResponse != null) {
+                    return failed.get(i).mResponse;
+                }
+            }
+            throw failed.isEmpty() ? new IOException("Canceled") : failed.get(failed.size() - 1).mError;
+        }
+
+        private void start(ForecastProvider provider) {
+            Attempt a = new Attempt(provider, provider.newCall(mKey, mLatitude, mLongitude, mExclude, mClient),
+                    mDone, mRequestId);
+            mAttempts.add(a);
+            mThreads.execute(a);
+        }
+
+        /**
+         * Cancels every request still in flight, and makes execute give up.
+         */
+        void cancel() {
+            mCancelled = true;
+            stop();
+        }
+
+        /**
+         * Whether {@link #cancel} has been called.
+         */
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void stop() {
+            for (Attempt a : mAttempts) {
+                if (!a.succeeded()) {
+                    a.cancel();
+                }
+            }
+        }
+    }
+}
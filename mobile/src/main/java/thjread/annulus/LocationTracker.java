@@ -0,0 +1,94 @@
+package thjread.annulus;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Keeps the current location up to date from batched, low-power fused location updates, so
+ * forecast fetches read it without waiting for a fix.
+ *
+ * Updates come at most every {@link #INTERVAL_MS}, only after moving
+ * {@link #SMALLEST_DISPLACEMENT_M}, and may be held back for up to {@link #MAX_WAIT_MS} and
+ * delivered together; fixes other apps ask for are picked up for free. They arrive at
+ * {@link Receiver} by PendingIntent, so they keep coming while the sync service isn't
+ * running. Moving into a different forecast cell schedules a {@link RefreshService} refresh
+ * of the forecast, which starts as soon as the network allows.
+ */
+class LocationTracker {
+    private static final String TAG = "thjread.annulus";
+
+    static final long INTERVAL_MS = 15 * 60 * 1000;
+    static final long FASTEST_INTERVAL_MS = 60 * 1000;
+    static final long MAX_WAIT_MS = 60 * 60 * 1000;
+    static final float SMALLEST_DISPLACEMENT_M = 250;
+
+    private static Location sLocation = null;
+    private static boolean sRequested = false;
+
+    /**
+     * Subscribes to updates, once per process.
+     */
+    static synchronized void start(Context context, GoogleApiClient client) {
+        if (sRequested || !client.isConnected()) {
+            return;
+        }
+        LocationRequest request = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setInterval(INTERVAL_MS)
+                .setFastestInterval(FASTEST_INTERVAL_MS)
+                .setMaxWaitTime(MAX_WAIT_MS)
+                .setSmallestDisplacement(SMALLEST_DISPLACEMENT_M);
+        PendingIntent intent = PendingIntent.getBroadcast(context, 0,
+                new Intent(context, Receiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        LocationServices.FusedLocationApi.requestLocationUpdates(client, request, intent);
+        sRequested = true;
+        Log.d(TAG, "Location updates requested");
+    }
+
+    /**
+     * The latest known location, or null if there hasn't been a fix in this process.
+     */
+    static synchronized Location current() {
+        return sLocation;
+    }
+
+    /**
+     * Takes a new fix, ignoring any older than the one held. Returns true if it is in a
+     * different forecast cell from the previous one.
+     */
+    static synchronized boolean update(Location location) {
+        if (location == null || (sLocation != null && location.getTime() < sLocation.getTime())) {
+            return false;
+        }
+        Location previous = sLocation;
+        sLocation = location;
+        return previous != null
+                && !ForecastCache.cell(previous.getLatitude(), previous.getLongitude()).equals(
+                ForecastCache.cell(location.getLatitude(), location.getLongitude()));
+    }
+
+    public static class Receiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!LocationResult.hasResult(intent)) {
+                return;
+            }
+            LocationResult result = LocationResult.extractResult(intent);
+            WeatherSync.sStats.record("location.batch", 0, result.getLocations().size());
+            WeatherSync.sEnergy.location(System.currentTimeMillis());
+            if (update(result.getLastLocation())) {
+                WeatherSync.sStats.event("location.moved", 0);
+                RefreshService.scheduleRefresh(context);
+            }
+        }
+    }
+}
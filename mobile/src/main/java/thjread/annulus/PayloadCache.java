@@ -0,0 +1,103 @@
+package thjread.annulus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The latest encoded and compressed section of each type, so that repeated polls, several
+ * watches and retries share one payload instead of encoding the same data again.
+ *
+ * Entries are keyed by the snapshot they were encoded from, compared by identity: the
+ * fetcher hands out a new forecast object whenever the forecast changes and never modifies
+ * one afterwards. A new snapshot is encoded, but if the body comes out the same, as a fresh
+ * calendar query of an unchanged calendar does, the compressed section is kept rather than
+ * compressed again. Cached sections are never modified.
+ */
+class PayloadCache {
+    interface Encoder {
+        /**
+         * The section body for a snapshot.
+         */
+        byte[] encode(Object snapshot);
+    }
+
+    private static class Entry {
+        final Object snapshot;
+        final SyncProtocol.Section section;
+
+        Entry(Object snapshot, SyncProtocol.Section section) {
+            this.snapshot = snapshot;
+            this.section = section;
+        }
+    }
+
+    private final SyncStats mStats;
+    private final PayloadCompressor mCompressor;
+    private final Map<Integer, Entry> mEntries = new HashMap<>();
+
+    PayloadCache(SyncStats stats, PayloadCompressor compressor) {
+        mStats = stats;
+        mCompressor = compressor;
+    }
+
+    /**
+     * The section for a snapshot, encoded and compressed only if it isn't the one cached.
+     * Returns null if snapshot is null.
+     */
+    SyncProtocol.Section get(int type, Object snapshot, Encoder encoder, String name, long requestId) {
+        if (snapshot == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(type);
+        }
+        if (entry != null && entry.snapshot == snapshot) {
+            mStats.event("payload." + name + ".hit", requestId);
+            return entry.section;
+        }
+
+        byte[] body = encoder.encode(snapshot);
+        mStats.record(name + ".bytes", requestId, body.length);
+        SyncProtocol.Section section = SyncProtocol.Section.of(type, body);
+        if (entry != null && entry.section.version == section.version) {
+            mStats.event("payload." + name + ".unchanged", requestId);
+            put(type, snapshot, entry.section);
+            return entry.section;
+        }
+
+        mStats.event("payload." + name + ".encoded", requestId);
+        long start = System.nanoTime();
+        section.compress(mCompressor);
+        if (section.isCompressed()) {
+            mStats.record(name + ".compress_us", requestId, (System.nanoTime() - start) / 1000);
+            mStats.record(name + ".compressed_bytes", requestId, section.body.length);
+        } else {
+            mStats.event(name + ".uncompressed", requestId);
+        }
+        put(type, snapshot, section);
+        return section;
+    }
+
+    /**
+     * Puts back a section saved earlier along with the snapshot it was encoded from, unless
+     * one has been encoded since.
+     */
+    synchronized void restore(int type, Object snapshot, SyncProtocol.Section section) {
+        if (!mEntries.containsKey(type)) {
+            mEntries.put(type, new Entry(snapshot, section));
+        }
+    }
+
+    /**
+     * The section most recently produced for a type, or null.
+     */
+    synchronized SyncProtocol.Section latest(int type) {
+        Entry entry = mEntries.get(type);
+        return entry != null ? entry.section : null;
+    }
+
+    private synchronized void put(int type, Object snapshot, SyncProtocol.Section section) {
+        mEntries.put(type, new Entry(snapshot, section));
+    }
+}
@@ -0,0 +1,357 @@
+package thjread.annulus;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The phone's side of sync: answers the watches' requests from the forecast and calendar,
+ * keeps the forecast fresh in the background and carries what it knew over to a new process
+ * through {@link WarmState}. One per process, so that a burst is still answered when the
+ * service instance that started it has gone.
+ *
+ * Talks to the watches through a {@link SyncTransport}, tells the time with a {@link Clock}
+ * and reaches location, the calendar, storage and the scheduler through a {@link Device}, so
+ * that it runs the same against a simulated watch as in {@link WeatherSync}.
+ */
+class PhoneSync {
+    static final long WEATHER_DEADLINE_MS = 30 * 1000;
+    static final long CALENDAR_DEADLINE_MS = 5 * 1000;
+
+    interface Device {
+        /**
+         * The current location as {latitude, longitude}, or null if there is no fix.
+         */
+        double[] location(long requestId);
+
+        /**
+         * Queries the events in {@link CalendarHorizon#span} for the given time.
+         */
+        CalendarHorizon queryCalendar(long now);
+
+        /**
+         * Has {@link #prefetch} called in the {@link Prefetcher#WINDOW_MS} after at, replacing
+         * any prefetch scheduled before, or cancels it if at is 0.
+         */
+        void schedulePrefetch(long at, long now);
+
+        /**
+         * The state saved by the previous process, or null. Called at most once, on a sync
+         * lane.
+         */
+        WarmState.State loadWarmState();
+
+        void saveWarmState(WarmState.State state);
+    }
+
+    private static final PayloadCache.Encoder WEATHER_PAYLOAD = new PayloadCache.Encoder() {
+        @Override
+        public byte[] encode(Object snapshot) {
+            return ForecastCodec.encodeWeather((WeatherService.WeatherData) snapshot);
+        }
+    };
+    private static final PayloadCache.Encoder CALENDAR_PAYLOAD = new PayloadCache.Encoder() {
+        @Override
+        public byte[] encode(Object snapshot) {
+            return CalendarHorizon.encode((CalendarHorizon) snapshot);
+        }
+    };
+
+    private final SyncTransport mTransport;
+    private final Device mDevice;
+    private final Clock mClock;
+    private final SyncStats mStats;
+    private final EnergyLedger mEnergy;
+    private final SyncExecutor mExecutor;
+    private final WeatherFetcher mFetcher;
+    private final String mApiKey;
+    private final Prefetcher mPrefetcher;
+    private final PayloadCache mPayloads;
+    private final SyncFanOut mFanOut;
+
+    private volatile CalendarHorizon mCalendarHorizon = null;
+    /**
+     * Whether a forecast has been fetched or served from the cache in this process. Until
+     * then requests are answered with the warm state's weather section while it is fresh.
+     */
+    private volatile boolean mWeatherServed = false;
+    private boolean mRestored = false;
+
+    PhoneSync(SyncTransport transport, Device device, Clock clock, SyncStats stats, EnergyLedger energy,
+              SyncExecutor executor, WeatherFetcher fetcher, String apiKey) {
+        mTransport = transport;
+        mDevice = device;
+        mClock = clock;
+        mStats = stats;
+        mEnergy = energy;
+        mExecutor = executor;
+        mFetcher = fetcher;
+        mApiKey = apiKey;
+        mPrefetcher = new Prefetcher(stats);
+        mPayloads = new PayloadCache(stats, new PayloadCompressor());
+        mFanOut = new SyncFanOut(new ReplySender(), stats);
+    }
+
+    Prefetcher prefetcher() {
+        return mPrefetcher;
+    }
+
+    /**
+     * Handles a sync request from a node, answering it once the sections it asks for are
+     * ready.
+     */
+    void onRequest(String nodeId, SyncProtocol.Request request) {
+        if ((request.sections & SyncProtocol.SECTION_WEATHER) != 0) {
+            mStats.event("weather.request", request.requestId);
+        }
+        if ((request.sections & SyncProtocol.SECTION_CALENDAR) != 0) {
+            mStats.event("calendar.request", request.requestId);
+        }
+        int sections = mFanOut.request(nodeId, request);
+        if ((sections & SyncProtocol.SECTION_WEATHER) != 0) {
+            mExecutor.weather.submit("fetch", new WeatherSyncJob(request.requestId), WEATHER_DEADLINE_MS);
+        }
+        if ((sections & SyncProtocol.SECTION_CALENDAR) != 0) {
+            mExecutor.calendar.submit("query", new CalendarSyncJob(request.requestId), CALENDAR_DEADLINE_MS);
+        }
+    }
+
+    /**
+     * Sends one envelope to a node: its sections plus metadata, framed with that node's
+     * correlation id. Envelopes too big for a message are streamed over a channel instead,
+     * without building an envelope-sized buffer.
+     */
+    private class ReplySender implements SyncFanOut.Sender {
+        @Override
+        public void send(String nodeId, final long requestId, List<SyncProtocol.Section> sections) {
+            long now = mClock.currentTimeMillis();
+            sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_META,
+                    SyncProtocol.encodeMeta(now, mFetcher.fetchedAt(), mFetcher.status())));
+            SyncTransport.Callback callback = new SyncTransport.Callback() {
+                @Override
+                public void onResult(boolean success) {
+                    mStats.event(success ? "sync.sent" : "sync.send_failed", requestId);
+                }
+            };
+            int length = SyncProtocol.envelopeLength(sections);
+            boolean sent;
+            if (length > SyncProtocol.MAX_MESSAGE_LENGTH) {
+                sent = mTransport.streamEnvelope(nodeId, requestId, sections, callback);
+            } else {
+                sent = mTransport.send(nodeId, SyncProtocol.SYNC_PATH,
+                        SyncProtocol.encodeEnvelope(requestId, sections), callback);
+            }
+            if (!sent) {
+                mStats.event("sync.not_connected", requestId);
+                return;
+            }
+            mStats.record("sync.bytes", requestId, length);
+            mEnergy.message("sync", length, now);
+        }
+    }
+
+    /**
+     * Fetches the forecast and answers the current weather burst. If the fetch fails or runs
+     * past its deadline the burst is answered with whatever forecast we already have.
+     *
+     * The first request in a new process is answered with the warm state's weather section,
+     * if the forecast it was encoded from is still fresh, and the forecast is refreshed in the
+     * background.
+     */
+    private class WeatherSyncJob extends WeatherFetcher.FetchJob {
+        private final long mRequestId;
+        private SyncProtocol.Section mWarm = null;
+
+        WeatherSyncJob(long requestId) {
+            mRequestId = requestId;
+        }
+
+        @Override
+        void run(long deadline) throws Exception {
+            restoreWarmState();
+            if (!mWeatherServed) {
+                SyncProtocol.Section warm = mPayloads.latest(SyncProtocol.SECTION_WEATHER);
+                long now = mClock.currentTimeMillis();
+                if (warm != null && mFetcher.staleAt(now) > now) {
+                    mStats.event("weather.warm_start", mRequestId);
+                    mWarm = warm;
+                    refresh();
+                    return;
+                }
+            }
+            getWeatherData(mRequestId, deadline, this);
+        }
+
+        @Override
+        void finish(int outcome) {
+            if (outcome == SyncExecutor.SUPERSEDED || outcome == SyncExecutor.COALESCED) {
+                return; // the newer or running job answers the burst
+            }
+            SyncProtocol.Section section = mWarm;
+            if (section == null) {
+                section = mPayloads.get(SyncProtocol.SECTION_WEATHER, mFetcher.latest(),
+                        WEATHER_PAYLOAD, "weather", mRequestId);
+                if (section != null) {
+                    mWeatherServed = true;
+                }
+            }
+            mFanOut.complete(SyncProtocol.SECTION_WEATHER, section);
+            schedulePrefetch();
+            saveWarmState();
+        }
+    }
+
+    /**
+     * Queries the calendar and answers the current calendar burst. Runs on its own lane so it
+     * never waits behind a forecast download.
+     */
+    private class CalendarSyncJob extends SyncExecutor.Job {
+        private final long mRequestId;
+
+        CalendarSyncJob(long requestId) {
+            mRequestId = requestId;
+        }
+
+        @Override
+        void run(long deadline) throws Exception {
+            restoreWarmState();
+            long start = System.nanoTime();
+            CalendarHorizon horizon = mDevice.queryCalendar(mClock.currentTimeMillis());
+            mCalendarHorizon = horizon;
+            mPrefetcher.onCalendar(horizon.events);
+            long nanos = System.nanoTime() - start;
+            mStats.record("calendar.query_ms", mRequestId, nanos / 1000000);
+            mEnergy.cpu("calendar", nanos, mClock.currentTimeMillis());
+        }
+
+        @Override
+        void finish(int outcome) {
+            if (outcome == SyncExecutor.SUPERSEDED || outcome == SyncExecutor.COALESCED) {
+                return;
+            }
+            mFanOut.complete(SyncProtocol.SECTION_CALENDAR, mPayloads.get(SyncProtocol.SECTION_CALENDAR,
+                    mCalendarHorizon, CALENDAR_PAYLOAD, "calendar", mRequestId));
+            saveWarmState();
+        }
+    }
+
+    private WeatherService.WeatherData getWeatherData(long requestId, long deadline, WeatherFetcher.FetchJob job) {
+        double location[] = mDevice.location(requestId);
+        if (location == null) {
+            mStats.event("weather.no_location", requestId);
+            return mFetcher.latest();
+        }
+        if (requestId != 0) {
+            long now = mClock.currentTimeMillis();
+            mPrefetcher.onWatchRequest(now, mFetcher.due(location[0], location[1], now) == 0, requestId);
+        }
+        return mFetcher.fetch(mApiKey, location[0], location[1], requestId, deadline, job);
+    }
+
+    /**
+     * Brings the forecast for the current location up to date in the background, so the
+     * watch's next request finds it cached. If a refresh or prefetch is already downloading,
+     * waits for that one instead.
+     */
+    void refresh() {
+        submitRefresh(false, null);
+    }
+
+    /**
+     * Like {@link #refresh}, counting down done once the refresh has finished.
+     */
+    void refresh(CountDownLatch done) {
+        submitRefresh(false, done);
+    }
+
+    /**
+     * Like {@link #refresh}, but counted towards {@link Prefetcher}'s hit and waste figures.
+     */
+    void prefetch(CountDownLatch done) {
+        submitRefresh(true, done);
+    }
+
+    private void submitRefresh(final boolean prefetch, final CountDownLatch done) {
+        mExecutor.weather.submit("refresh", new WeatherFetcher.FetchJob() {
+            @Override
+            void run(long deadline) throws Exception {
+                restoreWarmState();
+                double location[] = mDevice.location(0);
+                if (location == null) {
+                    return;
+                }
+                if (prefetch) {
+                    long until = Math.max(mClock.currentTimeMillis(), mPrefetcher.target());
+                    mPrefetcher.onPrefetch(mFetcher.due(location[0], location[1], until) != 0);
+                    mFetcher.prefetch(mApiKey, location[0], location[1], until, deadline, this);
+                } else {
+                    mFetcher.fetch(mApiKey, location[0], location[1], 0, deadline, this);
+                }
+            }
+
+            @Override
+            void finish(int outcome) {
+                if (outcome != SyncExecutor.SUPERSEDED && outcome != SyncExecutor.COALESCED) {
+                    if (mPayloads.get(SyncProtocol.SECTION_WEATHER, mFetcher.latest(), WEATHER_PAYLOAD,
+                            "weather", 0) != null) {
+                        mWeatherServed = true;
+                    }
+                    schedulePrefetch();
+                    saveWarmState();
+                }
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        }, WEATHER_DEADLINE_MS);
+    }
+
+    /**
+     * Puts back what the previous process knew, the first time it is called. Reads a file,
+     * so is only called from jobs on the sync lanes, never the main thread.
+     */
+    private synchronized void restoreWarmState() {
+        if (mRestored) {
+            return;
+        }
+        mRestored = true;
+        WarmState.State state = mDevice.loadWarmState();
+        if (state == null) {
+            return;
+        }
+        if (state.forecast != null) {
+            mFetcher.restore(state.forecast);
+        }
+        if (state.calendar != null && mCalendarHorizon == null) {
+            mCalendarHorizon = state.calendar;
+            mPrefetcher.onCalendar(state.calendar.events);
+        }
+        if (state.forecast != null && state.weatherSection != null) {
+            mPayloads.restore(SyncProtocol.SECTION_WEATHER, state.forecast.get(), state.weatherSection);
+        }
+        if (state.calendar != null && state.calendarSection != null) {
+            mPayloads.restore(SyncProtocol.SECTION_CALENDAR, state.calendar, state.calendarSection);
+        }
+        mStats.event("warm.restored", 0);
+    }
+
+    private void saveWarmState() {
+        WarmState.State state = new WarmState.State();
+        state.forecast = mFetcher.latestForecast();
+        state.calendar = mCalendarHorizon;
+        state.weatherSection = mPayloads.latest(SyncProtocol.SECTION_WEATHER);
+        state.calendarSection = mPayloads.latest(SyncProtocol.SECTION_CALENDAR);
+        mDevice.saveWarmState(state);
+    }
+
+    /**
+     * Schedules the prefetch for the next expected demand.
+     */
+    private void schedulePrefetch() {
+        long now = mClock.currentTimeMillis();
+        long at = mPrefetcher.next(now, mFetcher.staleAt(now), mFetcher.latest());
+        if (at != 0) {
+            mStats.record("prefetch.delay_ms", 0, at - now);
+        }
+        mDevice.schedulePrefetch(at, now);
+    }
+}
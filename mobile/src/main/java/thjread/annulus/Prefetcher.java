@@ -0,0 +1,196 @@
+package thjread.annulus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fetches forecasts ahead of predictable demand, so that the watch's requests find them
+ * cached. It expects demand at:
+ *
+ * - the watch's next poll, predicted from the median of its recent polling intervals;
+ * - {@link #EVENT_LEAD_MS} before upcoming calendar events, when the user is likely to look;
+ * - the start of rain the minutely forecast shows coming within the hour.
+ *
+ * A prefetch is planned {@link #LEAD_MS} before the first of these at which the cached
+ * forecast will be stale, and downloads whatever will be stale by then. It runs as a
+ * {@link RefreshService} task some time in the {@link #WINDOW_MS} after that, so that the
+ * system can batch it with other wakeups; as the window is no longer than the lead, it
+ * still ends by the demand.
+ *
+ * Watch requests served from the cache are counted as hits. A prefetched forecast no watch
+ * request used before the next download is counted as wasted.
+ */
+class Prefetcher {
+    static final long LEAD_MS = 2 * 60 * 1000;
+    static final long WINDOW_MS = 2 * 60 * 1000;
+    static final long EVENT_LEAD_MS = 5 * 60 * 1000;
+    static final long MIN_POLL_MS = 60 * 1000;
+    static final long MAX_POLL_MS = 60 * 60 * 1000;
+    static final int POLL_SAMPLES = 8;
+
+    private final SyncStats mStats;
+    private final long mIntervals[] = new long[POLL_SAMPLES];
+    private int mIntervalCount = 0;
+    private long mLastPoll = 0;
+    private long mEventStarts[] = new long[0];
+    private long mTarget = 0;
+    private long mServed = 0;
+    private boolean mUnused = false;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mWasted = 0;
+
+    Prefetcher(SyncStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * A weather request from the watch, answered from the cache or not.
+     */
+    synchronized void onWatchRequest(long now, boolean hit, long requestId) {
+        if (mLastPoll != 0 && now - mLastPoll >= MIN_POLL_MS && now - mLastPoll <= MAX_POLL_MS) {
+            mIntervals[mIntervalCount++ % POLL_SAMPLES] = now - mLastPoll;
+        }
+        mLastPoll = now;
+        if (hit) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        mStats.event(hit ? "prefetch.hit" : "prefetch.miss", requestId);
+        if (mUnused) {
+            mUnused = false;
+            if (!hit) {
+                countWasted();
+            }
+        }
+    }
+
+    /**
+     * A prefetch has run; downloaded is false if the cache was already fresh.
+     */
+    synchronized void onPrefetch(boolean downloaded) {
+        mServed = mTarget;
+        mStats.event(downloaded ? "prefetch.downloaded" : "prefetch.fresh", 0);
+        if (downloaded) {
+            if (mUnused) {
+                countWasted();
+            }
+            mUnused = true;
+        }
+    }
+
+    private void countWasted() {
+        mWasted++;
+        mStats.event("prefetch.wasted", 0);
+    }
+
+    synchronized void onCalendar(List<CalendarData> events) {
+        long starts[] = new long[events.size()];
+        for (int i = 0; i < starts.length; ++i) {
+            starts[i] = events.get(i).begin;
+        }
+        Arrays.sort(starts);
+        mEventStarts = starts;
+    }
+
+    synchronized long hits() {
+        return mHits;
+    }
+
+    synchronized long misses() {
+        return mMisses;
+    }
+
+    synchronized long wasted() {
+        return mWasted;
+    }
+
+    /**
+     * The watch's typical polling interval, or 0 if it isn't known yet.
+     */
+    synchronized long pollInterval() {
+        int n = Math.min(mIntervalCount, POLL_SAMPLES);
+        if (n < 2) {
+            return 0;
+        }
+        long sorted[] = Arrays.copyOf(mIntervals, n);
+        Arrays.sort(sorted);
+        return sorted[n / 2];
+    }
+
+    /**
+     * Times after now at which the watch is expected to want a forecast.
+     */
+    synchronized List<Long> demand(long now, WeatherService.WeatherData data) {
+        List<Long> demand = new ArrayList<>();
+        long interval = pollInterval();
+        if (interval > 0) {
+            long poll = mLastPoll + interval;
+            while (poll <= now) {
+                poll += interval;
+            }
+            demand.add(poll);
+        }
+        for (long start : mEventStarts) {
+            if (start - EVENT_LEAD_MS > now) {
+                demand.add(start - EVENT_LEAD_MS);
+                break;
+            }
+        }
+        long rain = rainStart(data, now);
+        if (rain > now) {
+            demand.add(rain);
+        }
+        return demand;
+    }
+
+    /**
+     * When to prefetch next, or 0 if nothing is expected before the cache goes stale at
+     * staleAt. Never earlier than now. Each demand is prefetched for at most once.
+     */
+    synchronized long next(long now, long staleAt, WeatherService.WeatherData data) {
+        long next = 0;
+        mTarget = 0;
+        for (long d : demand(now, data)) {
+            if (d < staleAt || d <= mServed) {
+                continue; // the cache will still be fresh then, or was already prefetched
+            }
+            long at = Math.max(now, d - LEAD_MS);
+            if (next == 0 || at < next) {
+                next = at;
+                mTarget = d;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The demand the scheduled prefetch is for, or 0.
+     */
+    synchronized long target() {
+        return mTarget;
+    }
+
+    /**
+     * When the minutely forecast has rain starting within the hour after a dry spell, or 0.
+     */
+    static long rainStart(WeatherService.WeatherData data, long now) {
+        if (data == null || data.minutely == null) {
+            return 0;
+        }
+        boolean dry = false;
+        for (WeatherService.Datum d : data.minutely.data) {
+            if (d.time == null || d.time * 1000L < now) {
+                continue;
+            }
+            if (!RequestPlanner.wet(d)) {
+                dry = true;
+            } else if (dry) {
+                return d.time * 1000L;
+            }
+        }
+        return 0;
+    }
+}
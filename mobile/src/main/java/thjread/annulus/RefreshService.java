@@ -0,0 +1,87 @@
+package thjread.annulus;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.GcmTaskService;
+import com.google.android.gms.gcm.OneoffTask;
+import com.google.android.gms.gcm.Task;
+import com.google.android.gms.gcm.TaskParams;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs background forecast downloads as GcmNetworkManager tasks, which only start once the
+ * network is up, are batched with other apps' work, and hold a wakelock until onRunTask
+ * returns. A prefetch or refresh left to a broadcast receiver would otherwise be cut short
+ * when the device went back to sleep or the process was killed.
+ *
+ * Each tag has at most one task scheduled; scheduling it again replaces it.
+ */
+public class RefreshService extends GcmTaskService {
+    private static final String TAG = "thjread.annulus";
+
+    static final String TAG_PREFETCH = "prefetch";
+    static final String TAG_REFRESH = "refresh";
+
+    /**
+     * How long a refresh may wait for the network or for other work to batch with.
+     */
+    static final long REFRESH_WINDOW_MS = 30 * 1000;
+
+    /**
+     * Schedules a prefetch to start in the window of {@link Prefetcher#WINDOW_MS} from at, or
+     * cancels it if at is 0.
+     */
+    static void schedulePrefetch(Context context, long at, long now) {
+        GcmNetworkManager manager = GcmNetworkManager.getInstance(context);
+        if (at == 0) {
+            manager.cancelTask(TAG_PREFETCH, RefreshService.class);
+            return;
+        }
+        long start = Math.max(0, at - now) / 1000;
+        manager.schedule(task(TAG_PREFETCH, start, start + Prefetcher.WINDOW_MS / 1000));
+    }
+
+    /**
+     * Schedules a refresh to start as soon as the network allows.
+     */
+    static void scheduleRefresh(Context context) {
+        GcmNetworkManager.getInstance(context).schedule(task(TAG_REFRESH, 0, REFRESH_WINDOW_MS / 1000));
+    }
+
+    private static OneoffTask task(String tag, long startSeconds, long endSeconds) {
+        return new OneoffTask.Builder()
+                .setService(RefreshService.class)
+                .setTag(tag)
+                .setExecutionWindow(startSeconds, endSeconds)
+                .setRequiredNetwork(Task.NETWORK_STATE_CONNECTED)
+                .setUpdateCurrent(true)
+                .build();
+    }
+
+    /**
+     * Called on a background thread. Waits for the download so the wakelock is held until
+     * it has finished.
+     */
+    @Override
+    public int onRunTask(TaskParams params) {
+        CountDownLatch done = new CountDownLatch(1);
+        if (TAG_PREFETCH.equals(params.getTag())) {
+            WeatherSync.prefetch(getApplicationContext(), done);
+        } else {
+            WeatherSync.refresh(getApplicationContext(), done);
+        }
+        try {
+            // the job is finished by its deadline, give or take the watchdog's scheduling
+            if (!done.await(PhoneSync.WEATHER_DEADLINE_MS + 1000, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Background " + params.getTag() + " didn't finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return GcmNetworkManager.RESULT_SUCCESS;
+    }
+}
@@ -0,0 +1,108 @@
+package thjread.annulus;
+
+import java.util.List;
+
+/**
+ * Decides which forecast blocks a request should fetch, from the cached forecast's age and
+ * contents.
+ *
+ * The small currently block is refreshed every {@link #CURRENTLY_MAX_AGE_MS}; a request
+ * made before then is answered from the cache without any download. Hourly, the bulk of the
+ * response, is refreshed every {@link #HOURLY_MAX_AGE_MS}. Minutely is only worth fetching when rain is
+ * plausible within the hour. Daily, alerts and flags are never used: the watch works out
+ * sunrise and sunset itself.
+ */
+class RequestPlanner {
+    static final long CURRENTLY_MAX_AGE_MS = 10 * 60 * 1000;
+    static final long HOURLY_MAX_AGE_MS = 30 * 60 * 1000;
+    static final long MINUTELY_MAX_AGE_MS = 5 * 60 * 1000;
+    static final double RAIN_PROBABILITY = 0.1;
+
+    private static final String ALWAYS_EXCLUDED = "daily,alerts,flags";
+
+    /**
+     * Blocks to fetch for a request at the given time, 0 if the cache can answer it.
+     */
+    static int plan(CachedForecast cache, long now) {
+        WeatherService.WeatherData data = cache.get();
+        if (data == null) {
+            return CachedForecast.ALL_BLOCKS;
+        }
+        int blocks = 0;
+        if (data.currently == null || now - cache.fetchedAt(CachedForecast.BLOCK_CURRENTLY) >= CURRENTLY_MAX_AGE_MS) {
+            blocks |= CachedForecast.BLOCK_CURRENTLY;
+        }
+        if (data.hourly == null || now - cache.fetchedAt(CachedForecast.BLOCK_HOURLY) >= HOURLY_MAX_AGE_MS) {
+            blocks |= CachedForecast.BLOCK_HOURLY;
+        }
+        if (rainPlausible(data, now / 1000)
+                && now - cache.fetchedAt(CachedForecast.BLOCK_MINUTELY) >= MINUTELY_MAX_AGE_MS) {
+            blocks |= CachedForecast.BLOCK_MINUTELY;
+        }
+        return blocks;
+    }
+
+    /**
+     * When {@link #plan} will next want to download something for the cache, or 0 if it
+     * already does.
+     */
+    static long staleAt(CachedForecast cache, long now) {
+        WeatherService.WeatherData data = cache.get();
+        if (data == null || data.currently == null || data.hourly == null) {
+            return 0;
+        }
+        long staleAt = Math.min(cache.fetchedAt(CachedForecast.BLOCK_CURRENTLY) + CURRENTLY_MAX_AGE_MS,
+                cache.fetchedAt(CachedForecast.BLOCK_HOURLY) + HOURLY_MAX_AGE_MS);
+        if (rainPlausible(data, now / 1000)) {
+            staleAt = Math.min(staleAt, cache.fetchedAt(CachedForecast.BLOCK_MINUTELY) + MINUTELY_MAX_AGE_MS);
+        }
+        return staleAt;
+    }
+
+    /**
+     * The exclude= query value for a plan.
+     */
+    static String exclude(int blocks) {
+        StringBuilder sb = new StringBuilder();
+        if ((blocks & CachedForecast.BLOCK_CURRENTLY) == 0) {
+            sb.append("currently,");
+        }
+        if ((blocks & CachedForecast.BLOCK_MINUTELY) == 0) {
+            sb.append("minutely,");
+        }
+        if ((blocks & CachedForecast.BLOCK_HOURLY) == 0) {
+            sb.append("hourly,");
+        }
+        return sb.append(ALWAYS_EXCLUDED).toString();
+    }
+
+    /**
+     * Whether any rain is forecast for the next hour, by the latest conditions, the hourly
+     * points around now or the cached minutely points still to come.
+     */
+    static boolean rainPlausible(WeatherService.WeatherData data, long nowSeconds) {
+        if (data.currently != null && wet(data.currently)) {
+            return true;
+        }
+        if (data.hourly != null && anyWet(data.hourly.data, nowSeconds - 3600, nowSeconds + 3600)) {
+            return true;
+        }
+        return data.minutely != null && anyWet(data.minutely.data, nowSeconds, nowSeconds + 3600);
+    }
+
+    private static boolean anyWet(List<WeatherService.Datum> points, long from, long to) {
+        for (WeatherService.Datum d : points) {
+            if (d.time != null && d.time > from && d.time < to && wet(d)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean wet(WeatherService.Datum d) {
+        if (d.precipProbability != null) {
+            return d.precipProbability >= RAIN_PROBABILITY;
+        }
+        return d.precipIntensity != null && d.precipIntensity > 0;
+    }
+}
@@ -0,0 +1,320 @@
+package thjread.annulus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs sync work on independent lanes, each with its own small pool of worker threads, so
+ * a slow forecast download never holds up a calendar reply. Every job has a deadline, after
+ * which it is cancelled. Submitting a job with the same key as one still queued cancels the
+ * queued one; if that one is already running, the new job is coalesced with it instead, so
+ * that a download in progress is never thrown away only to be started again.
+ *
+ * A {@link #direct} executor instead runs each job on the submitting thread before submit
+ * returns, so that sync can be replayed deterministically on a virtual clock.
+ */
+class SyncExecutor {
+    static final int COMPLETED = 0;
+    static final int FAILED = 1;
+    static final int TIMED_OUT = 2;
+    static final int SUPERSEDED = 3;
+    static final int REJECTED = 4;
+    /**
+     * Not run, because a job with the same key was already running; finished once that one
+     * has.
+     */
+    static final int COALESCED = 5;
+
+    /**
+     * A unit of sync work. finish is called exactly once, with the outcome, whether the job
+     * ran to completion or not; after a timeout it may be called while run is still
+     * unwinding, on another thread.
+     */
+    abstract static class Job {
+        /**
+         * @param deadline System.nanoTime() by which the job should be done
+         */
+        abstract void run(long deadline) throws Exception;
+
+        /**
+         * Aborts blocking work in progress, e.g. an HTTP call. Called in addition to
+         * interrupting the worker thread.
+         */
+        void cancel() {
+        }
+
+        abstract void finish(int outcome);
+    }
+
+    static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    class Lane {
+        private final String mName;
+        private final ExecutorService mExecutor;
+        private final Map<String, Run> mByKey = new HashMap<>();
+
+        Lane(String name, int threads, int queueSize) {
+            mName = name;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueSize), threadFactory(name));
+            executor.allowCoreThreadTimeOut(true);
+            mExecutor = executor;
+        }
+
+        Lane(String name, ExecutorService executor) {
+            mName = name;
+            mExecutor = executor;
+        }
+
+        /**
+         * Queues a job, cancelling any job submitted with the same key that hasn't started
+         * yet. If one is running, the job isn't queued but finished with {@link #COALESCED}
+         * once the running one finishes.
+         */
+        void submit(String key, Job job, long timeoutMs) {
+            Run run = new Run(this, key, job, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+            Run previous;
+            synchronized (this) {
+                previous = mByKey.get(key);
+                if (previous != null && previous.mStarted) {
+                    mStats.event(mName + ".coalesced", 0);
+                    previous.mCoalesced.add(job);
+                    return;
+                }
+                mByKey.put(key, run);
+            }
+            if (previous != null) {
+                mStats.event(mName + ".superseded", 0);
+                previous.cancel(SUPERSEDED);
+            }
+            try {
+                run.mFuture = mExecutor.submit(run);
+            } catch (RejectedExecutionException e) {
+                mStats.event(mName + ".rejected", 0);
+                run.finish(REJECTED);
+                return;
+            }
+            // If the job finishes first the timeout finds it finished and does nothing
+            if (!run.mFinished.get()) {
+                run.mTimeout = mWatchdog.schedule(run.timeoutRunnable(), timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Marks a run as started, unless it has finished or been superseded meanwhile.
+         */
+        private synchronized boolean start(Run run) {
+            if (run.mFinished.get() || mByKey.get(run.mKey) != run) {
+                return false;
+            }
+            run.mStarted = true;
+            return true;
+        }
+
+        /**
+         * Forgets a finished run, returning the jobs coalesced with it.
+         */
+        private synchronized List<Job> remove(Run run) {
+            if (mByKey.get(run.mKey) == run) {
+                mByKey.remove(run.mKey);
+            }
+            List<Job> coalesced = new ArrayList<>(run.mCoalesced);
+            run.mCoalesced.clear();
+            return coalesced;
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private class Run implements Runnable {
+        final Lane mLane;
+        final String mKey;
+        final Job mJob;
+        final long mDeadline;
+        final AtomicBoolean mFinished = new AtomicBoolean(false);
+        /**
+         * Guarded by the lane.
+         */
+        boolean mStarted = false;
+        final List<Job> mCoalesced = new ArrayList<>();
+        volatile Future<?> mFuture;
+        volatile Future<?> mTimeout;
+
+        Run(Lane lane, String key, Job job, long deadline) {
+            mLane = lane;
+            mKey = key;
+            mJob = job;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (!mLane.start(this)) {
+                return;
+            }
+            if (System.nanoTime() >= mDeadline) {
+                cancel(TIMED_OUT);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                mJob.run(mDeadline);
+                finish(COMPLETED);
+            } catch (InterruptedException e) {
+                // cancelled, already finished
+            } catch (Exception e) {
+                finish(FAILED);
+            } finally {
+                mStats.record(mLane.mName + ".run_ms", 0,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+        Runnable timeoutRunnable() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (!mFinished.get()) {
+                        mStats.event(mLane.mName + ".timed_out", 0);
+                        cancel(TIMED_OUT);
+                    }
+                }
+            };
+        }
+
+        void cancel(int outcome) {
+            if (!finish(outcome)) {
+                return;
+            }
+            mJob.cancel();
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        boolean finish(int outcome) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return false;
+            }
+            Future<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            List<Job> coalesced = mLane.remove(this);
+            mJob.finish(outcome);
+            for (Job job : coalesced) {
+                job.finish(COALESCED);
+            }
+            return true;
+        }
+    }
+
+    private final SyncStats mStats;
+    private final ScheduledExecutorService mWatchdog;
+
+    final Lane weather;
+    final Lane calendar;
+
+    SyncExecutor(SyncStats stats) {
+        mStats = stats;
+        mWatchdog = watchdog();
+        weather = new Lane("weather", 1, 4);
+        calendar = new Lane("calendar", 1, 4);
+    }
+
+    private SyncExecutor(SyncStats stats, ExecutorService executor) {
+        mStats = stats;
+        mWatchdog = watchdog();
+        weather = new Lane("weather", executor);
+        calendar = new Lane("calendar", executor);
+    }
+
+    /**
+     * An executor that runs every job on the thread that submits it. Jobs still get their
+     * deadlines, but as submit doesn't return until a job is done, none is ever superseded.
+     */
+    static SyncExecutor direct(SyncStats stats) {
+        return new SyncExecutor(stats, new DirectExecutor());
+    }
+
+    private static ScheduledExecutorService watchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, threadFactory("sync-watchdog"));
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+
+    void shutdown() {
+        weather.shutdown();
+        calendar.shutdown();
+        mWatchdog.shutdownNow();
+    }
+
+    private static class DirectExecutor extends AbstractExecutorService {
+        private volatile boolean mShutdown = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if (mShutdown) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return mShutdown;
+        }
+    }
+
+    static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "annulus-" + name);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package thjread.annulus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces sync requests from any number of watches. The first request starts a burst that
+ * produces the sections it asks for; later requests join the burst, starting any further
+ * sections they need. When every started section is done each subscribed node gets one
+ * reply, built from the shared section payloads, with its own correlation id and with the
+ * sections it already holds marked not modified.
+ */
+class SyncFanOut {
+    interface Sender {
+        void send(String nodeId, long requestId, List<SyncProtocol.Section> sections);
+    }
+
+    private final Sender mSender;
+    private final SyncStats mStats;
+
+    /**
+     * Latest outstanding request per subscribed node, in arrival order.
+     */
+    private final Map<String, SyncProtocol.Request> mPending = new LinkedHashMap<>();
+    private final Map<Integer, SyncProtocol.Section> mResults = new LinkedHashMap<>();
+    private int mStarted = 0;
+    private int mDone = 0;
+
+    SyncFanOut(Sender sender, SyncStats stats) {
+        mSender = sender;
+        mStats = stats;
+    }
+
+    /**
+     * Subscribes a node to the next reply. Returns the sections the caller must start
+     * producing, which is 0 if the burst in progress already covers the request.
+     */
+    synchronized int request(String nodeId, SyncProtocol.Request request) {
+        SyncProtocol.Request previous = mPending.put(nodeId, request);
+        if (previous != null) {
+            request.sections |= previous.sections;
+            mStats.event("sync.superseded", previous.requestId);
+        }
+        int missing = startSections(request.sections);
+        if (missing != request.sections && mStarted != 0) {
+            mStats.event("sync.coalesced", request.requestId);
+        }
+        return missing;
+    }
+
+    /**
+     * Starts producing sections with no subscribers yet, e.g. to warm a cache. Returns the
+     * sections that weren't already in progress.
+     */
+    synchronized int startBurst(int sections) {
+        return startSections(sections);
+    }
+
+    private int startSections(int sections) {
+        sections &= SyncProtocol.SECTION_WEATHER | SyncProtocol.SECTION_CALENDAR;
+        int missing = sections & ~mStarted;
+        mStarted |= missing;
+        return missing;
+    }
+
+    /**
+     * Records the payload for a section, or null if it couldn't be produced. Once all started
+     * sections are done the burst's requests are answered.
+     */
+    void complete(int section, SyncProtocol.Section result) {
+        Map<String, SyncProtocol.Request> requesters;
+        Map<Integer, SyncProtocol.Section> results;
+        synchronized (this) {
+            mResults.put(section, result);
+            mDone |= section;
+            if ((mDone & mStarted) != mStarted) {
+                return;
+            }
+            requesters = new LinkedHashMap<>(mPending);
+            results = new LinkedHashMap<>(mResults);
+            mPending.clear();
+            mResults.clear();
+            mStarted = 0;
+            mDone = 0;
+        }
+
+        mStats.record("sync.fanout", 0, requesters.size());
+        for (Map.Entry<String, SyncProtocol.Request> e : requesters.entrySet()) {
+            SyncProtocol.Request r = e.getValue();
+            List<SyncProtocol.Section> sections = new ArrayList<>();
+            for (SyncProtocol.Section s : results.values()) {
+                if (s == null || (r.sections & s.type) == 0) {
+                    continue;
+                }
+                if (s.version == r.heldVersion(s.type)) {
+                    mStats.event("sync.not_modified", r.requestId);
+                    sections.add(s.notModified());
+                } else {
+                    sections.add(s);
+                }
+            }
+            if (sections.isEmpty()) {
+                mStats.event("sync.unanswered", r.requestId);
+                continue;
+            }
+            mSender.send(e.getKey(), r.requestId, sections);
+        }
+    }
+
+    synchronized boolean isBusy() {
+        return mStarted != 0;
+    }
+}
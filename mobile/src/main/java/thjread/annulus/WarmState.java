@@ -0,0 +1,267 @@
+package thjread.annulus;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What the phone knew before its process was last killed: the forecast last used, the last
+ * location fix, the calendar horizon and the sections last sent to the watch. The service is
+ * created and destroyed freely and its process with it, so this lets a request arriving at a
+ * new process be answered straight away rather than after a download.
+ *
+ * Loaded once per process, by whichever background thread first needs it. Saves are
+ * encoded on the caller's thread, skipped if nothing has changed, and written atomically on
+ * a background thread; a newer save supersedes a pending one.
+ */
+class WarmState {
+    private static final String TAG = "thjread.annulus";
+    private static final String FILE_NAME = "warm_state.bin";
+    private static final int MAGIC = 0x414e5753; // "ANWS"
+    private static final int VERSION = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Gson GSON =
+            new GsonBuilder().registerTypeAdapterFactory(new ForecastAdapters()).create();
+
+    static class State {
+        CachedForecast forecast;
+        /**
+         * The last location fix; locationTime is 0 if there is none.
+         */
+        long locationTime;
+        double latitude;
+        double longitude;
+        float accuracy;
+        CalendarHorizon calendar;
+        SyncProtocol.Section weatherSection;
+        SyncProtocol.Section calendarSection;
+    }
+
+    private final SyncStats mStats;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(
+            SyncExecutor.threadFactory("warm-state"));
+    private AtomicFile mFile = null;
+    private boolean mLoaded = false;
+    private int mSaved = 0;
+    private byte[] mPending = null;
+
+    WarmState(SyncStats stats) {
+        mStats = stats;
+    }
+
+    private synchronized AtomicFile file(Context context) {
+        if (mFile == null) {
+            mFile = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return mFile;
+    }
+
+    /**
+     * The saved state the first time it is called in a process, and null after that or if
+     * there is none.
+     */
+    State load(Context context) {
+        AtomicFile file = file(context);
+        synchronized (this) {
+            if (mLoaded) {
+                return null;
+            }
+            mLoaded = true;
+        }
+        long start = System.nanoTime();
+        try (InputStream in = file.openRead()) {
+            State state = decode(new DataInputStream(in));
+            mStats.record("warm.load_ms", 0, (System.nanoTime() - start) / 1000000);
+            if (state != null) {
+                synchronized (this) {
+                    mSaved = signature(state);
+                }
+            }
+            return state;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | JsonParseException e) {
+            Log.e(TAG, "Warm state load failed");
+            mStats.count("warm.load_failed");
+            return null;
+        }
+    }
+
+    void save(Context context, State state) {
+        int signature = signature(state);
+        byte[] data;
+        synchronized (this) {
+            if (signature == mSaved) {
+                return;
+            }
+            mSaved = signature;
+        }
+        try {
+            data = encode(state);
+        } catch (IOException e) {
+            Log.e(TAG, "Warm state encoding failed");
+            return;
+        }
+
+        final AtomicFile file = file(context);
+        synchronized (this) {
+            boolean scheduled = mPending != null;
+            mPending = data;
+            if (scheduled) {
+                return;
+            }
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data;
+                synchronized (WarmState.this) {
+                    data = mPending;
+                    mPending = null;
+                }
+                write(file, data);
+            }
+        });
+    }
+
+    private void write(AtomicFile file, byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(data);
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Warm state write failed");
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Changes whenever something worth saving does.
+     */
+    static int signature(State state) {
+        CachedForecast f = state.forecast;
+        return Arrays.hashCode(new long[]{
+                f != null ? f.lastFetchedAt() : 0,
+                state.locationTime,
+                state.calendar != null ? state.calendar.from : 0,
+                state.weatherSection != null ? state.weatherSection.version : 0,
+                state.calendarSection != null ? state.calendarSection.version : 0});
+    }
+
+    static byte[] encode(State state) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            CachedForecast f = state.forecast;
+            out.writeBoolean(f != null && f.get() != null);
+            if (f != null && f.get() != null) {
+                out.writeDouble(f.latitude());
+                out.writeDouble(f.longitude());
+                out.writeLong(f.fetchedAt(CachedForecast.BLOCK_CURRENTLY));
+                out.writeLong(f.fetchedAt(CachedForecast.BLOCK_MINUTELY));
+                out.writeLong(f.fetchedAt(CachedForecast.BLOCK_HOURLY));
+                writeBytes(out, GSON.toJson(f.get()).getBytes(UTF_8));
+            }
+
+            out.writeLong(state.locationTime);
+            out.writeDouble(state.latitude);
+            out.writeDouble(state.longitude);
+            out.writeFloat(state.accuracy);
+
+            CalendarHorizon.write(out, state.calendar);
+            writeSection(out, state.weatherSection);
+            writeSection(out, state.calendarSection);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns null if the data is from another version.
+     */
+    static State decode(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+        }
+        State s = new State();
+        if (in.readBoolean()) {
+            double latitude = in.readDouble();
+            double longitude = in.readDouble();
+            long currently = in.readLong();
+            long minutely = in.readLong();
+            long hourly = in.readLong();
+            String json = new String(readBytes(in), UTF_8);
+            s.forecast = new CachedForecast(latitude, longitude);
+            s.forecast.restore(GSON.fromJson(json, WeatherService.WeatherData.class),
+                    currently, minutely, hourly);
+        }
+        s.locationTime = in.readLong();
+        s.latitude = in.readDouble();
+        s.longitude = in.readDouble();
+        s.accuracy = in.readFloat();
+        s.calendar = CalendarHorizon.read(in);
+        s.weatherSection = readSection(in);
+        s.calendarSection = readSection(in);
+        return s;
+    }
+
+    private static void writeSection(DataOutput out, SyncProtocol.Section section) throws IOException {
+        out.writeBoolean(section != null);
+        if (section == null) {
+            return;
+        }
+        out.writeInt(section.type);
+        out.writeInt(section.flags);
+        out.writeInt(section.version);
+        writeBytes(out, section.body);
+    }
+
+    private static SyncProtocol.Section readSection(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int type = in.readInt();
+        int flags = in.readInt();
+        int version = in.readInt();
+        return new SyncProtocol.Section(type, flags, version, readBytes(in));
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > SyncProtocol.MAX_BODY_LENGTH) {
+            throw new IOException("Bad length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,235 @@
+package thjread.annulus;
+
+import android.util.Log;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import retrofit.Response;
+
+/**
+ * Downloads forecasts into the per-cell {@link ForecastCache}, fetching only the blocks
+ * {@link RequestPlanner} says are due. Each download is hedged by {@link HedgedFetcher}: a
+ * second request to Dark Sky goes out if the first is unusually slow. Process-wide, shared
+ * by watch requests and background refreshes.
+ *
+ * Downloads have their own connect and read timeouts, cut short by the job's deadline, and
+ * go through a {@link CircuitBreaker}: after a failure the cached forecast is served until
+ * the breaker allows another try. OkHttp's own silent retries are turned off so that every
+ * failure counts. A download cancelled because its job was superseded or timed out says
+ * nothing about the provider, so doesn't count.
+ */
+class WeatherFetcher {
+    private static final String TAG = "thjread.annulus";
+    static final long CONNECT_TIMEOUT_MS = 10 * 1000;
+    static final long READ_TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * A job whose download can be cancelled from the executor's watchdog.
+     */
+    abstract static class FetchJob extends SyncExecutor.Job {
+        volatile HedgedFetcher.Hedge mHedge;
+
+        @Override
+        void cancel() {
+            HedgedFetcher.Hedge hedge = mHedge;
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    private final SyncStats mStats;
+    private final EnergyLedger mEnergy;
+    private final HedgedFetcher mHedger;
+    private final CircuitBreaker mBreaker;
+    private final Clock mClock;
+    private final OkHttpClient mClient;
+    private final ForecastCache mCache = new ForecastCache();
+    private volatile WeatherService.WeatherData mLatest = null;
+    private volatile long mFetchedAt = 0;
+    long mConnectTimeoutMs = CONNECT_TIMEOUT_MS;
+    long mReadTimeoutMs = READ_TIMEOUT_MS;
+
+    /**
+     * Requests a download may send in all, hedges included.
+     */
+    static final int MAX_REQUESTS = 2;
+
+    WeatherFetcher(SyncStats stats, EnergyLedger energy) {
+        this(stats, energy, new HedgedFetcher(stats, MAX_REQUESTS, ForecastProvider.DARK_SKY),
+                new CircuitBreaker());
+    }
+
+    WeatherFetcher(SyncStats stats, EnergyLedger energy, HedgedFetcher hedger, CircuitBreaker breaker) {
+        this(stats, energy, hedger, breaker, Clock.SYSTEM);
+    }
+
+    WeatherFetcher(SyncStats stats, EnergyLedger energy, HedgedFetcher hedger, CircuitBreaker breaker, Clock clock) {
+        mStats = stats;
+        mEnergy = energy;
+        mHedger = hedger;
+        mBreaker = breaker;
+        mClock = clock;
+        mClient = new OkHttpClient();
+        mClient.setRetryOnConnectionFailure(false);
+    }
+
+    /**
+     * The forecast most recently fetched or served from the cache, or null.
+     */
+    WeatherService.WeatherData latest() {
+        return mLatest;
+    }
+
+    /**
+     * The cache entry most recently used, or null.
+     */
+    CachedForecast latestForecast() {
+        return mCache.latestForecast();
+    }
+
+    /**
+     * Puts back a forecast saved before the process was restarted. Does nothing if a
+     * forecast has already been fetched or served.
+     */
+    void restore(CachedForecast forecast) {
+        if (mLatest != null || forecast.get() == null) {
+            return;
+        }
+        mCache.restore(forecast);
+        install(forecast, forecast.get());
+    }
+
+    /**
+     * When the latest forecast's current conditions were downloaded.
+     */
+    long fetchedAt() {
+        return mFetchedAt;
+    }
+
+    /**
+     * Whether downloads are working, one of the {@link CircuitBreaker} states.
+     */
+    int status() {
+        return mBreaker.state();
+    }
+
+    /**
+     * The blocks a fetch for a location would download at the given time, 0 if it would be a
+     * cache hit.
+     */
+    int due(double latitude, double longitude, long at) {
+        return RequestPlanner.plan(mCache.get(latitude, longitude, at), at);
+    }
+
+    /**
+     * When the most recently used forecast will next need a download, or 0 if it does now.
+     */
+    long staleAt(long now) {
+        CachedForecast forecast = mCache.latestForecast();
+        return forecast != null ? RequestPlanner.staleAt(forecast, now) : 0;
+    }
+
+    /**
+     * Brings the forecast for a location up to date and returns it. Falls back to the cached
+     * forecast if the download fails or isn't allowed yet.
+     */
+    WeatherService.WeatherData fetch(String key, double latitude, double longitude, long requestId,
+                                     long deadline, FetchJob job) {
+        return fetch(key, latitude, longitude, requestId, deadline, job, 0);
+    }
+
+    /**
+     * Like {@link #fetch}, but downloads everything that will be due by the time until, so
+     * the forecast is still fresh then.
+     */
+    WeatherService.WeatherData prefetch(String key, double latitude, double longitude, long until,
+                                        long deadline, FetchJob job) {
+        return fetch(key, latitude, longitude, 0, deadline, job, until);
+    }
+
+    private WeatherService.WeatherData fetch(String key, double latitude, double longitude, long requestId,
+                                             long deadline, FetchJob job, long until) {
+        long now = mClock.currentTimeMillis();
+        CachedForecast forecast = mCache.get(latitude, longitude, now);
+        int blocks = RequestPlanner.plan(forecast, Math.max(now, until));
+        mStats.record("weather.blocks", requestId, blocks);
+        if (blocks == 0) {
+            mStats.event("weather.cache_hit", requestId);
+            return install(forecast, forecast.get());
+        }
+        mStats.event(blocks == CachedForecast.ALL_BLOCKS ? "weather.cache_miss" : "weather.cache_partial", requestId);
+
+        long remaining = SyncExecutor.remainingMillis(deadline);
+        if (remaining <= 0 || !mBreaker.allow(now)) {
+            mStats.event(remaining <= 0 ? "weather.no_time" : "weather.backoff", requestId);
+            return serveCached(forecast, requestId);
+        }
+
+        OkHttpClient client = mClient.clone();
+        client.setConnectTimeout(Math.min(mConnectTimeoutMs, remaining), TimeUnit.MILLISECONDS);
+        client.setReadTimeout(Math.min(mReadTimeoutMs, remaining), TimeUnit.MILLISECONDS);
+
+        HedgedFetcher.Hedge hedge = mHedger.newHedge(key, forecast.latitude(), forecast.longitude(),
+                RequestPlanner.exclude(blocks), client, requestId);
+        job.mHedge = hedge;
+        long start = System.nanoTime();
+        mEnergy.fetch(now);
+        boolean counted = false;
+        try {
+            Response<WeatherService.WeatherData> r = hedge.execute();
+            mStats.record("weather.fetch_ms", requestId, (System.nanoTime() - start) / 1000000);
+            WeatherService.WeatherData data = r.body();
+            if (r.isSuccess() && data != null) {
+                mStats.event("weather.fetch_ok", requestId);
+                mBreaker.onSuccess();
+                counted = true;
+                return install(forecast, forecast.merge(data, blocks, mClock.currentTimeMillis()));
+            }
+            mStats.record("weather.http_error", requestId, r.code());
+            onFailure(requestId);
+            counted = true;
+        } catch (IOException e) {
+            if (hedge.isCancelled() || Thread.currentThread().isInterrupted()) {
+                mStats.event("weather.fetch_cancelled", requestId);
+            } else {
+                mStats.event("weather.fetch_error", requestId);
+                Log.e(TAG, "Forecast download failed", e);
+                onFailure(requestId);
+                counted = true;
+            }
+        } finally {
+            if (!counted) {
+                // cancelled, or thrown out of by something unexpected
+                mBreaker.release();
+            }
+        }
+        return serveCached(forecast, requestId);
+    }
+
+    private void onFailure(long requestId) {
+        mBreaker.onFailure(mClock.currentTimeMillis());
+        if (mBreaker.state() == CircuitBreaker.OPEN) {
+            mStats.event("weather.circuit_open", requestId);
+        }
+    }
+
+    private WeatherService.WeatherData serveCached(CachedForecast forecast, long requestId) {
+        if (forecast.get() != null) {
+            return install(forecast, forecast.get());
+        }
+        if (mLatest == null) {
+            mStats.event("weather.no_data", requestId);
+        }
+        return mLatest;
+    }
+
+    private WeatherService.WeatherData install(CachedForecast forecast, WeatherService.WeatherData data) {
+        mFetchedAt = forecast.fetchedAt(CachedForecast.BLOCK_CURRENTLY);
+        mLatest = data;
+        return data;
+    }
+}
@@ -6,12 +6,14 @@ import java.util.List;
 import retrofit.Call;
 import retrofit.http.GET;
 import retrofit.http.Path;
+import retrofit.http.Query;
 
 public interface WeatherService {
     @GET("forecast/{api_key}/{latitude},{longitude}?units=si")
     Call<WeatherData> getWeatherData(@Path("api_key") String api_key,
                                      @Path("latitude") double latitude,
-                                     @Path("longitude") double longitude);
+                                     @Path("longitude") double longitude,
+                                     @Query("exclude") String exclude);
 
     class Daily implements java.io.Serializable {
         public String summary;
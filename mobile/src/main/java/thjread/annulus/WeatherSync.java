@@ -1,12 +1,12 @@
 package thjread.annulus;
 
 import android.content.ContentUris;
+import android.content.Context;
 import android.location.Location;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.support.annotation.NonNull;
-import android.text.format.DateUtils;
 import android.util.Log;
 import android.database.Cursor;
 import android.net.Uri;
@@ -14,51 +14,73 @@ import android.net.Uri;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
 import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 import com.google.android.gms.location.LocationServices;
-import com.squareup.okhttp.OkHttpClient;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-
-import retrofit.Call;
-import retrofit.GsonConverterFactory;
-import retrofit.Response;
-import retrofit.Retrofit;
-
-class CalendarData implements java.io.Serializable {
-    private static final long serialVersionUID = 1L;
-
-    public String title;
-    public long begin;
-    public long end;
-}
-
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects {@link PhoneSync} to the device: messages from the watch, the GoogleApiClient its
+ * replies go out through, location, the calendar provider, the warm state file and
+ * {@link RefreshService}.
+ */
 public class WeatherSync extends WearableListenerService implements GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener, MessageApi.MessageListener {
 
-    private static final String WEATHER_PATH = "/annulus/weather_data";
-    private static final String CALENDAR_PATH = "/annulus/calendar_data";
     private static final String TAG = "thjread.annulus";
 
+    /**
+     * Process-wide so the numbers survive the service being recreated for each message.
+     */
+    static final SyncStats sStats = new SyncStats();
+    static final EnergyLedger sEnergy = new EnergyLedger(EnergyLedger.PHONE_CPU_MA);
+    private static final ExecutorService sStreams =
+            Executors.newSingleThreadExecutor(SyncExecutor.threadFactory("sync-stream"));
+    private static final WarmState sWarm = new WarmState(sStats);
+    private static PhoneSync sSync = null;
+    /**
+     * The client of the running service instance, which replies go out through, or null.
+     */
+    private static volatile GoogleApiClient sClient = null;
+    private static String sWatchSummary = null;
+
+    private static final long CHANNEL_TIMEOUT_MS = 10 * 1000;
+    private static final long CONNECT_TIMEOUT_MS = 10 * 1000;
+
     private GoogleApiClient mGoogleApiClient;
-    private String mNodeId = null;
-    private boolean processingWeatherMessage = false;//TODO
-    private boolean processingCalendarMessage = false;//TODO
 
-    private static String key;
+    /**
+     * The process's sync logic, created on first use.
+     */
+    static synchronized PhoneSync sync(Context context) {
+        if (sSync == null) {
+            Context app = context.getApplicationContext();
+            sSync = new PhoneSync(new Transport(), new AndroidDevice(app), Clock.SYSTEM, sStats, sEnergy,
+                    new SyncExecutor(sStats), new WeatherFetcher(sStats, sEnergy),
+                    app.getResources().getString(R.string.forecast_api_key));
+        }
+        return sSync;
+    }
 
     @Override
     public void onCreate() {
-        key = getResources().getString(R.string.forecast_api_key);
-
         mGoogleApiClient = new GoogleApiClient.Builder(this)
                 .addApi(Wearable.API)
                 .addApi(LocationServices.API)
@@ -66,6 +88,7 @@ public class WeatherSync extends WearableListenerService implements GoogleApiCli
                 .addOnConnectionFailedListener(this)
                 .useDefaultAccount()
                 .build();
+        sClient = mGoogleApiClient;
 
         Log.d(TAG, "Created");
 
@@ -76,9 +99,24 @@ public class WeatherSync extends WearableListenerService implements GoogleApiCli
     public void onConnected(Bundle connectionHint) {
         Log.d(TAG, "Connected to Google Api Service");
         Wearable.MessageApi.addListener(mGoogleApiClient, this);
+        LocationTracker.start(this, mGoogleApiClient);
 
-        WeatherSyncTask task = new WeatherSyncTask();
-        task.execute();
+        // Bring the forecast up to date before the watch asks. Requests arriving meanwhile
+        // don't wait for it.
+        sync(this).refresh();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mGoogleApiClient.isConnected()) {
+            Wearable.MessageApi.removeListener(mGoogleApiClient, this);
+        }
+        mGoogleApiClient.disconnect();
+        if (sClient == mGoogleApiClient) {
+            sClient = null;
+        }
+        Log.d(TAG, "Destroyed");
+        super.onDestroy();
     }
 
     @Override
@@ -92,21 +130,36 @@ public class WeatherSync extends WearableListenerService implements GoogleApiCli
 
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
-        if (messageEvent.getPath().equals(WEATHER_PATH) && !processingWeatherMessage) {//TODO
-            Log.d(TAG, "Weather message received");
-            mNodeId = messageEvent.getSourceNodeId();
-            WeatherSyncTask task = new WeatherSyncTask();
-            processingWeatherMessage = true;
-            task.execute();
-        } else if (messageEvent.getPath().equals(CALENDAR_PATH) && !processingCalendarMessage) {//TODO
-            Log.d(TAG, "Calendar message received");
-            mNodeId = messageEvent.getSourceNodeId();
-            CalendarSyncTask task = new CalendarSyncTask();
-            processingCalendarMessage = true;
-            task.execute();
+        if (messageEvent.getPath().equals(SyncProtocol.SYNC_PATH)) {
+            SyncProtocol.Request request = SyncProtocol.decodeRequest(messageEvent.getData());
+            Log.d(TAG, "Sync message received");
+            sync(this).onRequest(messageEvent.getSourceNodeId(), request);
+        } else if (messageEvent.getPath().equals(SyncProtocol.STATS_PATH)) {
+            sWatchSummary = new String(messageEvent.getData(), java.nio.charset.Charset.forName("UTF-8"));
+            Log.i(TAG, "Phone sync stats:\n" + sStats.summary());
+            Log.i(TAG, "Phone energy:\n" + sEnergy.summary());
+            Log.i(TAG, "Watch sync stats:\n" + sWatchSummary);
         }
     }
 
+    /**
+     * Sync telemetry for both ends, via
+     * {@code adb shell dumpsys activity service thjread.annulus/.WeatherSync}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Phone sync stats:");
+        writer.print(sStats.summary(SyncStats.RING_SIZE));
+        Prefetcher prefetcher = sync(this).prefetcher();
+        long requests = prefetcher.hits() + prefetcher.misses();
+        writer.println(String.format(Locale.US,
+                "Prefetch: %d of %d watch requests hit the cache, %d prefetches wasted",
+                prefetcher.hits(), requests, prefetcher.wasted()));
+        writer.print(sEnergy.summary());
+        writer.println("Watch sync stats:");
+        writer.println(sWatchSummary != null ? sWatchSummary : "(none received)");
+    }
+
     @Override
     public void onPeerConnected(Node peer) {
         Log.d(TAG, "Peer connected: " + peer.getDisplayName());
@@ -117,170 +170,240 @@ public class WeatherSync extends WearableListenerService implements GoogleApiCli
         Log.d(TAG, "Peer disconnected: " + peer.getDisplayName());
     }
 
-    private byte[] convertToBytes(Object object) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutput out = new ObjectOutputStream(bos)) {
-            out.writeObject(object);
-            return bos.toByteArray();
-        }
+    /**
+     * Brings the forecast up to date from a {@link RefreshService} task, counting down done
+     * once the refresh has finished.
+     */
+    static void refresh(Context context, CountDownLatch done) {
+        sync(context).refresh(done);
     }
 
-    private class WeatherSyncTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            if (mGoogleApiClient.isConnected()) {
-                getWeatherData();
-
-                byte[] data;
-                try {
-                    data = convertToBytes(weatherData);
-                } catch (IOException e) {
-                    Log.e(TAG, "Weather data conversion to bytes failed");
-                    processingWeatherMessage = false;
-                    return null;
-                }
+    /**
+     * Like {@link #refresh}, but for the prefetch {@link PhoneSync} scheduled.
+     */
+    static void prefetch(Context context, CountDownLatch done) {
+        sync(context).prefetch(done);
+    }
 
-                if (data != null) {
-                    Wearable.MessageApi.sendMessage(mGoogleApiClient, mNodeId,
-                            WEATHER_PATH, data).setResultCallback(
-                            new ResultCallback<MessageApi.SendMessageResult>() {
-                                @Override
-                                public void onResult(@NonNull MessageApi.SendMessageResult result) {
-                                    Log.d(TAG, "Sent weather message");
-                                    processingWeatherMessage = false;
-                                }
-                            }
-                    );
-                } else {
-                    processingWeatherMessage = false;
-                }
+    /**
+     * Sends through the running service instance's client. Envelopes too big for the
+     * MessageApi are streamed over a channel on a dedicated thread.
+     */
+    private static class Transport implements SyncTransport {
+        @Override
+        public boolean send(String nodeId, String path, byte[] data, final Callback callback) {
+            GoogleApiClient client = client();
+            if (client == null) {
+                return false;
             }
-            return null;
+            Wearable.MessageApi.sendMessage(client, nodeId, path, data).setResultCallback(
+                    new ResultCallback<MessageApi.SendMessageResult>() {
+                        @Override
+                        public void onResult(@NonNull MessageApi.SendMessageResult result) {
+                            Log.d(TAG, "Sent sync message");
+                            callback.onResult(result.getStatus().isSuccess());
+                        }
+                    }
+            );
+            return true;
         }
-    }
-
-    private ArrayList<CalendarData> calendarData;
 
-    private class CalendarSyncTask extends AsyncTask<Void, Void, Void> {
         @Override
-        protected Void doInBackground(Void... params) {
-            if (mGoogleApiClient.isConnected()) {
-                getCalendarData();
-
-                byte data[];
-                try {
-                    data = convertToBytes(calendarData);
-                } catch (IOException e) {
-                    Log.e(TAG, "Calendar data conversion to bytes failed");
-                    Log.e(TAG, e.getMessage());
-                    processingCalendarMessage = false;
-                    return null;
-                }
+        public boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                                      Callback callback) {
+            GoogleApiClient client = client();
+            if (client == null) {
+                return false;
+            }
+            sStreams.execute(new ChannelWriter(client, nodeId, requestId, sections, callback));
+            return true;
+        }
 
-                if (data != null) {
-                    Wearable.MessageApi.sendMessage(mGoogleApiClient, mNodeId,
-                            CALENDAR_PATH, data).setResultCallback(
-                            new ResultCallback<MessageApi.SendMessageResult>() {
-                                @Override
-                                public void onResult(@NonNull MessageApi.SendMessageResult result) {
-                                    Log.d(TAG, "Sent calendar message");
-                                    processingCalendarMessage = false;
-                                }
-                            }
-                    );
-                } else {
-                    processingCalendarMessage = false;
-                }
+        /**
+         * The running instance's client once connected, or null.
+         */
+        private static GoogleApiClient client() {
+            GoogleApiClient client = sClient;
+            if (client == null || (!client.isConnected() && !client.blockingConnect(
+                    CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccess())) {
+                return null;
             }
-            return null;
+            return client;
         }
     }
 
-    private Location mLastLocation = null;
-    private WeatherService.WeatherData weatherData = null;
+    /**
+     * Streams an envelope to a node over a channel. Only the output side is closed once the
+     * envelope is written; the watch closes the channel when it has read it.
+     */
+    private static class ChannelWriter implements Runnable {
+        private final GoogleApiClient mClient;
+        private final String mNodeId;
+        private final long mRequestId;
+        private final List<SyncProtocol.Section> mSections;
+        private final SyncTransport.Callback mCallback;
+
+        ChannelWriter(GoogleApiClient client, String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                      SyncTransport.Callback callback) {
+            mClient = client;
+            mNodeId = nodeId;
+            mRequestId = requestId;
+            mSections = sections;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            ChannelApi.OpenChannelResult open = Wearable.ChannelApi.openChannel(mClient, mNodeId,
+                    SyncProtocol.SYNC_PATH).await(CHANNEL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!open.getStatus().isSuccess() || open.getChannel() == null) {
+                failed();
+                return;
+            }
+            Channel channel = open.getChannel();
+            Channel.GetOutputStreamResult result = channel.getOutputStream(mClient)
+                    .await(CHANNEL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess() || result.getOutputStream() == null) {
+                failed();
+                channel.close(mClient);
+                return;
+            }
+            try (OutputStream out = result.getOutputStream()) {
+                SyncProtocol.writeEnvelope(out, mRequestId, mSections);
+            } catch (IOException e) {
+                Log.e(TAG, "Streaming sync reply failed");
+                failed();
+                channel.close(mClient);
+                return;
+            }
+            Log.d(TAG, "Streamed sync reply");
+            sStats.event("sync.streamed", mRequestId);
+            sStats.record("sync.stream_ms", mRequestId, SystemClock.elapsedRealtime() - start);
+            mCallback.onResult(true);
+        }
 
-    private WeatherService.WeatherData getWeatherData() {
-        OkHttpClient client = new OkHttpClient();
+        private void failed() {
+            sStats.event("sync.stream_failed", mRequestId);
+            mCallback.onResult(false);
+        }
+    }
 
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl("https://api.forecast.io/")
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(client)
-                .build();
+    /**
+     * Location from {@link LocationTracker}, the calendar provider, the warm state file and
+     * {@link RefreshService}.
+     */
+    private static class AndroidDevice implements PhoneSync.Device {
+        private final Context mContext;
 
-        WeatherService service = retrofit.create(WeatherService.class);
+        AndroidDevice(Context context) {
+            mContext = context;
+        }
 
-        Location l = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
-        if (l != null) {
-            mLastLocation = l;
+        @Override
+        public double[] location(long requestId) {
+            Location location = LocationTracker.current();
+            GoogleApiClient client = sClient;
+            if (location == null && client != null && client.isConnected()) {
+                // No update has arrived in this process yet; use the fused provider's cached fix
+                location = LocationServices.FusedLocationApi.getLastLocation(client);
+                sStats.event(location != null ? "location.last_known" : "location.none", requestId);
+                LocationTracker.update(location);
+            }
+            if (location == null) {
+                return null;
+            }
+            sStats.record("location.age_ms", requestId, System.currentTimeMillis() - location.getTime());
+            return new double[]{location.getLatitude(), location.getLongitude()};
         }
-        if (mLastLocation == null) {
-            return weatherData;
+
+        @Override
+        public void schedulePrefetch(long at, long now) {
+            RefreshService.schedulePrefetch(mContext, at, now);
         }
 
-        Call call = service.getWeatherData(key, mLastLocation.getLatitude(), mLastLocation.getLongitude());
-        try {
-            Response<WeatherService.WeatherData> r = call.execute();
-            WeatherService.WeatherData data = r.body();
-            if (data != null) {
-                weatherData = data;
+        /**
+         * Also puts back the saved location fix, if there is none yet.
+         */
+        @Override
+        public WarmState.State loadWarmState() {
+            WarmState.State state = sWarm.load(mContext);
+            if (state != null && state.locationTime != 0 && LocationTracker.current() == null) {
+                Location location = new Location("warm");
+                location.setLatitude(state.latitude);
+                location.setLongitude(state.longitude);
+                location.setAccuracy(state.accuracy);
+                location.setTime(state.locationTime);
+                LocationTracker.update(location);
             }
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
+            if (state != null) {
+                Log.d(TAG, "Warm state restored");
+            }
+            return state;
         }
 
-        return weatherData;
-    }
+        @Override
+        public void saveWarmState(WarmState.State state) {
+            Location location = LocationTracker.current();
+            if (location != null) {
+                state.locationTime = location.getTime();
+                state.latitude = location.getLatitude();
+                state.longitude = location.getLongitude();
+                state.accuracy = location.getAccuracy();
+            }
+            sWarm.save(mContext, state);
+        }
 
-    private ArrayList<CalendarData> getCalendarData() {
-        final String[] INSTANCE_PROJECTION = new String[] {
-                CalendarContract.Instances.EVENT_ID,      // 0
-                CalendarContract.Instances.BEGIN,         // 1
-                CalendarContract.Instances.END,          // 2
-                CalendarContract.Instances.TITLE,   // 3
-                CalendarContract.Instances.ALL_DAY      // 4
-        };
-
-        Uri.Builder builder = CalendarContract.Instances.CONTENT_URI.buildUpon();
-        long begin = System.currentTimeMillis();
-        ContentUris.appendId(builder, begin);
-        ContentUris.appendId(builder, begin+ DateUtils.DAY_IN_MILLIS);
-
-        /*final Cursor cursor = getContentResolver().query(builder.build(),
-                INSTANCE_PROJECTION,
-                null,
-                null,
-                null);*/
-        final Cursor cursor = CalendarContract.Instances.query(getContentResolver(),
-                INSTANCE_PROJECTION,
-                begin,
-                begin+DateUtils.DAY_IN_MILLIS);
-
-        ArrayList<CalendarData> data = new ArrayList<CalendarData>();
-
-        while (cursor.moveToNext()) {
-            if (!cursor.getString(4).equals("1")) {//if not all day event
-                CalendarData d = new CalendarData();
-
-                d.begin = cursor.getLong(1);
-                d.end = cursor.getLong(2);
-                d.title = cursor.getString(3);
-                int bIndex = d.title.indexOf('(');
-                if (bIndex != -1) {
-                    int b2Index = d.title.indexOf(')', bIndex);
-                    if (b2Index != -1) {
-                        d.title = d.title.substring(bIndex+1, b2Index);
+        @Override
+        public CalendarHorizon queryCalendar(long now) {
+            final String[] INSTANCE_PROJECTION = new String[] {
+                    CalendarContract.Instances.EVENT_ID,      // 0
+                    CalendarContract.Instances.BEGIN,         // 1
+                    CalendarContract.Instances.END,          // 2
+                    CalendarContract.Instances.TITLE,   // 3
+                    CalendarContract.Instances.ALL_DAY      // 4
+            };
+
+            Uri.Builder builder = CalendarContract.Instances.CONTENT_URI.buildUpon();
+            long span[] = CalendarHorizon.span(now, TimeZone.getDefault());
+            long begin = span[0];
+            ContentUris.appendId(builder, begin);
+            ContentUris.appendId(builder, span[1]);
+
+            /*final Cursor cursor = getContentResolver().query(builder.build(),
+                    INSTANCE_PROJECTION,
+                    null,
+                    null,
+                    null);*/
+            final Cursor cursor = CalendarContract.Instances.query(mContext.getContentResolver(),
+                    INSTANCE_PROJECTION,
+                    begin,
+                    span[1]);
+
+            ArrayList<CalendarData> data = new ArrayList<CalendarData>();
+
+            while (cursor.moveToNext()) {
+                if (!cursor.getString(4).equals("1")) {//if not all day event
+                    CalendarData d = new CalendarData();
+
+                    d.begin = cursor.getLong(1);
+                    d.end = cursor.getLong(2);
+                    d.title = cursor.getString(3);
+                    int bIndex = d.title.indexOf('(');
+                    if (bIndex != -1) {
+                        int b2Index = d.title.indexOf(')', bIndex);
+                        if (b2Index != -1) {
+                            d.title = d.title.substring(bIndex+1, b2Index);
+                        }
                     }
+                    data.add(d);
                 }
-                data.add(d);
             }
-        }
 
-        cursor.close();
+            cursor.close();
 
-        calendarData = data;
-        Log.d(TAG, "Calendar data stored");
-
-        return calendarData;
+            Log.d(TAG, "Calendar data stored");
+            return new CalendarHorizon(span[0], span[1], data);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class CalendarHorizonTest {
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long MIDNIGHT_UTC = 1499990400 * 1000L;
+
+    private static CalendarData event(String title, long begin, long end) {
+        CalendarData c = new CalendarData();
+        c.title = title;
+        c.begin = begin;
+        c.end = end;
+        return c;
+    }
+
+    @Test
+    public void spanIsStableThroughTheDay() {
+        TimeZone london = TimeZone.getTimeZone("Europe/London");
+        // local midnight is 23:00 UTC in July
+        long[] morning = CalendarHorizon.span(MIDNIGHT_UTC + 8 * HOUR, london);
+        long[] evening = CalendarHorizon.span(MIDNIGHT_UTC + 22 * HOUR, london);
+        assertArrayEquals(morning, evening);
+        assertEquals(MIDNIGHT_UTC - HOUR, morning[0]);
+        assertEquals(MIDNIGHT_UTC + 23 * HOUR + CalendarHorizon.AHEAD_MS, morning[1]);
+
+        long[] tomorrow = CalendarHorizon.span(MIDNIGHT_UTC + 23 * HOUR, london);
+        assertEquals(MIDNIGHT_UTC + 23 * HOUR, tomorrow[0]);
+    }
+
+    @Test
+    public void roundTripAndSlide() throws Exception {
+        ArrayList<CalendarData> events = new ArrayList<>();
+        events.add(event("Standup", MIDNIGHT_UTC + 9 * HOUR, MIDNIGHT_UTC + 10 * HOUR));
+        events.add(event("Dentist", MIDNIGHT_UTC + 30 * HOUR, MIDNIGHT_UTC + 31 * HOUR));
+        CalendarHorizon horizon = new CalendarHorizon(MIDNIGHT_UTC, MIDNIGHT_UTC + 96 * HOUR, events);
+
+        byte[] body = CalendarHorizon.encode(horizon);
+        CalendarHorizon d = CalendarHorizon.read(new DataInputStream(new ByteArrayInputStream(body)));
+        assertEquals(horizon.from, d.from);
+        assertEquals(horizon.until, d.until);
+        assertEquals(2, d.events.size());
+        assertEquals("Dentist", d.events.get(1).title);
+
+        assertEquals(1, d.during(MIDNIGHT_UTC + 9 * HOUR + 30 * 60 * 1000, MIDNIGHT_UTC + 11 * HOUR).size());
+        d.advance(MIDNIGHT_UTC + 12 * HOUR);
+        assertEquals(1, d.events.size());
+        assertEquals(1, d.during(MIDNIGHT_UTC + 30 * HOUR, MIDNIGHT_UTC + 31 * HOUR).size());
+        // beyond the horizon nothing is known
+        assertFalse(d.covers(MIDNIGHT_UTC + 97 * HOUR));
+        assertEquals(0, d.during(MIDNIGHT_UTC + 95 * HOUR, MIDNIGHT_UTC + 97 * HOUR).size());
+
+        assertNull(CalendarHorizon.read(new DataInputStream(new ByteArrayInputStream(
+                CalendarHorizon.encode(null)))));
+    }
+}
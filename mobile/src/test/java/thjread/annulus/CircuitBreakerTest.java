@@ -0,0 +1,71 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+    private static final long BASE = 1000;
+    private static final long MAX = 8000;
+
+    private final CircuitBreaker mBreaker = new CircuitBreaker(BASE, MAX, new Random(1));
+
+    @Test
+    public void backoffDoublesWithJitter() {
+        long now = 0;
+        for (int f = 1; f <= 6; ++f) {
+            assertTrue(mBreaker.allow(now));
+            mBreaker.onFailure(now);
+            long delay = Math.min(BASE << (f - 1), MAX);
+            long wait = mBreaker.retryAt() - now;
+            assertTrue("wait " + wait + " after " + f, wait >= delay / 2 && wait <= delay);
+            assertFalse(mBreaker.allow(mBreaker.retryAt() - 1));
+            now = mBreaker.retryAt();
+        }
+    }
+
+    @Test
+    public void opensAfterThresholdAndProbesOnce() {
+        long now = 0;
+        for (int f = 1; f < CircuitBreaker.FAILURE_THRESHOLD; ++f) {
+            mBreaker.onFailure(now);
+            assertEquals(CircuitBreaker.BACKING_OFF, mBreaker.state());
+            now = mBreaker.retryAt();
+            assertTrue(mBreaker.allow(now));
+            assertTrue(mBreaker.allow(now));
+        }
+        mBreaker.onFailure(now);
+        assertEquals(CircuitBreaker.OPEN, mBreaker.state());
+
+        now = mBreaker.retryAt();
+        assertTrue(mBreaker.allow(now));
+        assertFalse(mBreaker.allow(now));
+        mBreaker.onFailure(now);
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD + 1, mBreaker.failures());
+
+        now = mBreaker.retryAt();
+        assertTrue(mBreaker.allow(now));
+        mBreaker.onSuccess();
+        assertEquals(CircuitBreaker.CLOSED, mBreaker.state());
+        assertEquals(0, mBreaker.retryAt());
+        assertTrue(mBreaker.allow(now));
+        assertTrue(mBreaker.allow(now));
+    }
+
+    @Test
+    public void releasedProbeIsNotCounted() {
+        long now = 0;
+        for (int f = 0; f < CircuitBreaker.FAILURE_THRESHOLD; ++f) {
+            mBreaker.onFailure(now);
+        }
+        now = mBreaker.retryAt();
+        assertTrue(mBreaker.allow(now));
+        assertFalse(mBreaker.allow(now));
+        mBreaker.release();
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mBreaker.failures());
+        assertEquals(now, mBreaker.retryAt());
+        assertTrue(mBreaker.allow(now));
+    }
+}
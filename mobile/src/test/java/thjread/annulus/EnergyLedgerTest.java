@@ -0,0 +1,43 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class EnergyLedgerTest {
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final long MIDNIGHT = 1499990400 * 1000L;
+
+    @Test
+    public void totalsBySubsystem() {
+        EnergyLedger ledger = new EnergyLedger(EnergyLedger.PHONE_CPU_MA, TimeZone.getTimeZone("UTC"));
+        ledger.fetch(MIDNIGHT);
+        ledger.message("sync", 2048, MIDNIGHT + 1);
+        ledger.cpu("calendar", 500 * 1000 * 1000, MIDNIGHT + 2);
+
+        assertEquals(EnergyLedger.FETCH_MAS, ledger.today("weather"), 1e-9);
+        assertEquals(EnergyLedger.MESSAGE_MAS + 2 * EnergyLedger.MESSAGE_KB_MAS, ledger.today("sync"), 1e-9);
+        assertEquals(EnergyLedger.PHONE_CPU_MA / 2, ledger.today("calendar"), 1e-9);
+        assertEquals(ledger.today("weather") + ledger.today("sync") + ledger.today("calendar"),
+                ledger.today(null), 1e-9);
+        assertEquals(0, ledger.today("location"), 1e-9);
+        assertTrue(ledger.summary().contains("weather 1200.0 mAs in 1 events"));
+    }
+
+    @Test
+    public void rollsOverAtLocalMidnight() {
+        // UTC+1 in July
+        EnergyLedger ledger = new EnergyLedger(EnergyLedger.WATCH_CPU_MA, TimeZone.getTimeZone("Europe/London"));
+        ledger.wakeup("timer", MIDNIGHT - 2 * 60 * 60 * 1000);
+        ledger.wakeup("timer", MIDNIGHT - 30 * 60 * 1000);
+        assertEquals(EnergyLedger.WAKEUP_MAS, ledger.today("timer"), 1e-9);
+        assertEquals(EnergyLedger.WAKEUP_MAS, ledger.yesterday("timer"), 1e-9);
+
+        // a day with nothing charged leaves yesterday empty
+        ledger.wakeup("timer", MIDNIGHT + 2 * DAY);
+        assertEquals(EnergyLedger.WAKEUP_MAS, ledger.today("timer"), 1e-9);
+        assertEquals(0, ledger.yesterday(null), 1e-9);
+    }
+}
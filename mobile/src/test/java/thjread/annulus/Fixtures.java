@@ -0,0 +1,60 @@
+package thjread.annulus;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Test data: a full forecast.io response (61 minutely, 49 hourly and 8 daily points) as the
+ * phone receives it, and a calendar.
+ */
+class Fixtures {
+    static String forecastJson() throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/forecast.json")) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bos.write(buffer, 0, n);
+            }
+            return new String(bos.toByteArray(), Charset.forName("UTF-8"));
+        }
+    }
+
+    static WeatherService.WeatherData forecast() throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/forecast.json")) {
+            return new Gson().fromJson(new InputStreamReader(in, Charset.forName("UTF-8")),
+                    WeatherService.WeatherData.class);
+        }
+    }
+
+    /**
+     * A calendar horizon with events an hour apart from its start, each with a title.
+     */
+    static CalendarHorizon calendar(int events) {
+        long start = 1499990400000L;
+        ArrayList<CalendarData> data = new ArrayList<>();
+        for (int i = 0; i < events; ++i) {
+            CalendarData c = new CalendarData();
+            c.title = "Meeting " + i;
+            c.begin = start + i * 3600000L;
+            c.end = c.begin + 1800000L;
+            data.add(c);
+        }
+        return new CalendarHorizon(start, start + CalendarHorizon.AHEAD_MS, data);
+    }
+
+    static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,307 @@
+package thjread.annulus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes {@link ForecastAdapters} from the fields of the {@link WeatherService} model, in
+ * the order Gson's reflective adapters see them. ForecastAdaptersTest checks the checked-in
+ * file against this; after changing the model, run main from the repository root or the
+ * mobile module to regenerate it.
+ *
+ * Handles the field types the model uses: Integer, Double, String, the model classes and
+ * lists of those.
+ */
+class ForecastAdapterGenerator {
+    static final String PATH = "src/main/java/thjread/annulus/ForecastAdapters.java";
+
+    /**
+     * Leaves before the classes that use them, so list adapters are built after their
+     * element adapters.
+     */
+    static final List<Class<?>> MODEL = Arrays.<Class<?>>asList(
+            WeatherService.Datum.class,
+            WeatherService.Minutely.class,
+            WeatherService.Hourly.class,
+            WeatherService.Daily.class,
+            WeatherService.Flags.class,
+            WeatherService.WeatherData.class);
+
+    public static void main(String[] args) throws IOException {
+        File file = file();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            out.write(generate());
+        }
+        System.out.println("Wrote " + file);
+    }
+
+    static File file() {
+        File file = new File(PATH);
+        return file.getParentFile().isDirectory() ? file : new File("mobile", PATH);
+    }
+
+    static String generate() {
+        StringBuilder s = new StringBuilder();
+        s.append("package thjread.annulus;\n"
+                + "\n"
+                + "import com.google.gson.Gson;\n"
+                + "import com.google.gson.JsonSyntaxException;\n"
+                + "import com.google.gson.TypeAdapter;\n"
+                + "import com.google.gson.TypeAdapterFactory;\n"
+                + "import com.google.gson.reflect.TypeToken;\n"
+                + "import com.google.gson.stream.JsonReader;\n"
+                + "import com.google.gson.stream.JsonToken;\n"
+                + "import com.google.gson.stream.JsonWriter;\n"
+                + "\n"
+                + "import java.io.IOException;\n"
+                + "import java.util.ArrayList;\n"
+                + "import java.util.List;\n"
+                + "\n"
+                + "/**\n"
+                + " * Gson adapters for the {@link WeatherService} model, so that decoding a forecast neither\n"
+                + " * builds adapters by reflection on first use nor sets each field reflectively. They read\n"
+                + " * and write the same JSON as Gson's reflective adapters: unknown names are skipped, null\n"
+                + " * values clear a field and missing ones leave its initial value.\n"
+                + " *\n"
+                + " * Generated by ForecastAdapterGenerator in the unit tests, which fail if this file no\n"
+                + " * longer matches the model. Don't edit it by hand.\n"
+                + " */\n"
+                + "class ForecastAdapters implements TypeAdapterFactory {\n"
+                + "    static final TypeAdapter<String> STRING = new TypeAdapter<String>() {\n"
+                + "        @Override\n"
+                + "        public void write(JsonWriter out, String value) throws IOException {\n"
+                + "            out.value(value);\n"
+                + "        }\n"
+                + "\n"
+                + "        @Override\n"
+                + "        public String read(JsonReader in) throws IOException {\n"
+                + "            return readString(in);\n"
+                + "        }\n"
+                + "    };\n");
+        for (Class<?> c : MODEL) {
+            s.append(String.format("    static final TypeAdapter<%s> %s = new %sAdapter();\n",
+                    name(c), constant(c), c.getSimpleName()));
+        }
+        List<String> lists = new ArrayList<>();
+        for (Class<?> c : MODEL) {
+            for (Field f : fields(c)) {
+                Type element = listElement(f);
+                if (element != null && !lists.contains(constant((Class<?>) element))) {
+                    Class<?> e = (Class<?>) element;
+                    lists.add(constant(e));
+                    s.append(String.format("    static final TypeAdapter<List<%s>> %s_LIST = new ListAdapter<>(%s);\n",
+                            name(e), constant(e), constant(e)));
+                }
+            }
+        }
+
+        s.append("\n"
+                + "    @SuppressWarnings(\"unchecked\")\n"
+                + "    @Override\n"
+                + "    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {\n"
+                + "        Class<? super T> raw = type.getRawType();\n");
+        for (Class<?> c : MODEL) {
+            s.append(String.format("        if (raw == %s.class) {\n"
+                    + "            return (TypeAdapter<T>) %s;\n"
+                    + "        }\n", name(c), constant(c)));
+        }
+        s.append("        return null;\n"
+                + "    }\n");
+
+        for (Class<?> c : MODEL) {
+            adapter(s, c);
+        }
+
+        s.append("\n"
+                + "    private static class ListAdapter<E> extends TypeAdapter<List<E>> {\n"
+                + "        private final TypeAdapter<E> mElement;\n"
+                + "\n"
+                + "        ListAdapter(TypeAdapter<E> element) {\n"
+                + "            mElement = element;\n"
+                + "        }\n"
+                + "\n"
+                + "        @Override\n"
+                + "        public void write(JsonWriter out, List<E> value) throws IOException {\n"
+                + "            if (value == null) {\n"
+                + "                out.nullValue();\n"
+                + "                return;\n"
+                + "            }\n"
+                + "            out.beginArray();\n"
+                + "            for (E e : value) {\n"
+                + "                mElement.write(out, e);\n"
+                + "            }\n"
+                + "            out.endArray();\n"
+                + "        }\n"
+                + "\n"
+                + "        @Override\n"
+                + "        public List<E> read(JsonReader in) throws IOException {\n"
+                + "            if (in.peek() == JsonToken.NULL) {\n"
+                + "                in.nextNull();\n"
+                + "                return null;\n"
+                + "            }\n"
+                + "            List<E> list = new ArrayList<>();\n"
+                + "            in.beginArray();\n"
+                + "            while (in.hasNext()) {\n"
+                + "                list.add(mElement.read(in));\n"
+                + "            }\n"
+                + "            in.endArray();\n"
+                + "            return list;\n"
+                + "        }\n"
+                + "    }\n"
+                + "\n"
+                + "    private static Integer readInteger(JsonReader in) throws IOException {\n"
+                + "        if (in.peek() == JsonToken.NULL) {\n"
+                + "            in.nextNull();\n"
+                + "            return null;\n"
+                + "        }\n"
+                + "        try {\n"
+                + "            return in.nextInt();\n"
+                + "        } catch (NumberFormatException e) {\n"
+                + "            throw new JsonSyntaxException(e);\n"
+                + "        }\n"
+                + "    }\n"
+                + "\n"
+                + "    private static Double readDouble(JsonReader in) throws IOException {\n"
+                + "        if (in.peek() == JsonToken.NULL) {\n"
+                + "            in.nextNull();\n"
+                + "            return null;\n"
+                + "        }\n"
+                + "        return in.nextDouble();\n"
+                + "    }\n"
+                + "\n"
+                + "    private static String readString(JsonReader in) throws IOException {\n"
+                + "        JsonToken token = in.peek();\n"
+                + "        if (token == JsonToken.NULL) {\n"
+                + "            in.nextNull();\n"
+                + "            return null;\n"
+                + "        }\n"
+                + "        if (token == JsonToken.BOOLEAN) {\n"
+                + "            return Boolean.toString(in.nextBoolean());\n"
+                + "        }\n"
+                + "        return in.nextString();\n"
+                + "    }\n"
+                + "}\n");
+        return s.toString();
+    }
+
+    private static void adapter(StringBuilder s, Class<?> c) {
+        String name = name(c);
+        s.append(String.format("\n"
+                + "    private static class %sAdapter extends TypeAdapter<%s> {\n"
+                + "        @Override\n"
+                + "        public void write(JsonWriter out, %s value) throws IOException {\n"
+                + "            if (value == null) {\n"
+                + "                out.nullValue();\n"
+                + "                return;\n"
+                + "            }\n"
+                + "            out.beginObject();\n", c.getSimpleName(), name, name));
+        for (Field f : fields(c)) {
+            s.append(String.format("            out.name(\"%s\");\n", f.getName()));
+            Class<?> type = f.getType();
+            if (type == Integer.class || type == Double.class || type == String.class) {
+                s.append(String.format("            out.value(value.%s);\n", f.getName()));
+            } else {
+                s.append(String.format("            %s.write(out, value.%s);\n", adapterFor(f), f.getName()));
+            }
+        }
+        s.append(String.format("            out.endObject();\n"
+                + "        }\n"
+                + "\n"
+                + "        @Override\n"
+                + "        public %s read(JsonReader in) throws IOException {\n"
+                + "            if (in.peek() == JsonToken.NULL) {\n"
+                + "                in.nextNull();\n"
+                + "                return null;\n"
+                + "            }\n"
+                + "            %s value = new %s();\n"
+                + "            in.beginObject();\n"
+                + "            while (in.hasNext()) {\n"
+                + "                switch (in.nextName()) {\n", name, name, name));
+        for (Field f : fields(c)) {
+            Class<?> type = f.getType();
+            String read;
+            if (type == Integer.class) {
+                read = "readInteger(in)";
+            } else if (type == Double.class) {
+                read = "readDouble(in)";
+            } else if (type == String.class) {
+                read = "readString(in)";
+            } else {
+                read = adapterFor(f) + ".read(in)";
+            }
+            s.append(String.format("                    case \"%s\":\n"
+                    + "                        value.%s = %s;\n"
+                    + "                        break;\n", f.getName(), f.getName(), read));
+        }
+        s.append("                    default:\n"
+                + "                        in.skipValue();\n"
+                + "                }\n"
+                + "            }\n"
+                + "            in.endObject();\n"
+                + "            return value;\n"
+                + "        }\n"
+                + "    }\n");
+    }
+
+    /**
+     * The fields Gson serializes by default: all but static and transient ones.
+     */
+    private static List<Field> fields(Class<?> c) {
+        List<Field> fields = new ArrayList<>();
+        for (Field f : c.getDeclaredFields()) {
+            if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0 && !f.isSynthetic()) {
+                fields.add(f);
+            }
+        }
+        return fields;
+    }
+
+    private static String adapterFor(Field f) {
+        Type element = listElement(f);
+        if (element != null) {
+            return constant((Class<?>) element) + "_LIST";
+        }
+        if (MODEL.contains(f.getType())) {
+            return constant(f.getType());
+        }
+        throw new IllegalArgumentException("Unsupported field " + f);
+    }
+
+    /**
+     * The element type of a List field, or null if it isn't one.
+     */
+    private static Type listElement(Field f) {
+        if (f.getType() != List.class) {
+            return null;
+        }
+        Type element = ((ParameterizedType) f.getGenericType()).getActualTypeArguments()[0];
+        if (element != String.class && !MODEL.contains(element)) {
+            throw new IllegalArgumentException("Unsupported list " + f);
+        }
+        return element;
+    }
+
+    private static String name(Class<?> c) {
+        return c.getEnclosingClass() != null
+                ? c.getEnclosingClass().getSimpleName() + "." + c.getSimpleName() : c.getSimpleName();
+    }
+
+    /**
+     * WeatherData -> WEATHER_DATA.
+     */
+    private static String constant(Class<?> c) {
+        return c.getSimpleName().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,58 @@
+package thjread.annulus;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures what {@link ForecastAdapters} save when decoding the recorded forecast: the first
+ * decode with a new Gson, as a new service instance makes, and a decode with a warm one. Not
+ * run as part of the unit tests, whose timings would only be noise; run main to compare.
+ */
+class ForecastAdaptersBenchmark {
+    public static void main(String[] args) throws IOException {
+        String json = Fixtures.forecastJson();
+        long[] reflective = decodeTimes(json, false);
+        long[] generated = decodeTimes(json, true);
+        System.out.println(String.format(Locale.US, "first decode: %dus reflective, %dus generated",
+                reflective[0], generated[0]));
+        System.out.println(String.format(Locale.US, "steady decode: %dus reflective, %dus generated",
+                reflective[1], generated[1]));
+    }
+
+    private static Gson gson(boolean withAdapters) {
+        return withAdapters
+                ? new GsonBuilder().registerTypeAdapterFactory(new ForecastAdapters()).create()
+                : new Gson();
+    }
+
+    /**
+     * Median microseconds for the first decode with a new Gson and for a decode with a warm
+     * one.
+     */
+    static long[] decodeTimes(String json, boolean withAdapters) {
+        long first[] = new long[31];
+        for (int i = 0; i < first.length; ++i) {
+            Gson gson = gson(withAdapters);
+            long start = System.nanoTime();
+            gson.fromJson(json, WeatherService.WeatherData.class);
+            first[i] = (System.nanoTime() - start) / 1000;
+        }
+        Gson gson = gson(withAdapters);
+        long steady[] = new long[201];
+        for (int i = 0; i < 100; ++i) {
+            gson.fromJson(json, WeatherService.WeatherData.class);
+        }
+        for (int i = 0; i < steady.length; ++i) {
+            long start = System.nanoTime();
+            gson.fromJson(json, WeatherService.WeatherData.class);
+            steady[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(first);
+        Arrays.sort(steady);
+        return new long[]{first[first.length / 2], steady[steady.length / 2]};
+    }
+}
@@ -0,0 +1,75 @@
+package thjread.annulus;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class ForecastAdaptersTest {
+    private static Gson generated() {
+        return new GsonBuilder().registerTypeAdapterFactory(new ForecastAdapters()).create();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bos.write(buffer, 0, n);
+        }
+        return new String(bos.toByteArray(), Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void isUpToDate() throws IOException {
+        String checkedIn;
+        try (InputStream in = new FileInputStream(ForecastAdapterGenerator.file())) {
+            checkedIn = read(in);
+        }
+        assertEquals("ForecastAdapters.java doesn't match the model; run ForecastAdapterGenerator",
+                ForecastAdapterGenerator.generate(), checkedIn);
+    }
+
+    /**
+     * Decodes as the reflective adapters do, compared by writing both results reflectively.
+     */
+    private static void assertDecodesAlike(String json) {
+        Gson reflective = new Gson();
+        WeatherService.WeatherData expected = reflective.fromJson(json, WeatherService.WeatherData.class);
+        WeatherService.WeatherData actual = generated().fromJson(json, WeatherService.WeatherData.class);
+        assertEquals(reflective.toJson(expected), reflective.toJson(actual));
+        assertEquals(reflective.toJson(expected), generated().toJson(actual));
+    }
+
+    @Test
+    public void decodesLikeReflection() throws IOException {
+        assertDecodesAlike(Fixtures.forecastJson());
+        // numbers as strings, booleans as strings, nulls, unknown names and missing blocks
+        assertDecodesAlike("{\"latitude\":\"51.5\",\"offset\":1,\"currently\":{\"time\":\"1500000000\","
+                + "\"summary\":true,\"extra\":{\"a\":[1,{\"b\":null}]},\"precipIntensity\":null},"
+                + "\"minutely\":{},\"hourly\":{\"data\":null},\"daily\":{\"data\":[null,{\"time\":1}]},"
+                + "\"flags\":{\"sources\":[\"a\",null],\"units\":\"si\"}}");
+        assertNull(generated().fromJson("null", WeatherService.WeatherData.class));
+    }
+
+    /**
+     * A new Gson decodes its first forecast without building adapters by reflection. Compares
+     * medians, and the difference is many times over, so a loaded machine doesn't upset it;
+     * see ForecastAdaptersBenchmark for the figures.
+     */
+    @Test
+    public void firstDecodeIsCheaperThanReflection() throws IOException {
+        String json = Fixtures.forecastJson();
+        long reflective = ForecastAdaptersBenchmark.decodeTimes(json, false)[0];
+        long generated = ForecastAdaptersBenchmark.decodeTimes(json, true)[0];
+        assertTrue(generated + "us, reflective " + reflective + "us", generated < reflective);
+    }
+}
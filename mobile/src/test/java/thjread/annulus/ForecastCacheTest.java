@@ -0,0 +1,123 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ForecastCacheTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long START = 1500000000 * 1000L;
+
+    @Test
+    public void geohash() throws Exception {
+        assertEquals("u4pruy", ForecastCache.cell(57.64911, 10.40744));
+        assertEquals("ezs42", ForecastCache.cell(42.6, -5.6).substring(0, 5));
+        double centre[] = ForecastCache.centre("u4pruy");
+        assertEquals("u4pruy", ForecastCache.cell(centre[0], centre[1]));
+        assertEquals(57.6494, centre[0], 0.003);
+        assertEquals(10.4078, centre[1], 0.006);
+    }
+
+    @Test
+    public void sameCellSharesAForecast() throws Exception {
+        ForecastCache cache = new ForecastCache();
+        double centre[] = ForecastCache.centre(ForecastCache.cell(51.5007, -0.1246));
+        CachedForecast a = cache.get(centre[0] + 0.001, centre[1] - 0.002, START);
+        CachedForecast b = cache.get(centre[0] - 0.001, centre[1] + 0.002, START);
+        assertSame(a, b);
+        assertEquals(centre[0], a.latitude(), 0);
+        assertEquals(centre[1], a.longitude(), 0);
+        assertNotSame(a, cache.get(centre[0] + 0.05, centre[1], START));
+    }
+
+    @Test
+    public void expiredAndEvictedCellsStartAfresh() throws Exception {
+        ForecastCache cache = new ForecastCache();
+        CachedForecast home = cache.get(51.5007, -0.1246, START);
+        home.merge(Fixtures.forecast(), CachedForecast.ALL_BLOCKS, START);
+        assertSame(home, cache.get(51.5007, -0.1246, START + ForecastCache.TTL_MS - 1));
+        assertNotSame(home, cache.get(51.5007, -0.1246, START + ForecastCache.TTL_MS));
+
+        home = cache.get(51.5007, -0.1246, START);
+        home.merge(Fixtures.forecast(), CachedForecast.ALL_BLOCKS, START);
+        for (int i = 1; i < ForecastCache.MAX_CELLS; ++i) {
+            cache.get(51.5007 + i * 0.05, -0.1246, START);
+        }
+        // Touching home keeps it, so the next new cell evicts the oldest of the others
+        assertSame(home, cache.get(51.5007, -0.1246, START));
+        cache.get(52, -0.1246, START);
+        assertEquals(ForecastCache.MAX_CELLS, cache.size());
+        assertSame(home, cache.get(51.5007, -0.1246, START));
+    }
+
+    private static WeatherService.WeatherData dry(WeatherService.WeatherData w) {
+        w.currently.precipProbability = 0.0;
+        for (WeatherService.Datum d : w.minutely.data) {
+            d.precipProbability = 0.0;
+        }
+        for (WeatherService.Datum d : w.hourly.data) {
+            d.precipProbability = 0.0;
+        }
+        return w;
+    }
+
+    /**
+     * A dry working day of five-minute polls: at home, a half hour commute, at the office and
+     * back. Only moving into a cell should download a whole forecast, and at most every other
+     * poll should download anything.
+     */
+    @Test
+    public void commuteMostlyHitsTheCache() throws Exception {
+        double home[] = ForecastCache.centre(ForecastCache.cell(51.4613, -0.1156));
+        double office[] = ForecastCache.centre(ForecastCache.cell(51.5155, -0.0922));
+        WeatherService.WeatherData response = dry(Fixtures.forecast());
+        ForecastCache cache = new ForecastCache();
+        Random random = new Random(1);
+
+        long now = START;
+        int polls = 0;
+        int hits = 0;
+        int partial = 0;
+        int full = 0;
+        int segments[][] = {{0, 18}, {1, 6}, {2, 102}, {3, 6}, {0, 66}};
+        for (int[] segment : segments) {
+            for (int i = 0; i < segment[1]; ++i, now += 5 * MINUTE) {
+                double lat;
+                double lon;
+                if (segment[0] == 1 || segment[0] == 3) {
+                    double f = (double) i / segment[1];
+                    if (segment[0] == 3) {
+                        f = 1 - f;
+                    }
+                    lat = home[0] + (office[0] - home[0]) * f;
+                    lon = home[1] + (office[1] - home[1]) * f;
+                } else {
+                    double place[] = segment[0] == 0 ? home : office;
+                    // GPS wander of up to 100m
+                    lat = place[0] + (random.nextDouble() - 0.5) * 0.0018;
+                    lon = place[1] + (random.nextDouble() - 0.5) * 0.0028;
+                }
+                CachedForecast forecast = cache.get(lat, lon, now);
+                int blocks = RequestPlanner.plan(forecast, now);
+                polls++;
+                if (blocks == 0) {
+                    hits++;
+                } else {
+                    if (forecast.get() == null) {
+                        full++;
+                    } else {
+                        partial++;
+                    }
+                    forecast.merge(response, blocks, now);
+                }
+            }
+        }
+        String counts = String.format("%d polls, %d hits, %d partial, %d full", polls, hits, partial, full);
+        // Before, every poll downloaded a full forecast
+        assertTrue(counts, hits >= polls * 0.45);
+        assertTrue(counts, full <= 3 + 2 * 6);
+        assertTrue(counts, hits + partial >= polls * 0.9);
+    }
+}
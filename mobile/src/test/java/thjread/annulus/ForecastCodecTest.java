@@ -0,0 +1,154 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ForecastCodecTest {
+    private static WeatherService.WeatherData roundTrip(WeatherService.WeatherData w) throws Exception {
+        byte[] body = ForecastCodec.encodeWeather(w);
+        return ForecastCodec.readWeather(new DataInputStream(new ByteArrayInputStream(body)));
+    }
+
+    private static void assertSeries(List<WeatherService.Datum> expected, List<WeatherService.Datum> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).time, actual.get(i).time);
+        }
+    }
+
+    private static void assertIntensity(Double expected, Double actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else if (expected < ForecastCodec.MIN_INTENSITY / 2) {
+            assertEquals(0.0, actual, 0);
+        } else {
+            double clamped = Math.min(Math.max(expected, ForecastCodec.MIN_INTENSITY),
+                    ForecastCodec.MAX_INTENSITY);
+            assertEquals(clamped, actual, clamped * 0.017);
+        }
+    }
+
+    private static void assertFraction(Double expected, Double actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertEquals(expected, actual, 0.002 + 1e-9);
+        }
+    }
+
+    @Test
+    public void forecastRoundTripsWithinBounds() throws Exception {
+        WeatherService.WeatherData w = Fixtures.forecast();
+        WeatherService.WeatherData d = roundTrip(w);
+
+        assertEquals(w.latitude, d.latitude);
+        assertEquals(w.longitude, d.longitude);
+        assertEquals(w.currently.time, d.currently.time);
+        assertFraction(w.currently.precipProbability, d.currently.precipProbability);
+
+        assertSeries(w.minutely.data, d.minutely.data);
+        for (int i = 0; i < w.minutely.data.size(); ++i) {
+            WeatherService.Datum a = w.minutely.data.get(i);
+            WeatherService.Datum b = d.minutely.data.get(i);
+            assertIntensity(a.precipIntensity, b.precipIntensity);
+            assertFraction(a.precipProbability, b.precipProbability);
+        }
+        assertSeries(w.hourly.data, d.hourly.data);
+        for (int i = 0; i < w.hourly.data.size(); ++i) {
+            WeatherService.Datum a = w.hourly.data.get(i);
+            WeatherService.Datum b = d.hourly.data.get(i);
+            assertIntensity(a.precipIntensity, b.precipIntensity);
+            assertFraction(a.precipProbability, b.precipProbability);
+            assertFraction(a.cloudCover, b.cloudCover);
+        }
+        assertSeries(w.daily.data, d.daily.data);
+        for (int i = 0; i < w.daily.data.size(); ++i) {
+            assertEquals(w.daily.data.get(i).sunriseTime, d.daily.data.get(i).sunriseTime);
+            assertEquals(w.daily.data.get(i).sunsetTime, d.daily.data.get(i).sunsetTime);
+        }
+    }
+
+    @Test
+    public void intensityErrorIsBoundedOverTheWholeRange() throws Exception {
+        for (double v = 0; v < 40; v += 0.0007) {
+            assertIntensity(v, ForecastCodec.decodeIntensity(ForecastCodec.encodeIntensity(v)));
+        }
+        assertNull(ForecastCodec.decodeIntensity(ForecastCodec.encodeIntensity(null)));
+        assertNull(ForecastCodec.decodeFraction(ForecastCodec.encodeFraction(null)));
+    }
+
+    @Test
+    public void thresholdsAreNeverCrossed() throws Exception {
+        for (double threshold : new double[]{0.09, 0.12}) {
+            for (double v = threshold * 0.9; v < threshold * 1.1; v += threshold / 10000) {
+                double decoded = ForecastCodec.decodeIntensity(ForecastCodec.encodeIntensity(v));
+                assertEquals(v >= threshold, decoded >= threshold);
+            }
+        }
+    }
+
+    @Test
+    public void nullsSurvive() throws Exception {
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.hourly = new WeatherService.Hourly();
+        WeatherService.Datum datum = new WeatherService.Datum();
+        datum.time = 1500000000;
+        w.hourly.data.add(datum);
+        w.hourly.data.add(new WeatherService.Datum());
+
+        WeatherService.WeatherData d = roundTrip(w);
+        assertNull(d.latitude);
+        assertNull(d.currently);
+        assertNull(d.minutely);
+        assertNull(d.daily);
+        assertEquals(2, d.hourly.data.size());
+        assertEquals(Integer.valueOf(1500000000), d.hourly.data.get(0).time);
+        assertNull(d.hourly.data.get(0).precipIntensity);
+        assertNull(d.hourly.data.get(1).time);
+        assertNull(roundTrip(null));
+    }
+
+    /**
+     * The quantized forecast is smaller than the Java serialization it replaced, before and
+     * after deflate.
+     */
+    @Test
+    public void quantizedIsSmallerThanSerialized() throws Exception {
+        WeatherService.WeatherData w = Fixtures.forecast();
+        byte[] serialized = Fixtures.serialize(w);
+        byte[] body = ForecastCodec.encodeWeather(w);
+        byte[] deflatedSerialized = new PayloadCompressor().compress(SyncProtocol.SECTION_WEATHER, serialized);
+        byte[] deflatedBody = new PayloadCompressor().compress(SyncProtocol.SECTION_WEATHER, body);
+        int deflated = deflatedBody != null ? deflatedBody.length : body.length;
+
+        assertTrue(body.length * 8 < serialized.length);
+        assertTrue(deflated < deflatedSerialized.length);
+    }
+
+    @Test
+    public void calendarRoundTrip() throws Exception {
+        ArrayList<CalendarData> calendar = new ArrayList<>();
+        CalendarData c = new CalendarData();
+        c.title = "Lecture";
+        c.begin = 1500000000000L;
+        c.end = 1500003600000L;
+        calendar.add(c);
+        CalendarHorizon horizon = new CalendarHorizon(c.begin, c.end, calendar);
+
+        byte[] body = CalendarHorizon.encode(horizon);
+        CalendarHorizon decoded = CalendarHorizon.read(new DataInputStream(new ByteArrayInputStream(body)));
+        assertEquals(horizon.from, decoded.from);
+        assertEquals(horizon.until, decoded.until);
+        List<CalendarData> d = decoded.events;
+        assertEquals(1, d.size());
+        assertEquals("Lecture", d.get(0).title);
+        assertEquals(c.begin, d.get(0).begin);
+        assertEquals(c.end, d.get(0).end);
+    }
+}
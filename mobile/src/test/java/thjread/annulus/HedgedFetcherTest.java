@@ -0,0 +1,252 @@
+package thjread.annulus;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import retrofit.Call;
+import retrofit.Callback;
+import retrofit.Response;
+
+import static org.junit.Assert.*;
+
+public class HedgedFetcherTest {
+    private static final long FAIL = -1;
+    private static final long SLOW = 500;
+
+    private SyncStats mStats;
+    private WeatherService.WeatherData mForecast;
+
+    /**
+     * Answers after scripted latencies, taken in turn and repeated; {@link #FAIL} fails
+     * straight away. Counts the calls it was asked to cancel, and those of them that were
+     * {@link #SLOW}.
+     */
+    private class StubProvider implements ForecastProvider {
+        final String mName;
+        final long mScript[];
+        final CountDownLatch mFirstCancel = new CountDownLatch(1);
+        int mCalls = 0;
+        int mSlowCalls = 0;
+        int mCancelled = 0;
+        int mSlowCancelled = 0;
+
+        StubProvider(String name, long... script) {
+            mName = name;
+            mScript = script;
+        }
+
+        @Override
+        public String name() {
+            return mName;
+        }
+
+        @Override
+        public synchronized Call<WeatherService.WeatherData> newCall(String key, double latitude, double longitude,
+                                                                     String exclude, OkHttpClient client) {
+            long latency = mScript[mCalls++ % mScript.length];
+            if (latency == SLOW) {
+                mSlowCalls++;
+            }
+            return new StubCall(this, latency);
+        }
+
+        synchronized void cancelled(long latency) {
+            mCancelled++;
+            if (latency == SLOW) {
+                mSlowCancelled++;
+            }
+            mFirstCancel.countDown();
+        }
+    }
+
+    private class StubCall implements Call<WeatherService.WeatherData> {
+        final StubProvider mProvider;
+        final long mLatency;
+        final CountDownLatch mCancel = new CountDownLatch(1);
+
+        StubCall(StubProvider provider, long latency) {
+            mProvider = provider;
+            mLatency = latency;
+        }
+
+        @Override
+        public Response<WeatherService.WeatherData> execute() throws IOException {
+            if (mLatency == FAIL) {
+                throw new IOException("Scripted failure");
+            }
+            try {
+                if (mCancel.await(mLatency, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Canceled");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return Response.success(mForecast);
+        }
+
+        @Override
+        public void enqueue(Callback<WeatherService.WeatherData> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancel.getCount() > 0) {
+                mProvider.cancelled(mLatency);
+            }
+            mCancel.countDown();
+        }
+
+        @Override
+        public Call<WeatherService.WeatherData> clone() {
+            return new StubCall(mProvider, mLatency);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mStats = new SyncStats();
+        mForecast = Fixtures.forecast();
+    }
+
+    private static void warmUp(HedgedFetcher hedger, StubProvider provider, long latency) {
+        for (int i = 0; i < HedgedFetcher.SAMPLES; ++i) {
+            hedger.latency(provider).add(latency);
+        }
+    }
+
+    private static Response<WeatherService.WeatherData> fetch(HedgedFetcher hedger, long requestId)
+            throws IOException {
+        return hedger.newHedge("key", 0, 0, null, null, requestId).execute();
+    }
+
+    @Test
+    public void fastPrimaryIsNotHedged() throws Exception {
+        StubProvider a = new StubProvider("a", 5);
+        StubProvider b = new StubProvider("b", 5);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, a, b);
+        warmUp(hedger, a, 20);
+        warmUp(hedger, b, 30);
+
+        assertSame(mForecast, fetch(hedger, 1).body());
+        assertEquals(1, a.mCalls);
+        assertEquals(0, b.mCalls);
+        assertEquals(0, mStats.get("weather.hedged"));
+        assertEquals(1, mStats.get("weather.answered.a"));
+    }
+
+    @Test
+    public void slowPrimaryIsHedged() throws Exception {
+        StubProvider a = new StubProvider("a", 5000);
+        StubProvider b = new StubProvider("b", 30);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, a, b);
+        warmUp(hedger, a, 100);
+        warmUp(hedger, b, 200);
+        assertEquals(100, hedger.hedgeDelay(a));
+
+        assertSame(mForecast, fetch(hedger, 1).body());
+        assertEquals(1, mStats.get("weather.hedged"));
+        assertEquals(1, mStats.get("weather.answered.b"));
+        assertTrue(a.mFirstCancel.await(1, TimeUnit.SECONDS));
+        assertEquals(1, a.mCancelled);
+        assertEquals(0, mStats.get("weather.a.failed"));
+    }
+
+    @Test
+    public void failureFailsOverAndIsPenalised() throws Exception {
+        StubProvider a = new StubProvider("a", FAIL);
+        StubProvider b = new StubProvider("b", 10);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, a, b);
+
+        assertSame(mForecast, fetch(hedger, 1).body());
+        assertEquals(1, mStats.get("weather.failover"));
+        assertEquals(0, mStats.get("weather.hedged"));
+        assertTrue(hedger.latency(a).percentile(0.5) >= HedgedFetcher.DEFAULT_HEDGE_MS);
+    }
+
+    @Test(expected = IOException.class)
+    public void allFailing() throws Exception {
+        HedgedFetcher hedger = new HedgedFetcher(mStats, new StubProvider("a", FAIL), new StubProvider("b", FAIL));
+        fetch(hedger, 1);
+    }
+
+    @Test
+    public void fastestProviderIsAskedFirst() {
+        StubProvider a = new StubProvider("a", 10);
+        StubProvider b = new StubProvider("b", 10);
+        StubProvider c = new StubProvider("c", 10);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, a, b, c);
+        warmUp(hedger, a, 300);
+        warmUp(hedger, b, 100);
+        assertArrayEquals(new ForecastProvider[]{c, b, a}, hedger.ranked());
+        warmUp(hedger, c, 200);
+        assertArrayEquals(new ForecastProvider[]{b, c, a}, hedger.ranked());
+    }
+
+    /**
+     * A provider answering in 5ms, except for one request in 50 which is {@link #SLOW}.
+     */
+    private static long[] tailScript() {
+        long script[] = new long[50];
+        for (int i = 0; i < script.length; ++i) {
+            script[i] = i == 25 ? SLOW : 5;
+        }
+        return script;
+    }
+
+    private void fetchAll(HedgedFetcher hedger, int requests) throws Exception {
+        for (int i = 0; i < requests; ++i) {
+            assertNotNull(fetch(hedger, i).body());
+        }
+    }
+
+    /**
+     * A slow call is only cancelled once another has answered, so no request waited on one.
+     */
+    @Test
+    public void hedgingCutsTailLatency() throws Exception {
+        StubProvider a = new StubProvider("a", tailScript());
+        StubProvider b = new StubProvider("b", 15);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, a, b);
+        warmUp(hedger, a, 5);
+        warmUp(hedger, b, 15);
+        fetchAll(hedger, 100);
+        assertEquals(2, a.mSlowCalls);
+        assertEquals(2, a.mSlowCancelled);
+        assertTrue(mStats.get("weather.hedged") >= 2);
+        assertTrue(mStats.get("weather.hedged") <= 10);
+    }
+
+    @Test
+    public void hedgingOneEndpointCutsTailLatency() throws Exception {
+        StubProvider a = new StubProvider("a", tailScript());
+        HedgedFetcher hedger = new HedgedFetcher(mStats, 2, a);
+        warmUp(hedger, a, 5);
+        fetchAll(hedger, 100);
+        assertTrue(a.mSlowCalls >= 2);
+        assertEquals(a.mSlowCalls, a.mSlowCancelled);
+        assertTrue(mStats.get("weather.hedged") >= 2);
+        assertTrue(mStats.get("weather.hedged") <= 10);
+        assertEquals(100 + mStats.get("weather.hedged"), a.mCalls);
+    }
+
+    @Test
+    public void oneEndpointIsNotRetriedAfterFailure() throws Exception {
+        StubProvider a = new StubProvider("a", FAIL, 10);
+        HedgedFetcher hedger = new HedgedFetcher(mStats, 2, a);
+        try {
+            fetch(hedger, 1);
+            fail();
+        } catch (IOException e) {
+            // left to the circuit breaker
+        }
+        assertEquals(1, a.mCalls);
+        assertEquals(0, mStats.get("weather.failover"));
+    }
+}
@@ -0,0 +1,90 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class PayloadCacheTest {
+    /**
+     * Encodes calendars, counting how often it is asked to.
+     */
+    private static class CountingEncoder implements PayloadCache.Encoder {
+        int calls = 0;
+
+        @Override
+        public byte[] encode(Object snapshot) {
+            calls++;
+            return CalendarHorizon.encode((CalendarHorizon) snapshot);
+        }
+    }
+
+    private static CalendarHorizon calendar(int events) {
+        ArrayList<CalendarData> data = new ArrayList<>();
+        for (int i = 0; i < events; ++i) {
+            CalendarData c = new CalendarData();
+            c.title = "Meeting " + i;
+            c.begin = 1500000000000L + i * 3600000L;
+            c.end = c.begin + 1800000L;
+            data.add(c);
+        }
+        return new CalendarHorizon(1499990400000L, 1499990400000L + 96 * 3600000L, data);
+    }
+
+    @Test
+    public void encodesEachSnapshotOnce() {
+        SyncStats stats = new SyncStats();
+        PayloadCache cache = new PayloadCache(stats, new PayloadCompressor());
+        CountingEncoder encoder = new CountingEncoder();
+        CalendarHorizon snapshot = calendar(40);
+
+        SyncProtocol.Section first = cache.get(SyncProtocol.SECTION_CALENDAR, snapshot, encoder, "calendar", 1);
+        assertTrue(first.isCompressed());
+        // repeated polls, other watches and retries
+        for (int i = 0; i < 10; ++i) {
+            assertSame(first, cache.get(SyncProtocol.SECTION_CALENDAR, snapshot, encoder, "calendar", 2 + i));
+        }
+        assertEquals(1, encoder.calls);
+        assertEquals(10, stats.get("payload.calendar.hit"));
+        assertEquals(1, stats.get("payload.calendar.encoded"));
+        assertSame(first, cache.latest(SyncProtocol.SECTION_CALENDAR));
+    }
+
+    @Test
+    public void keepsCompressedSectionForEqualSnapshot() {
+        SyncStats stats = new SyncStats();
+        PayloadCache cache = new PayloadCache(stats, new PayloadCompressor());
+        CountingEncoder encoder = new CountingEncoder();
+
+        SyncProtocol.Section first = cache.get(SyncProtocol.SECTION_CALENDAR, calendar(40), encoder, "calendar", 1);
+        // a fresh query of an unchanged calendar
+        assertSame(first, cache.get(SyncProtocol.SECTION_CALENDAR, calendar(40), encoder, "calendar", 2));
+        assertEquals(1, stats.get("payload.calendar.unchanged"));
+        assertEquals(1, stats.get("payload.calendar.encoded"));
+
+        SyncProtocol.Section changed = cache.get(SyncProtocol.SECTION_CALENDAR, calendar(41), encoder, "calendar", 3);
+        assertNotEquals(first.version, changed.version);
+        assertEquals(2, stats.get("payload.calendar.encoded"));
+        assertNull(cache.get(SyncProtocol.SECTION_CALENDAR, null, encoder, "calendar", 4));
+    }
+
+    @Test
+    public void restoredSectionServesItsSnapshot() {
+        SyncStats stats = new SyncStats();
+        PayloadCache cache = new PayloadCache(stats, new PayloadCompressor());
+        CountingEncoder encoder = new CountingEncoder();
+        CalendarHorizon snapshot = calendar(5);
+        SyncProtocol.Section saved = SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR,
+                CalendarHorizon.encode(snapshot));
+
+        cache.restore(SyncProtocol.SECTION_CALENDAR, snapshot, saved);
+        assertSame(saved, cache.get(SyncProtocol.SECTION_CALENDAR, snapshot, encoder, "calendar", 1));
+        assertEquals(0, encoder.calls);
+
+        // something encoded since isn't replaced
+        SyncProtocol.Section newer = cache.get(SyncProtocol.SECTION_CALENDAR, calendar(6), encoder, "calendar", 2);
+        cache.restore(SyncProtocol.SECTION_CALENDAR, snapshot, saved);
+        assertSame(newer, cache.latest(SyncProtocol.SECTION_CALENDAR));
+    }
+}
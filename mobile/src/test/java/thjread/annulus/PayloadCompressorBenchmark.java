@@ -0,0 +1,56 @@
+package thjread.annulus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures {@link PayloadCompressor} on the sections the phone sends: how much the recorded
+ * forecast and a busy calendar shrink, and the CPU cost of compressing them on the phone and
+ * inflating them on the watch. Not run as part of the unit tests; run main for the figures.
+ */
+class PayloadCompressorBenchmark {
+    private static final int ITERATIONS = 50;
+
+    public static void main(String[] args) throws IOException {
+        report("forecast", SyncProtocol.SECTION_WEATHER, ForecastCodec.encodeWeather(Fixtures.forecast()));
+        report("calendar", SyncProtocol.SECTION_CALENDAR, CalendarHorizon.encode(Fixtures.calendar(40)));
+    }
+
+    private static void report(String name, int type, byte[] body) throws IOException {
+        byte[] compressed = new PayloadCompressor().compress(type, body);
+        long[] costs = costs(type, body);
+        System.out.println(String.format(Locale.US, "%s: %d -> %d bytes (%.0f%%), compress %dus, inflate %dus",
+                name, body.length, compressed != null ? compressed.length : body.length,
+                compressed != null ? 100f * compressed.length / body.length : 100f, costs[0], costs[1]));
+    }
+
+    /**
+     * Median microseconds to compress a body, and to inflate the result, over batches of
+     * calls after a warm-up.
+     */
+    static long[] costs(int type, byte[] body) throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        long compress[] = new long[11];
+        long inflate[] = new long[11];
+        for (int batch = -3; batch < compress.length; ++batch) {
+            byte[] compressed = null;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                compressed = compressor.compress(type, body);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                compressor.inflate(compressed);
+            }
+            long t2 = System.nanoTime();
+            if (batch >= 0) {
+                compress[batch] = (t1 - t0) / ITERATIONS / 1000;
+                inflate[batch] = (t2 - t1) / ITERATIONS / 1000;
+            }
+        }
+        Arrays.sort(compress);
+        Arrays.sort(inflate);
+        return new long[]{compress[compress.length / 2], inflate[inflate.length / 2]};
+    }
+}
@@ -0,0 +1,91 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] body = Fixtures.serialize(Fixtures.forecast());
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] compressed = compressor.compress(SyncProtocol.SECTION_WEATHER, body);
+        assertNotNull(compressed);
+        assertArrayEquals(body, readAll(compressor.inflate(compressed)));
+    }
+
+    @Test
+    public void smallBodiesAreSentAsIs() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        assertNull(compressor.compress(SyncProtocol.SECTION_CALENDAR, new byte[PayloadCompressor.MIN_SIZE - 1]));
+    }
+
+    @Test
+    public void incompressibleTypeIsOnlyProbed() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        assertNull(compressor.compress(SyncProtocol.SECTION_WEATHER, noise));
+
+        // Having learnt the type doesn't compress, it stops trying until the next probe
+        byte[] zeros = new byte[4096];
+        int skipped = 0;
+        while (compressor.compress(SyncProtocol.SECTION_WEATHER, zeros) == null) {
+            skipped++;
+            assertTrue(skipped < 100);
+        }
+        assertTrue(skipped > 0);
+        // Other section types are unaffected
+        assertNotNull(compressor.compress(SyncProtocol.SECTION_CALENDAR, zeros));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void corruptBodyIsRejected() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] compressed = compressor.compress(SyncProtocol.SECTION_WEATHER, new byte[4096]);
+        compressed[compressed.length / 2] ^= 0x55;
+        compressed[compressed.length - 1] ^= 0x55;
+        compressor.inflate(java.util.Arrays.copyOf(compressed, compressed.length - 2));
+    }
+
+    /**
+     * The sections the phone sends, the recorded forecast and a busy calendar, shrink by
+     * enough to be sent compressed and inflate back to the same bytes, both in one go and as
+     * streamed. PayloadCompressorBenchmark measures what that costs.
+     */
+    @Test
+    public void compressesTypicalSections() throws Exception {
+        assertCompresses(SyncProtocol.SECTION_WEATHER, ForecastCodec.encodeWeather(Fixtures.forecast()),
+                PayloadCompressor.MAX_RATIO);
+        assertCompresses(SyncProtocol.SECTION_CALENDAR, CalendarHorizon.encode(Fixtures.calendar(40)), 0.5f);
+    }
+
+    private static void assertCompresses(int type, byte[] body, float maxRatio) throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] compressed = compressor.compress(type, body);
+        assertNotNull(compressed);
+        assertTrue(compressed.length + " of " + body.length, compressed.length <= body.length * maxRatio);
+
+        ByteArrayInputStream inflated = compressor.inflate(compressed);
+        assertEquals(body.length, inflated.available());
+        assertArrayEquals(body, readAll(inflated));
+        try (InputStream streamed = PayloadCompressor.inflating(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(body, readAll(streamed));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package thjread.annulus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PrefetcherTest {
+    private static final long START = 1500000000 * 1000L;
+    private static final long MINUTE = 60 * 1000;
+    private static final long POLL_INTERVAL_MS = 5 * MINUTE;
+
+    private SyncStats mStats;
+    private Prefetcher mPrefetcher;
+
+    @Before
+    public void setUp() {
+        mStats = new SyncStats();
+        mPrefetcher = new Prefetcher(mStats);
+    }
+
+    private static WeatherService.WeatherData dry(WeatherService.WeatherData w) {
+        w.currently.precipProbability = 0.0;
+        for (WeatherService.Datum d : w.minutely.data) {
+            d.precipProbability = 0.0;
+        }
+        for (WeatherService.Datum d : w.hourly.data) {
+            d.precipProbability = 0.0;
+        }
+        return w;
+    }
+
+    private static WeatherService.Datum minute(long time, double probability) {
+        WeatherService.Datum d = new WeatherService.Datum();
+        d.time = (int) (time / 1000);
+        d.precipProbability = probability;
+        return d;
+    }
+
+    /**
+     * Eight hours of five-minute watch polls, give or take half a minute, against a cache
+     * that goes stale every ten minutes. With prefetching, the task runs halfway through
+     * its window.
+     */
+    private void simulate(boolean prefetch) throws Exception {
+        WeatherService.WeatherData response = dry(Fixtures.forecast());
+        CachedForecast cache = new CachedForecast(51.5, -0.13);
+        Random random = new Random(1);
+        long poll = START;
+        long alarm = 0;
+        long requestId = 1;
+        while (poll < START + 8 * 60 * MINUTE) {
+            long now;
+            int blocks;
+            if (prefetch && alarm != 0 && alarm + Prefetcher.WINDOW_MS / 2 < poll) {
+                now = alarm + Prefetcher.WINDOW_MS / 2;
+                blocks = RequestPlanner.plan(cache, Math.max(now, mPrefetcher.target()));
+                mPrefetcher.onPrefetch(blocks != 0);
+            } else {
+                now = poll;
+                blocks = RequestPlanner.plan(cache, now);
+                mPrefetcher.onWatchRequest(now, blocks == 0, requestId++);
+                poll += POLL_INTERVAL_MS + random.nextInt(60 * 1000) - 30 * 1000;
+            }
+            if (blocks != 0) {
+                cache.merge(response, blocks, now);
+            }
+            alarm = mPrefetcher.next(now, RequestPlanner.staleAt(cache, now), cache.get());
+        }
+    }
+
+    @Test
+    public void prefetchWarmsTheCache() throws Exception {
+        simulate(false);
+        long coldHits = mPrefetcher.hits();
+        long requests = coldHits + mPrefetcher.misses();
+
+        setUp();
+        simulate(true);
+        assertEquals(requests, mPrefetcher.hits() + mPrefetcher.misses());
+        String counts = String.format("%d -> %d of %d watch requests hit, %d of %d prefetches wasted",
+                coldHits, mPrefetcher.hits(), requests, mPrefetcher.wasted(), mStats.get("prefetch.downloaded"));
+        assertTrue(counts, coldHits < requests * 0.6);
+        assertTrue(counts, mPrefetcher.hits() > requests * 0.95);
+        assertTrue(counts, mPrefetcher.wasted() <= mStats.get("prefetch.downloaded") / 10);
+    }
+
+    @Test
+    public void learnsPollInterval() {
+        assertEquals(0, mPrefetcher.pollInterval());
+        mPrefetcher.onWatchRequest(START, false, 1);
+        mPrefetcher.onWatchRequest(START + 5 * MINUTE, true, 2);
+        mPrefetcher.onWatchRequest(START + 10 * MINUTE, true, 3);
+        assertEquals(5 * MINUTE, mPrefetcher.pollInterval());
+        assertEquals(Arrays.asList(START + 15 * MINUTE), mPrefetcher.demand(START + 11 * MINUTE, null));
+        assertEquals(START + 15 * MINUTE - Prefetcher.LEAD_MS,
+                mPrefetcher.next(START + 11 * MINUTE, START + 14 * MINUTE, null));
+        // Still fresh by then
+        assertEquals(0, mPrefetcher.next(START + 11 * MINUTE, START + 16 * MINUTE, null));
+    }
+
+    @Test
+    public void prefetchesBeforeCalendarEvents() {
+        CalendarData meeting = new CalendarData();
+        meeting.begin = START + 60 * MINUTE;
+        CalendarData earlier = new CalendarData();
+        earlier.begin = START - 60 * MINUTE;
+        mPrefetcher.onCalendar(new ArrayList<>(Arrays.asList(meeting, earlier)));
+        assertEquals(meeting.begin - Prefetcher.EVENT_LEAD_MS - Prefetcher.LEAD_MS,
+                mPrefetcher.next(START, START + 10 * MINUTE, null));
+    }
+
+    @Test
+    public void prefetchesBeforeRainStarts() {
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.minutely = new WeatherService.Minutely();
+        for (int i = 0; i <= 60; ++i) {
+            w.minutely.data.add(minute(START + i * MINUTE, i < 25 ? 0.0 : 0.8));
+        }
+        assertEquals(START + 25 * MINUTE, Prefetcher.rainStart(w, START));
+        assertEquals(START + 23 * MINUTE, mPrefetcher.next(START, START + 10 * MINUTE, w));
+        // Already raining: nothing starts
+        assertEquals(0, Prefetcher.rainStart(w, START + 30 * MINUTE));
+    }
+}
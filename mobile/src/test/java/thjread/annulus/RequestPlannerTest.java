@@ -0,0 +1,177 @@
+package thjread.annulus;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import retrofit.GsonConverterFactory;
+import retrofit.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class RequestPlannerTest {
+    private static final double LATITUDE = 51.5074;
+    private static final double LONGITUDE = -0.1278;
+    private static final long START = 1500000000 * 1000L;
+    private static final long POLL_INTERVAL_MS = 15 * 60 * 1000;
+
+    private MockWebServer mServer;
+    private WeatherService mService;
+    private JsonObject mForecast;
+    private long mBytesServed;
+
+    /**
+     * Serves the recorded forecast without the blocks the request excludes, as forecast.io
+     * does.
+     */
+    private class ForecastDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String exclude = HttpUrl.parse("http://localhost" + request.getPath()).queryParameter("exclude");
+            JsonObject body = new JsonObject();
+            List<String> excluded = exclude != null ? Arrays.asList(exclude.split(",")) : Arrays.<String>asList();
+            for (java.util.Map.Entry<String, JsonElement> e : mForecast.entrySet()) {
+                if (!excluded.contains(e.getKey())) {
+                    body.add(e.getKey(), e.getValue());
+                }
+            }
+            String json = body.toString();
+            mBytesServed += json.length();
+            return new MockResponse().setBody(json);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mForecast = new JsonParser().parse(Fixtures.forecastJson()).getAsJsonObject();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new ForecastDispatcher());
+        mServer.start();
+        mService = new Retrofit.Builder()
+                .baseUrl(mServer.url("/").toString())
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+                .create(WeatherService.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    private void makeDry() {
+        for (String block : new String[]{"minutely", "hourly", "daily"}) {
+            for (JsonElement e : mForecast.getAsJsonObject(block).getAsJsonArray("data")) {
+                e.getAsJsonObject().addProperty("precipProbability", 0);
+                e.getAsJsonObject().addProperty("precipIntensity", 0);
+            }
+        }
+        mForecast.getAsJsonObject("currently").addProperty("precipProbability", 0);
+        mForecast.getAsJsonObject("currently").addProperty("precipIntensity", 0);
+    }
+
+    private WeatherService.WeatherData fetch(CachedForecast cache, int blocks, long now) throws Exception {
+        if (blocks == 0) {
+            return cache.get();
+        }
+        WeatherService.WeatherData data = mService.getWeatherData("key", LATITUDE, LONGITUDE,
+                blocks == -1 ? null : RequestPlanner.exclude(blocks)).execute().body();
+        return cache.merge(data, blocks == -1 ? CachedForecast.ALL_BLOCKS : blocks, now);
+    }
+
+    /**
+     * Bytes downloaded over four hours of polls, shaped or always fetching everything.
+     */
+    private long download(boolean shaped) throws Exception {
+        mBytesServed = 0;
+        CachedForecast cache = new CachedForecast(LATITUDE, LONGITUDE);
+        for (long now = START; now < START + 4 * 60 * 60 * 1000; now += POLL_INTERVAL_MS) {
+            WeatherService.WeatherData merged = fetch(cache,
+                    shaped ? RequestPlanner.plan(cache, now) : -1, now);
+            assertNotNull(merged.currently);
+            assertNotNull(merged.hourly);
+            assertEquals(49, merged.hourly.data.size());
+            assertNull(merged.daily);
+        }
+        return mBytesServed;
+    }
+
+    @Test
+    public void dryWeatherSkipsMinutely() throws Exception {
+        makeDry();
+        long full = download(false);
+        long shaped = download(true);
+        assertTrue(shaped + " of " + full, shaped < full * 0.5);
+    }
+
+    @Test
+    public void rainFetchesMinutelyEveryPoll() throws Exception {
+        long full = download(false);
+        long shaped = download(true);
+        assertTrue(shaped + " of " + full, shaped < full * 0.75);
+
+        CachedForecast cache = new CachedForecast(LATITUDE, LONGITUDE);
+        fetch(cache, CachedForecast.ALL_BLOCKS, START);
+        int blocks = RequestPlanner.plan(cache, START + POLL_INTERVAL_MS);
+        assertEquals(CachedForecast.BLOCK_CURRENTLY | CachedForecast.BLOCK_MINUTELY, blocks);
+    }
+
+    @Test
+    public void staleBlocksAreRefreshed() throws Exception {
+        makeDry();
+        CachedForecast cache = new CachedForecast(LATITUDE, LONGITUDE);
+        assertEquals(CachedForecast.ALL_BLOCKS, RequestPlanner.plan(cache, START));
+        fetch(cache, CachedForecast.ALL_BLOCKS, START);
+
+        assertEquals(0, RequestPlanner.plan(cache, START + 60 * 1000));
+        assertEquals(CachedForecast.BLOCK_CURRENTLY,
+                RequestPlanner.plan(cache, START + RequestPlanner.CURRENTLY_MAX_AGE_MS));
+        assertEquals(CachedForecast.BLOCK_CURRENTLY | CachedForecast.BLOCK_HOURLY,
+                RequestPlanner.plan(cache, START + RequestPlanner.HOURLY_MAX_AGE_MS));
+    }
+
+    @Test
+    public void mergeKeepsUnfetchedBlocks() throws Exception {
+        makeDry();
+        CachedForecast cache = new CachedForecast(LATITUDE, LONGITUDE);
+        WeatherService.WeatherData first = fetch(cache, CachedForecast.ALL_BLOCKS, START);
+        WeatherService.WeatherData second = fetch(cache, CachedForecast.BLOCK_CURRENTLY, START + 60 * 1000);
+        assertNotSame(first, second);
+        assertSame(first.hourly, second.hourly);
+        assertSame(first.minutely, second.minutely);
+        assertNotSame(first.currently, second.currently);
+        assertEquals(START + 60 * 1000, cache.fetchedAt(CachedForecast.BLOCK_CURRENTLY));
+        assertEquals(START, cache.fetchedAt(CachedForecast.BLOCK_HOURLY));
+    }
+
+    /**
+     * Dry weather leaves minutely unfetched; once currently is refreshed, the old minutely
+     * series mustn't go out dated by it.
+     */
+    @Test
+    public void mergeDropsStaleMinutely() throws Exception {
+        makeDry();
+        CachedForecast cache = new CachedForecast(LATITUDE, LONGITUDE);
+        WeatherService.WeatherData first = fetch(cache, CachedForecast.ALL_BLOCKS, START);
+        assertNotNull(first.minutely);
+        long now = START + RequestPlanner.CURRENTLY_MAX_AGE_MS;
+        int blocks = RequestPlanner.plan(cache, now);
+        assertEquals(CachedForecast.BLOCK_CURRENTLY, blocks);
+        WeatherService.WeatherData second = fetch(cache, blocks, now);
+        assertNull(second.minutely);
+        assertSame(first.hourly, second.hourly);
+        assertEquals(0, RequestPlanner.plan(cache, now + 60 * 1000));
+    }
+}
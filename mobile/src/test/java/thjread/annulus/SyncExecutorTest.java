@@ -0,0 +1,112 @@
+package thjread.annulus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SyncExecutorTest {
+    private final SyncExecutor executor = new SyncExecutor(new SyncStats());
+
+    private static class TestJob extends SyncExecutor.Job {
+        final long sleepMs;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger outcome = new AtomicInteger(-1);
+        final AtomicInteger finishCount = new AtomicInteger();
+
+        TestJob(long sleepMs) {
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        void run(long deadline) throws Exception {
+            started.countDown();
+            release.await(sleepMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void finish(int outcome) {
+            this.outcome.set(outcome);
+            finishCount.incrementAndGet();
+            finished.countDown();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void completes() throws Exception {
+        TestJob job = new TestJob(0);
+        executor.calendar.submit("query", job, 1000);
+        assertTrue(job.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.COMPLETED, job.outcome.get());
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        TestJob job = new TestJob(10000);
+        executor.weather.submit("fetch", job, 50);
+        assertTrue(job.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.TIMED_OUT, job.outcome.get());
+        Thread.sleep(50);
+        assertEquals(1, job.finishCount.get());
+    }
+
+    @Test
+    public void newerJobSupersedesQueuedOne() throws Exception {
+        TestJob busy = new TestJob(10000);
+        TestJob first = new TestJob(0);
+        TestJob second = new TestJob(0);
+        executor.weather.submit("refresh", busy, 10000);
+        assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+        executor.weather.submit("fetch", first, 10000);
+        executor.weather.submit("fetch", second, 10000);
+        busy.release.countDown();
+        assertTrue(second.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.SUPERSEDED, first.outcome.get());
+        assertEquals(1, first.started.getCount());
+        assertEquals(SyncExecutor.COMPLETED, second.outcome.get());
+    }
+
+    @Test
+    public void newerJobWaitsForRunningOne() throws Exception {
+        TestJob first = new TestJob(10000);
+        TestJob second = new TestJob(0);
+        executor.weather.submit("fetch", first, 10000);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+        executor.weather.submit("fetch", second, 10000);
+        assertEquals(1, second.finished.getCount());
+
+        first.release.countDown();
+        assertTrue(second.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.COMPLETED, first.outcome.get());
+        assertEquals(SyncExecutor.COALESCED, second.outcome.get());
+        assertEquals(1, second.started.getCount());
+
+        // and a job submitted after the running one finished runs again
+        TestJob third = new TestJob(0);
+        executor.weather.submit("fetch", third, 10000);
+        assertTrue(third.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.COMPLETED, third.outcome.get());
+    }
+
+    @Test
+    public void calendarLaneIsNotBlockedByWeather() throws Exception {
+        TestJob slowFetch = new TestJob(10000);
+        TestJob query = new TestJob(0);
+        executor.weather.submit("fetch", slowFetch, 10000);
+        executor.calendar.submit("query", query, 1000);
+        assertTrue(query.finished.await(1, TimeUnit.SECONDS));
+        assertEquals(SyncExecutor.COMPLETED, query.outcome.get());
+        assertEquals(-1, slowFetch.outcome.get());
+    }
+}
@@ -0,0 +1,176 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SyncFanOutTest {
+    private static final int BOTH = SyncProtocol.SECTION_WEATHER | SyncProtocol.SECTION_CALENDAR;
+
+    /**
+     * Stands in for the Wearable MessageApi: records the last envelope each node received.
+     */
+    private static class SimulatedTransport implements SyncFanOut.Sender {
+        final Map<String, Long> lastReply = new ConcurrentHashMap<>();
+        final Map<String, List<SyncProtocol.Section>> lastSections = new ConcurrentHashMap<>();
+        final AtomicInteger messages = new AtomicInteger();
+
+        @Override
+        public void send(String nodeId, long requestId, List<SyncProtocol.Section> sections) {
+            messages.incrementAndGet();
+            lastReply.put(nodeId, requestId);
+            lastSections.put(nodeId, sections);
+        }
+    }
+
+    private static SyncProtocol.Request request(long id, int sections) {
+        SyncProtocol.Request r = new SyncProtocol.Request();
+        r.requestId = id;
+        r.sections = sections;
+        return r;
+    }
+
+    private static SyncProtocol.Section section(int type, int size) {
+        return SyncProtocol.Section.of(type, new byte[size]);
+    }
+
+    @Test
+    public void singleNode() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport();
+        SyncFanOut fanOut = new SyncFanOut(transport, new SyncStats());
+
+        assertEquals(BOTH, fanOut.request("watch", request(1, BOTH)));
+        assertEquals(0, fanOut.request("watch", request(2, SyncProtocol.SECTION_WEATHER)));
+        fanOut.complete(SyncProtocol.SECTION_WEATHER, section(SyncProtocol.SECTION_WEATHER, 10));
+        assertEquals(0, transport.messages.get());
+        fanOut.complete(SyncProtocol.SECTION_CALENDAR, section(SyncProtocol.SECTION_CALENDAR, 10));
+
+        assertEquals(1, transport.messages.get());
+        assertEquals(Long.valueOf(2), transport.lastReply.get("watch"));
+        assertEquals(2, transport.lastSections.get("watch").size());
+        assertFalse(fanOut.isBusy());
+    }
+
+    @Test
+    public void laterRequestStartsMissingSection() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport();
+        SyncFanOut fanOut = new SyncFanOut(transport, new SyncStats());
+
+        assertEquals(SyncProtocol.SECTION_CALENDAR,
+                fanOut.request("a", request(1, SyncProtocol.SECTION_CALENDAR)));
+        assertEquals(SyncProtocol.SECTION_WEATHER, fanOut.request("b", request(2, BOTH)));
+        fanOut.complete(SyncProtocol.SECTION_CALENDAR, section(SyncProtocol.SECTION_CALENDAR, 10));
+        fanOut.complete(SyncProtocol.SECTION_WEATHER, section(SyncProtocol.SECTION_WEATHER, 10));
+
+        assertEquals(1, transport.lastSections.get("a").size());
+        assertEquals(2, transport.lastSections.get("b").size());
+    }
+
+    @Test
+    public void heldVersionIsNotResent() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport();
+        SyncFanOut fanOut = new SyncFanOut(transport, new SyncStats());
+        SyncProtocol.Section weather = section(SyncProtocol.SECTION_WEATHER, 100);
+
+        SyncProtocol.Request r = request(1, SyncProtocol.SECTION_WEATHER);
+        r.weatherVersion = weather.version;
+        fanOut.request("watch", r);
+        fanOut.complete(SyncProtocol.SECTION_WEATHER, weather);
+
+        SyncProtocol.Section sent = transport.lastSections.get("watch").get(0);
+        assertTrue(sent.isNotModified());
+        assertEquals(0, sent.body.length);
+    }
+
+    @Test
+    public void failedBurstSendsNothing() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport();
+        SyncFanOut fanOut = new SyncFanOut(transport, new SyncStats());
+
+        assertEquals(SyncProtocol.SECTION_WEATHER,
+                fanOut.request("a", request(1, SyncProtocol.SECTION_WEATHER)));
+        fanOut.request("b", request(2, SyncProtocol.SECTION_WEATHER));
+        fanOut.complete(SyncProtocol.SECTION_WEATHER, null);
+
+        assertEquals(0, transport.messages.get());
+        assertEquals(SyncProtocol.SECTION_WEATHER,
+                fanOut.request("a", request(3, SyncProtocol.SECTION_WEATHER)));
+    }
+
+    @Test
+    public void manyNodesShareFetches() throws Exception {
+        final int nodes = 500;
+        final int rounds = 20;
+        final SimulatedTransport transport = new SimulatedTransport();
+        final SyncFanOut fanOut = new SyncFanOut(transport, new SyncStats());
+        final AtomicInteger fetches = new AtomicInteger();
+        final ExecutorService weatherLane = Executors.newSingleThreadExecutor();
+        final ExecutorService calendarLane = Executors.newSingleThreadExecutor();
+        ExecutorService watches = Executors.newFixedThreadPool(8);
+
+        final CountDownLatch done = new CountDownLatch(nodes);
+        for (int n = 0; n < nodes; ++n) {
+            final int node = n;
+            watches.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < rounds; ++r) {
+                        long requestId = ((long) node << 32) | r;
+                        int start = fanOut.request("node" + node, request(requestId, BOTH));
+                        if ((start & SyncProtocol.SECTION_WEATHER) != 0) {
+                            weatherLane.execute(produce(fanOut, fetches, SyncProtocol.SECTION_WEATHER, 2));
+                        }
+                        if ((start & SyncProtocol.SECTION_CALENDAR) != 0) {
+                            calendarLane.execute(produce(fanOut, fetches, SyncProtocol.SECTION_CALENDAR, 0));
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        watches.shutdown();
+        // Drain: the last burst may still be in flight
+        weatherLane.shutdown();
+        calendarLane.shutdown();
+        assertTrue(weatherLane.awaitTermination(30, TimeUnit.SECONDS));
+        assertTrue(calendarLane.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertFalse(fanOut.isBusy());
+        assertEquals(nodes, transport.lastReply.size());
+        for (int n = 0; n < nodes; ++n) {
+            long id = transport.lastReply.get("node" + n);
+            assertEquals("reply routed to the wrong node", n, (int) (id >>> 32));
+            assertEquals("node missed its last request", rounds - 1, (int) id);
+            assertEquals(2, transport.lastSections.get("node" + n).size());
+        }
+        assertTrue("expected coalescing, got " + fetches.get() + " fetches",
+                fetches.get() < nodes * rounds / 10);
+        assertTrue(transport.messages.get() <= nodes * rounds);
+    }
+
+    private static Runnable produce(final SyncFanOut fanOut, final AtomicInteger fetches,
+                                    final int section, final long latencyMs) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fetches.incrementAndGet();
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                fanOut.complete(section, section(section, 64));
+            }
+        };
+    }
+}
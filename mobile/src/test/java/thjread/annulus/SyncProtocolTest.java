@@ -0,0 +1,172 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SyncProtocolTest {
+    @Test
+    public void requestRoundTrip() throws Exception {
+        SyncProtocol.Request r = new SyncProtocol.Request();
+        r.requestId = 0x123456789abcdefL;
+        r.sections = SyncProtocol.SECTION_CALENDAR;
+        r.weatherVersion = 7;
+        r.calendarVersion = -3;
+
+        SyncProtocol.Request d = SyncProtocol.decodeRequest(SyncProtocol.encodeRequest(r));
+        assertEquals(r.requestId, d.requestId);
+        assertEquals(r.sections, d.sections);
+        assertEquals(7, d.heldVersion(SyncProtocol.SECTION_WEATHER));
+        assertEquals(-3, d.heldVersion(SyncProtocol.SECTION_CALENDAR));
+    }
+
+    @Test
+    public void emptyRequestAsksForEverything() throws Exception {
+        SyncProtocol.Request d = SyncProtocol.decodeRequest(new byte[0]);
+        assertEquals(0, d.requestId);
+        assertEquals(SyncProtocol.SECTION_WEATHER | SyncProtocol.SECTION_CALENDAR, d.sections);
+    }
+
+    @Test
+    public void envelopeRoundTrip() throws Exception {
+        List<SyncProtocol.Section> sections = new ArrayList<>();
+        SyncProtocol.Section weather = SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER, new byte[]{1, 2, 3});
+        sections.add(weather);
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR, new byte[]{4}).notModified());
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_META, SyncProtocol.encodeMeta(10, 5, 2)));
+
+        SyncProtocol.Envelope e = SyncProtocol.decodeEnvelope(SyncProtocol.encodeEnvelope(42, sections));
+        assertEquals(42, e.requestId);
+        assertEquals(3, e.sections.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, e.get(SyncProtocol.SECTION_WEATHER).body);
+        assertEquals(weather.version, e.get(SyncProtocol.SECTION_WEATHER).version);
+        assertTrue(e.get(SyncProtocol.SECTION_CALENDAR).isNotModified());
+        assertArrayEquals(new long[]{10, 5, 2}, SyncProtocol.decodeMeta(e.get(SyncProtocol.SECTION_META).body));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void truncatedEnvelopeIsRejected() throws Exception {
+        List<SyncProtocol.Section> sections = new ArrayList<>();
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER, new byte[100]));
+        byte[] message = SyncProtocol.encodeEnvelope(1, sections);
+        SyncProtocol.decodeEnvelope(java.util.Arrays.copyOf(message, 50));
+    }
+
+    /**
+     * Hands out at most a few bytes per read, like a channel's stream as data trickles in.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        int consumed = 0;
+
+        TrickleInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consumed++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, Math.min(count, 7));
+            if (n > 0) {
+                consumed += n;
+            }
+            return n;
+        }
+    }
+
+    private static ArrayList<CalendarData> bigCalendar() {
+        ArrayList<CalendarData> calendar = new ArrayList<>();
+        for (int i = 0; i < 4000; ++i) {
+            CalendarData d = new CalendarData();
+            d.title = "Event number " + i + " in room " + (i * 7919 % 1000);
+            d.begin = 1500000000000L + i * 900000L;
+            d.end = d.begin + 1800000L;
+            calendar.add(d);
+        }
+        return calendar;
+    }
+
+    @Test
+    public void streamedEnvelopeMatchesMessage() throws Exception {
+        List<SyncProtocol.Section> sections = new ArrayList<>();
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER, new byte[]{1, 2, 3}));
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR, new byte[]{4}).notModified());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SyncProtocol.writeEnvelope(out, 42, sections);
+        assertArrayEquals(SyncProtocol.encodeEnvelope(42, sections), out.toByteArray());
+        assertEquals(out.size(), SyncProtocol.envelopeLength(sections));
+    }
+
+    @Test
+    public void streamedEnvelopeDecodesAsBytesArrive() throws Exception {
+        ArrayList<CalendarData> calendar = bigCalendar();
+        byte[] body = CalendarHorizon.encode(new CalendarHorizon(calendar.get(0).begin,
+                calendar.get(calendar.size() - 1).end, calendar));
+        List<SyncProtocol.Section> sections = new ArrayList<>();
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR, body).compress(new PayloadCompressor()));
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_META, SyncProtocol.encodeMeta(10, 5, 0)));
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER, new byte[SyncProtocol.MAX_MESSAGE_LENGTH]));
+        assertTrue(body.length > SyncProtocol.MAX_MESSAGE_LENGTH);
+        assertTrue(SyncProtocol.envelopeLength(sections) > SyncProtocol.MAX_MESSAGE_LENGTH);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SyncProtocol.writeEnvelope(out, 42, sections);
+        final TrickleInputStream stream = new TrickleInputStream(out.toByteArray());
+        final List<List<CalendarData>> decoded = new ArrayList<>();
+        final int consumedAtCalendar[] = new int[1];
+        // the weather body is left unread, and skipped
+        SyncProtocol.Envelope e = SyncProtocol.readEnvelope(stream, new SyncProtocol.SectionReader() {
+            @Override
+            public void read(long requestId, SyncProtocol.Section header, int length, InputStream body)
+                    throws IOException {
+                assertEquals(42, requestId);
+                if (header.type == SyncProtocol.SECTION_CALENDAR) {
+                    assertTrue(header.isCompressed());
+                    try (InputStream in = PayloadCompressor.inflating(body)) {
+                        decoded.add(CalendarHorizon.read(new DataInputStream(in)).events);
+                    }
+                    consumedAtCalendar[0] = stream.consumed;
+                }
+            }
+        });
+
+        assertEquals(3, e.sections.size());
+        assertEquals(SyncProtocol.SECTION_WEATHER, e.sections.get(2).type);
+        assertEquals(1, decoded.size());
+        assertEquals(calendar.size(), decoded.get(0).size());
+        assertEquals(calendar.get(3999).title, decoded.get(0).get(3999).title);
+        assertEquals(calendar.get(3999).end, decoded.get(0).get(3999).end);
+        // the calendar was decoded before the rest of the envelope had been read
+        assertTrue(consumedAtCalendar[0] < stream.consumed - SyncProtocol.MAX_MESSAGE_LENGTH);
+        assertEquals(out.size(), stream.consumed);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedStreamIsRejected() throws Exception {
+        List<SyncProtocol.Section> sections = new ArrayList<>();
+        sections.add(SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER, new byte[100]));
+        byte[] message = SyncProtocol.encodeEnvelope(1, sections);
+        SyncProtocol.readEnvelope(new ByteArrayInputStream(java.util.Arrays.copyOf(message, 50)),
+                new SyncProtocol.SectionReader() {
+                    @Override
+                    public void read(long requestId, SyncProtocol.Section header, int length, InputStream body) {
+                    }
+                });
+    }
+}
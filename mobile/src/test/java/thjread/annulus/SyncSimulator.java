@@ -0,0 +1,498 @@
+package thjread.annulus;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TimeZone;
+
+import retrofit.Call;
+import retrofit.Callback;
+import retrofit.Response;
+
+/**
+ * Runs the watch's {@link WatchSync} against the phone's {@link PhoneSync} over a simulated
+ * link, on a virtual clock, so that a day of use replays in well under a second.
+ *
+ * The link has a configurable one-way latency with jitter, a chance of losing each message
+ * and windows in which it is down. The phone runs its real sync logic on a
+ * {@link SyncExecutor#direct} executor, with forecasts from a simulated provider that takes
+ * {@link #fetchMs} to answer, prefetches when it asks to and, if {@link #phoneProcessMs} is
+ * set, has its process killed and started again from its {@link WarmState}. The watch wakes
+ * once a minute in ambient mode and once a second while the user is looking at it.
+ *
+ * Everything that crosses the link is counted, along with forecast downloads and the times
+ * the phone has to be woken to handle a message or prefetch, and each side's modelled
+ * energy is kept in an {@link EnergyLedger}.
+ */
+class SyncSimulator {
+    static final long START = 1499990400 * 1000L; // midnight
+    static final long SECOND = 1000;
+    static final long MINUTE = 60 * SECOND;
+    static final long HOUR = 60 * MINUTE;
+    static final long DAY = 24 * HOUR;
+
+    /**
+     * How long the phone's service stays up after handling a message; a message arriving
+     * later has to wake it again.
+     */
+    static final long PHONE_IDLE_MS = 10 * SECOND;
+
+    /**
+     * Time the watch spends in onDraw for a frame.
+     */
+    static final long FRAME_NANOS = 8 * 1000 * 1000;
+
+    static final double LATITUDE = 51.5;
+    static final double LONGITUDE = -0.12;
+
+    // Link
+    long latencyMs = 50;
+    long jitterMs = 20;
+    double loss = 0;
+    final List<long[]> outages = new ArrayList<>();
+
+    // Phone
+    long fetchMs = 800;
+    int calendarEvents = 8;
+    boolean prefetch = true;
+    /**
+     * How long the phone's process lives before it is killed, the next wakeup starting a new
+     * one; 0 if it is never killed.
+     */
+    long phoneProcessMs = 0;
+
+    // Watch
+    long glanceEveryMs = 15 * MINUTE;
+    long glanceMs = 5 * SECOND;
+    long awakeFrom = 7 * HOUR;
+    long awakeUntil = 23 * HOUR;
+
+    // Counters
+    int watchMessages = 0;
+    int phoneMessages = 0;
+    long watchBytes = 0;
+    long phoneBytes = 0;
+    int lost = 0;
+    int notConnected = 0;
+    int fetches = 0;
+    int phoneWakeups = 0;
+    int phoneProcesses = 0;
+    int streamed = 0;
+    int updates = 0;
+    final SyncStats stats = new SyncStats();
+    final SyncStats phoneStats = new SyncStats();
+    final EnergyLedger watchEnergy = new EnergyLedger(EnergyLedger.WATCH_CPU_MA, TimeZone.getTimeZone("UTC"));
+    final EnergyLedger phoneEnergy = new EnergyLedger(EnergyLedger.PHONE_CPU_MA, TimeZone.getTimeZone("UTC"));
+
+    private final Random mRandom = new Random(1);
+    final VirtualClock clock = new VirtualClock();
+    private final SyncExecutor mExecutor = SyncExecutor.direct(phoneStats);
+    private WatchSync mWatch;
+    private PhoneSync mPhone;
+
+    private long mPhoneStartedAt = 0;
+    private long mPhoneAwakeUntil = -1;
+    /**
+     * Virtual time the phone has spent on the message or prefetch in hand, which its replies
+     * go out after.
+     */
+    private long mPhoneBusyMs = 0;
+    private int mPrefetchSeq = 0;
+    private byte[] mWarmState = null;
+
+    /**
+     * A clock whose time only moves when the simulation does.
+     */
+    static class VirtualClock implements Clock {
+        private static class Event implements Comparable<Event> {
+            final long at;
+            final long seq;
+            final Runnable action;
+
+            Event(long at, long seq, Runnable action) {
+                this.at = at;
+                this.seq = seq;
+                this.action = action;
+            }
+
+            @Override
+            public int compareTo(Event o) {
+                return at != o.at ? Long.compare(at, o.at) : Long.compare(seq, o.seq);
+            }
+        }
+
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+        private long mNow = 0;
+        private long mSeq = 0;
+
+        @Override
+        public long currentTimeMillis() {
+            return START + mNow;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+
+        void schedule(long delay, Runnable action) {
+            mEvents.add(new Event(mNow + delay, mSeq++, action));
+        }
+
+        void runUntil(long until) {
+            while (!mEvents.isEmpty() && mEvents.peek().at <= until) {
+                Event e = mEvents.poll();
+                mNow = e.at;
+                e.action.run();
+            }
+            mNow = until;
+        }
+    }
+
+    /**
+     * Takes the link down from elapsed time from until to.
+     */
+    void outage(long from, long to) {
+        outages.add(new long[]{from, to});
+    }
+
+    private boolean linkUp() {
+        for (long[] o : outages) {
+            if (clock.elapsedRealtime() >= o[0] && clock.elapsedRealtime() < o[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long delay() {
+        return latencyMs + (jitterMs > 0 ? (long) (mRandom.nextDouble() * jitterMs) : 0);
+    }
+
+    /**
+     * Replays the given time from midnight and returns this, for its counters.
+     */
+    SyncSimulator run(long duration) {
+        mWatch = new WatchSync(new WatchTransport(), clock, stats, watchEnergy, new WatchSync.Listener() {
+            @Override
+            public void onRequestSent(long requestId) {
+            }
+
+            @Override
+            public void onRequestFailed(long requestId) {
+            }
+
+            @Override
+            public void onReply(long requestId) {
+            }
+
+            @Override
+            public void onDataChanged() {
+                updates++;
+            }
+        });
+        mWatch.request();
+        for (long t = MINUTE; t < duration; t += MINUTE) {
+            clock.runUntil(t);
+            watchEnergy.wakeup("timer", clock.currentTimeMillis());
+            watchEnergy.frame(FRAME_NANOS, clock.currentTimeMillis());
+            mWatch.check(true, false);
+            long day = t % DAY;
+            if (day >= awakeFrom && day < awakeUntil && (day - awakeFrom) % glanceEveryMs == 0) {
+                for (long s = 0; s < glanceMs; s += SECOND) {
+                    clock.runUntil(t + s);
+                    watchEnergy.frame(FRAME_NANOS, clock.currentTimeMillis());
+                    mWatch.check(false, false);
+                }
+            }
+        }
+        clock.runUntil(duration);
+        return this;
+    }
+
+    WatchSync watch() {
+        return mWatch;
+    }
+
+    PhoneSync phone() {
+        return mPhone;
+    }
+
+    private class WatchTransport implements SyncTransport {
+        @Override
+        public boolean send(String nodeId, String path, final byte[] data, final Callback callback) {
+            if (!linkUp()) {
+                notConnected++;
+                return false;
+            }
+            watchMessages++;
+            watchBytes += data.length;
+            final boolean delivered = mRandom.nextDouble() >= loss;
+            if (!delivered) {
+                lost++;
+            }
+            final boolean isSync = path.equals(SyncProtocol.SYNC_PATH);
+            clock.schedule(delay(), new Runnable() {
+                @Override
+                public void run() {
+                    if (delivered && isSync) {
+                        onPhoneMessage(data);
+                    }
+                    clock.schedule(delay(), new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(delivered);
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                                      Callback callback) {
+            return false;
+        }
+    }
+
+    private class PhoneTransport implements SyncTransport {
+        @Override
+        public boolean send(String nodeId, String path, byte[] data, Callback callback) {
+            if (data.length > SyncProtocol.MAX_MESSAGE_LENGTH) {
+                throw new AssertionError(data.length + " byte message");
+            }
+            return deliver(data, false, callback);
+        }
+
+        @Override
+        public boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                                      Callback callback) {
+            ByteArrayOutputStream channel = new ByteArrayOutputStream();
+            try {
+                SyncProtocol.writeEnvelope(channel, requestId, sections);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return deliver(channel.toByteArray(), true, callback);
+        }
+
+        private boolean deliver(final byte[] data, final boolean stream, final Callback callback) {
+            if (!linkUp()) {
+                return false;
+            }
+            phoneMessages++;
+            phoneBytes += data.length;
+            final boolean delivered = mRandom.nextDouble() >= loss;
+            if (!delivered) {
+                lost++;
+            }
+            clock.schedule(mPhoneBusyMs + delay(), new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(delivered);
+                    if (!delivered) {
+                        return;
+                    }
+                    if (stream) {
+                        streamed++;
+                        WatchSync.Reply reply = mWatch.read(new ByteArrayInputStream(data));
+                        if (reply != null) {
+                            mWatch.apply(reply);
+                        }
+                    } else {
+                        mWatch.onMessage(data);
+                    }
+                }
+            });
+            return true;
+        }
+    }
+
+    private class SimulatedDevice implements PhoneSync.Device {
+        @Override
+        public double[] location(long requestId) {
+            return new double[]{LATITUDE, LONGITUDE};
+        }
+
+        /**
+         * Events hourly from 9am over the next two days, as many as calendarEvents, those in
+         * the span the phone would query now.
+         */
+        @Override
+        public CalendarHorizon queryCalendar(long now) {
+            long span[] = CalendarHorizon.span(now, TimeZone.getTimeZone("UTC"));
+            ArrayList<CalendarData> calendar = new ArrayList<>();
+            for (int i = 0; i < calendarEvents; ++i) {
+                CalendarData d = new CalendarData();
+                d.title = "Event " + Long.toHexString(i * 0x9E3779B97F4A7C15L);
+                d.begin = START + 9 * HOUR + (i % 48) * HOUR;
+                d.end = d.begin + 30 * MINUTE;
+                if (d.begin < span[1] && d.end > span[0]) {
+                    calendar.add(d);
+                }
+            }
+            return new CalendarHorizon(span[0], span[1], calendar);
+        }
+
+        /**
+         * Runs the prefetch in the middle of its window, like a network-constrained task
+         * would on a connected phone.
+         */
+        @Override
+        public void schedulePrefetch(long at, long now) {
+            final int seq = ++mPrefetchSeq;
+            if (at == 0 || !prefetch) {
+                return;
+            }
+            clock.schedule(at - now + Prefetcher.WINDOW_MS / 2, new Runnable() {
+                @Override
+                public void run() {
+                    if (seq == mPrefetchSeq) {
+                        wakePhone();
+                        mPhone.prefetch(null);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public WarmState.State loadWarmState() {
+            if (mWarmState == null) {
+                return null;
+            }
+            try {
+                return WarmState.decode(new DataInputStream(new ByteArrayInputStream(mWarmState)));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void saveWarmState(WarmState.State state) {
+            try {
+                mWarmState = WarmState.encode(state);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Answers straight away with a forecast as downloaded now, counting fetchMs towards the
+     * phone's time on the work in hand.
+     */
+    private class SimulatedProvider implements ForecastProvider {
+        @Override
+        public String name() {
+            return "simulated";
+        }
+
+        @Override
+        public Call<WeatherService.WeatherData> newCall(String key, double latitude, double longitude,
+                                                        String exclude, OkHttpClient client) {
+            return new Call<WeatherService.WeatherData>() {
+                @Override
+                public Response<WeatherService.WeatherData> execute() {
+                    fetches++;
+                    mPhoneBusyMs += fetchMs;
+                    return Response.success(forecast(clock.currentTimeMillis()));
+                }
+
+                @Override
+                public void enqueue(Callback<WeatherService.WeatherData> callback) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public Call<WeatherService.WeatherData> clone() {
+                    return this;
+                }
+            };
+        }
+    }
+
+    /**
+     * Starts the phone's work on something, waking it if its service has gone idle and
+     * starting a new process if the old one has been killed.
+     */
+    private void wakePhone() {
+        long now = clock.elapsedRealtime();
+        mPhoneBusyMs = 0;
+        boolean killed = phoneProcessMs > 0 && now - mPhoneStartedAt >= phoneProcessMs;
+        if (mPhone == null || killed) {
+            phoneProcesses++;
+            mPhoneStartedAt = now;
+            WeatherFetcher fetcher = new WeatherFetcher(phoneStats, phoneEnergy,
+                    new HedgedFetcher(phoneStats, new SimulatedProvider()), new CircuitBreaker(), clock);
+            mPhone = new PhoneSync(new PhoneTransport(), new SimulatedDevice(), clock, phoneStats, phoneEnergy,
+                    mExecutor, fetcher, "key");
+        }
+        if (now > mPhoneAwakeUntil) {
+            phoneWakeups++;
+            phoneEnergy.wakeup("sync", clock.currentTimeMillis());
+        }
+        mPhoneAwakeUntil = Math.max(mPhoneAwakeUntil, now + PHONE_IDLE_MS);
+    }
+
+    private void onPhoneMessage(byte[] message) {
+        boolean created = mPhone == null || clock.elapsedRealtime() > mPhoneAwakeUntil;
+        wakePhone();
+        phoneEnergy.message("sync", message.length, clock.currentTimeMillis());
+        if (created) {
+            // the service refreshes the forecast once it has connected
+            mPhone.refresh();
+        }
+        mPhone.onRequest("watch", SyncProtocol.decodeRequest(message));
+        mPhoneAwakeUntil = Math.max(mPhoneAwakeUntil, clock.elapsedRealtime() + mPhoneBusyMs + PHONE_IDLE_MS);
+    }
+
+    /**
+     * A forecast as downloaded at the given time. Its rain changes with every download, as a
+     * real one's usually does.
+     */
+    static WeatherService.WeatherData forecast(long fetchedAt) {
+        int t = (int) (fetchedAt / 1000);
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.latitude = LATITUDE;
+        w.longitude = LONGITUDE;
+        w.currently = datum(t, 0.1);
+        w.minutely = new WeatherService.Minutely();
+        for (int i = 0; i <= 60; ++i) {
+            w.minutely.data.add(datum(t - t % 60 + i * 60, (i + t / 60) % 7 / 10.0));
+        }
+        w.hourly = new WeatherService.Hourly();
+        for (int i = 0; i <= 48; ++i) {
+            w.hourly.data.add(datum(t - t % 3600 + i * 3600, (i + t / 600) % 5 / 10.0));
+        }
+        return w;
+    }
+
+    private static WeatherService.Datum datum(int time, double rain) {
+        WeatherService.Datum d = new WeatherService.Datum();
+        d.time = time;
+        d.precipIntensity = rain;
+        d.precipProbability = rain > 0 ? 0.5 : 0.0;
+        d.cloudCover = 0.4;
+        return d;
+    }
+
+    String report(String name) {
+        return String.format(java.util.Locale.US,
+                "%-20s watch->phone %4d msgs %6d B, phone->watch %4d msgs %7d B, %3d fetches, "
+                        + "%3d phone wakeups, %3d updates, %d lost, %d unsent, watch %.0f mAs, phone %.0f mAs",
+                name, watchMessages, watchBytes, phoneMessages, phoneBytes, fetches, phoneWakeups,
+                updates, lost, notConnected, watchEnergy.today(null), phoneEnergy.today(null));
+    }
+}
@@ -0,0 +1,122 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static thjread.annulus.SyncSimulator.DAY;
+import static thjread.annulus.SyncSimulator.HOUR;
+import static thjread.annulus.SyncSimulator.MINUTE;
+
+public class SyncSimulatorTest {
+    @Test
+    public void replaysADay() {
+        SyncSimulator sim = new SyncSimulator().run(DAY);
+
+        assertTrue(sim.report("baseline"), sim.updates > 0);
+        assertEquals(0, sim.lost);
+        // every request is answered, from the cache
+        assertEquals(sim.stats.get("request.sent"), sim.phoneMessages);
+        assertEquals(0, sim.phone().prefetcher().misses());
+        assertEquals(0, sim.stats.get("sync.unsolicited"));
+        assertNotNull(sim.watch().weatherData);
+        assertNotNull(sim.watch().calendar);
+        // the calendar only changes at midnight, so is encoded once
+        assertEquals(1, sim.phoneStats.get("payload.calendar.encoded"));
+    }
+
+    @Test
+    public void isDeterministic() {
+        SyncSimulator a = new SyncSimulator();
+        a.loss = 0.1;
+        a.run(DAY);
+        SyncSimulator b = new SyncSimulator();
+        b.loss = 0.1;
+        b.run(DAY);
+        assertEquals(a.watchMessages, b.watchMessages);
+        assertEquals(a.phoneMessages, b.phoneMessages);
+        assertEquals(a.phoneBytes, b.phoneBytes);
+        assertEquals(a.fetches, b.fetches);
+        assertEquals(a.lost, b.lost);
+        assertEquals(a.updates, b.updates);
+    }
+
+    @Test
+    public void comparesCadences() {
+        SyncSimulator baseline = new SyncSimulator().run(DAY);
+        SyncSimulator noPrefetch = new SyncSimulator();
+        noPrefetch.prefetch = false;
+        noPrefetch.run(DAY);
+        SyncSimulator fewerGlances = new SyncSimulator();
+        fewerGlances.glanceEveryMs = HOUR;
+        fewerGlances.run(DAY);
+
+        // the service's refresh on waking already answers every request from the cache, so
+        // prefetches only cost downloads and wakeups
+        assertEquals(0, noPrefetch.phone().prefetcher().misses());
+        assertTrue(noPrefetch.fetches < baseline.fetches);
+        assertTrue(noPrefetch.phoneWakeups < baseline.phoneWakeups);
+        assertTrue(fewerGlances.watchMessages < baseline.watchMessages);
+        // and the modelled battery cost follows
+        assertTrue(noPrefetch.phoneEnergy.today(null) < baseline.phoneEnergy.today(null));
+        assertTrue(fewerGlances.watchEnergy.today(null) < baseline.watchEnergy.today(null));
+        assertTrue(fewerGlances.watchEnergy.today("sync") < baseline.watchEnergy.today("sync"));
+        // versions keep unchanged sections out of replies
+        assertTrue(baseline.stats.get("calendar.not_modified") > 0);
+    }
+
+    @Test
+    public void recoversFromLossAndOutages() {
+        SyncSimulator sim = new SyncSimulator();
+        sim.loss = 0.2;
+        sim.latencyMs = 400;
+        sim.jitterMs = 600;
+        sim.outage(10 * HOUR, 12 * HOUR);
+        sim.run(13 * HOUR);
+
+        assertTrue(sim.lost > 0);
+        assertTrue(sim.notConnected > 0);
+        assertTrue(sim.stats.get("request.send_failed") > 0);
+        // caught up within an hour of the link coming back
+        long age = sim.clock.currentTimeMillis() - sim.watch().weatherFetchedAt;
+        assertTrue("Forecast " + age / MINUTE + " minutes old", age < 30 * MINUTE);
+    }
+
+    @Test
+    public void restartsFromWarmState() {
+        SyncSimulator sim = new SyncSimulator();
+        sim.phoneProcessMs = 2 * HOUR;
+        sim.run(DAY);
+
+        assertTrue(sim.phoneProcesses > 1);
+        assertEquals(sim.phoneProcesses - 1, sim.phoneStats.get("warm.restored"));
+        // a restarted process doesn't download the calendar's unchanged body again
+        assertEquals(1, sim.phoneStats.get("payload.calendar.encoded"));
+        long age = sim.clock.currentTimeMillis() - sim.watch().weatherFetchedAt;
+        assertTrue("Forecast " + age / MINUTE + " minutes old", age < 30 * MINUTE);
+    }
+
+    @Test
+    public void streamsLargeReplies() {
+        SyncSimulator sim = new SyncSimulator();
+        sim.calendarEvents = 16000;
+        sim.run(2 * HOUR);
+        assertTrue(sim.streamed > 0);
+        assertEquals(16000, sim.watch().calendar.events.size());
+    }
+
+    @Test
+    public void drawsCalendarOffline() {
+        SyncSimulator sim = new SyncSimulator();
+        sim.calendarEvents = 48;
+        sim.outage(HOUR, DAY);
+        sim.run(DAY);
+        CalendarHorizon calendar = sim.watch().calendar;
+        assertNotNull(calendar);
+        long now = sim.clock.currentTimeMillis();
+        assertTrue(calendar.covers(now + CalendarHorizon.AHEAD_MS));
+        // the next morning's events, a day after the phone was last heard from
+        calendar.advance(now);
+        assertEquals(1, calendar.during(now + 9 * HOUR, now + 10 * HOUR).size());
+        assertTrue(calendar.events.size() < sim.calendarEvents);
+    }
+}
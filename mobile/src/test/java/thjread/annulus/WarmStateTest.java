@@ -0,0 +1,91 @@
+package thjread.annulus;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class WarmStateTest {
+    private static WarmState.State state() throws IOException {
+        WarmState.State s = new WarmState.State();
+        s.forecast = new CachedForecast(51.5, -0.12);
+        s.forecast.restore(Fixtures.forecast(), 3000, 2000, 1000);
+        s.locationTime = 1500000000000L;
+        s.latitude = 51.5074;
+        s.longitude = -0.1278;
+        s.accuracy = 25;
+        ArrayList<CalendarData> events = new ArrayList<>();
+        CalendarData c = new CalendarData();
+        c.title = "Standup";
+        c.begin = 1500000000000L;
+        c.end = c.begin + 900000;
+        events.add(c);
+        s.calendar = new CalendarHorizon(1499990400000L, 1499990400000L + 96 * 3600000L, events);
+        s.weatherSection = SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER,
+                ForecastCodec.encodeWeather(s.forecast.get())).compress(new PayloadCompressor());
+        s.calendarSection = SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR,
+                CalendarHorizon.encode(s.calendar));
+        return s;
+    }
+
+    private static WarmState.State roundTrip(WarmState.State s) throws IOException {
+        return WarmState.decode(new DataInputStream(new ByteArrayInputStream(WarmState.encode(s))));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        WarmState.State s = state();
+        WarmState.State d = roundTrip(s);
+
+        Gson gson = new Gson();
+        assertEquals(gson.toJson(s.forecast.get()), gson.toJson(d.forecast.get()));
+        assertEquals(51.5, d.forecast.latitude(), 0);
+        assertEquals(3000, d.forecast.fetchedAt(CachedForecast.BLOCK_CURRENTLY));
+        assertEquals(1000, d.forecast.fetchedAt(CachedForecast.BLOCK_HOURLY));
+        assertEquals(s.locationTime, d.locationTime);
+        assertEquals(s.latitude, d.latitude, 0);
+        assertEquals(s.longitude, d.longitude, 0);
+        assertEquals(s.accuracy, d.accuracy, 0);
+        assertEquals("Standup", d.calendar.events.get(0).title);
+        assertEquals(s.calendar.until, d.calendar.until);
+        assertEquals(s.weatherSection.version, d.weatherSection.version);
+        assertEquals(s.weatherSection.flags, d.weatherSection.flags);
+        assertArrayEquals(s.weatherSection.body, d.weatherSection.body);
+        assertArrayEquals(s.calendarSection.body, d.calendarSection.body);
+        assertEquals(WarmState.signature(s), WarmState.signature(d));
+    }
+
+    @Test
+    public void emptyState() throws IOException {
+        WarmState.State d = roundTrip(new WarmState.State());
+        assertNull(d.forecast);
+        assertEquals(0, d.locationTime);
+        assertNull(d.calendar);
+        assertNull(d.weatherSection);
+        assertNull(d.calendarSection);
+    }
+
+    @Test
+    public void signatureFollowsChanges() throws IOException {
+        WarmState.State s = state();
+        int before = WarmState.signature(s);
+        s.locationTime += 60000;
+        assertNotEquals(before, WarmState.signature(s));
+        int moved = WarmState.signature(s);
+        s.forecast.restore(s.forecast.get(), 4000, 2000, 1000);
+        assertNotEquals(moved, WarmState.signature(s));
+    }
+
+    @Test
+    public void ignoresOtherVersions() throws IOException {
+        byte[] data = WarmState.encode(state());
+        data[7]++;
+        assertNull(WarmState.decode(new DataInputStream(new ByteArrayInputStream(data))));
+    }
+}
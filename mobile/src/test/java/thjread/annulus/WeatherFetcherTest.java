@@ -0,0 +1,159 @@
+package thjread.annulus;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WeatherFetcherTest {
+    private static final long TIMEOUT_MS = 200;
+
+    /**
+     * Far enough apart to always be in different cells, so every fetch has to download.
+     */
+    private static final double LOCATIONS[][] = {
+            {51.5074, -0.1278}, {48.8566, 2.3522}, {40.7128, -74.0060},
+            {35.6762, 139.6503}, {-33.8688, 151.2093}, {55.7558, 37.6173},
+    };
+
+    private MockWebServer mServer;
+    private SyncStats mStats;
+    private String mForecast;
+    private int mLocation;
+
+    private static class TestJob extends WeatherFetcher.FetchJob {
+        @Override
+        void run(long deadline) {
+        }
+
+        @Override
+        void finish(int outcome) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mForecast = Fixtures.forecastJson();
+        mStats = new SyncStats();
+        mLocation = 0;
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    private WeatherFetcher fetcher(CircuitBreaker breaker) {
+        HedgedFetcher hedger = new HedgedFetcher(mStats,
+                new ForecastProvider.Rest("mock", mServer.url("/").toString()));
+        WeatherFetcher fetcher = new WeatherFetcher(mStats, new EnergyLedger(EnergyLedger.PHONE_CPU_MA), hedger, breaker);
+        fetcher.mConnectTimeoutMs = TIMEOUT_MS;
+        fetcher.mReadTimeoutMs = TIMEOUT_MS;
+        return fetcher;
+    }
+
+    private WeatherService.WeatherData fetchNewCell(WeatherFetcher fetcher) {
+        double location[] = LOCATIONS[mLocation++];
+        return fetcher.fetch("key", location[0], location[1], mLocation,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(5), new TestJob());
+    }
+
+    @Test
+    public void failureServesCachedForecastAndBacksOff() throws Exception {
+        WeatherFetcher fetcher = fetcher(new CircuitBreaker(60 * 1000, 60 * 60 * 1000, new Random(1)));
+        mServer.enqueue(new MockResponse().setBody(mForecast));
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+
+        WeatherService.WeatherData good = fetchNewCell(fetcher);
+        assertNotNull(good);
+        long fetchedAt = fetcher.fetchedAt();
+        assertEquals(CircuitBreaker.CLOSED, fetcher.status());
+
+        assertSame(good, fetchNewCell(fetcher));
+        assertEquals(CircuitBreaker.BACKING_OFF, fetcher.status());
+        assertEquals(fetchedAt, fetcher.fetchedAt());
+
+        assertSame(good, fetchNewCell(fetcher));
+        assertEquals(1, mStats.get("weather.backoff"));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void repeatedFaultsOpenCircuitUntilProbeSucceeds() throws Exception {
+        WeatherFetcher fetcher = fetcher(new CircuitBreaker(0, 0, new Random(1)));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        mServer.enqueue(new MockResponse().setBody(mForecast).throttleBody(64, 1, TimeUnit.SECONDS));
+        mServer.enqueue(new MockResponse().setBody(mForecast));
+
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+            assertNull(fetchNewCell(fetcher));
+        }
+        assertEquals(CircuitBreaker.OPEN, fetcher.status());
+        assertEquals(1, mStats.get("weather.circuit_open"));
+        assertEquals(2, mStats.get("weather.fetch_error"));
+
+        assertNotNull(fetchNewCell(fetcher));
+        assertEquals(CircuitBreaker.CLOSED, fetcher.status());
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cancelledProbeDoesntCountAsFailure() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(0, 0, new Random(1));
+        WeatherFetcher fetcher = fetcher(breaker);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+            mServer.enqueue(new MockResponse().setResponseCode(503));
+        }
+        mServer.enqueue(new MockResponse().setBody(mForecast).setBodyDelay(TIMEOUT_MS / 2, TimeUnit.MILLISECONDS));
+        mServer.enqueue(new MockResponse().setBody(mForecast));
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+            fetchNewCell(fetcher);
+            mServer.takeRequest();
+        }
+        assertEquals(CircuitBreaker.OPEN, fetcher.status());
+
+        // the probe's job is superseded once its request reaches the server
+        final TestJob job = new TestJob();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mServer.takeRequest();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                job.cancel();
+            }
+        }).start();
+        double location[] = LOCATIONS[mLocation++];
+        assertNull(fetcher.fetch("key", location[0], location[1], mLocation,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(5), job));
+        assertEquals(1, mStats.get("weather.fetch_cancelled"));
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, breaker.failures());
+
+        // and the next job gets to probe
+        assertNotNull(fetchNewCell(fetcher));
+        assertEquals(CircuitBreaker.CLOSED, fetcher.status());
+        assertEquals(0, mStats.get("weather.backoff"));
+    }
+
+    @Test
+    public void noTimeLeftServesCache() throws Exception {
+        WeatherFetcher fetcher = fetcher(new CircuitBreaker());
+        double location[] = LOCATIONS[0];
+        assertNull(fetcher.fetch("key", location[0], location[1], 1, System.nanoTime(), new TestJob()));
+        assertEquals(1, mStats.get("weather.no_time"));
+        assertEquals(0, mServer.getRequestCount());
+    }
+}
@@ -0,0 +1,9 @@
+package thjread.annulus;
+
+class CalendarData implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public String title;
+    public long begin;
+    public long end;
+}
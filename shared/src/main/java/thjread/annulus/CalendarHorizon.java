@@ -0,0 +1,129 @@
+package thjread.annulus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The calendar events overlapping a span of time, shared by the watch and the phone.
+ *
+ * The phone sends the span from the start of the local day to {@link #AHEAD_MS} after the
+ * end of it, so the section only changes when the provider does or at midnight, and its
+ * version lets every other poll be answered as not modified. The watch slides its own window
+ * over the events and can keep drawing them without the phone until the span runs out.
+ */
+class CalendarHorizon {
+    /**
+     * How far past the end of today the phone's span reaches, so it always covers at least
+     * this much of the future.
+     */
+    static final long AHEAD_MS = 72 * 60 * 60 * 1000L;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    final long from;
+    final long until;
+    final ArrayList<CalendarData> events;
+    private long mMinute = -1;
+
+    CalendarHorizon(long from, long until, ArrayList<CalendarData> events) {
+        this.from = from;
+        this.until = until;
+        this.events = events;
+    }
+
+    /**
+     * The span the phone queries at the given time: {from, until}.
+     */
+    static long[] span(long now, TimeZone zone) {
+        Calendar c = Calendar.getInstance(zone);
+        c.setTimeInMillis(now);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        long from = c.getTimeInMillis();
+        c.add(Calendar.DAY_OF_MONTH, 1);
+        return new long[]{from, c.getTimeInMillis() + AHEAD_MS};
+    }
+
+    /**
+     * Whether the events are complete up to the given time.
+     */
+    boolean covers(long time) {
+        return time <= until;
+    }
+
+    /**
+     * Drops events that have ended, at most once a minute, so that drawing doesn't walk
+     * past days of old events.
+     */
+    void advance(long now) {
+        long minute = now / MINUTE_MILLIS;
+        if (minute == mMinute) {
+            return;
+        }
+        mMinute = minute;
+        for (int i = events.size() - 1; i >= 0; --i) {
+            if (events.get(i).end <= now) {
+                events.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Events overlapping [start, end), or none if the horizon doesn't reach that far.
+     */
+    List<CalendarData> during(long start, long end) {
+        if (!covers(end)) {
+            return Collections.emptyList();
+        }
+        List<CalendarData> during = new ArrayList<>();
+        for (CalendarData c : events) {
+            if (c.begin < end && c.end > start) {
+                during.add(c);
+            }
+        }
+        return during;
+    }
+
+    static byte[] encode(CalendarHorizon horizon) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            write(out, horizon);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bos.toByteArray();
+    }
+
+    static void write(DataOutput out, CalendarHorizon horizon) throws IOException {
+        out.writeBoolean(horizon != null);
+        if (horizon == null) {
+            return;
+        }
+        out.writeLong(horizon.from);
+        out.writeLong(horizon.until);
+        ForecastCodec.writeCalendar(out, horizon.events);
+    }
+
+    static CalendarHorizon read(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long from = in.readLong();
+        long until = in.readLong();
+        ArrayList<CalendarData> events = ForecastCodec.readCalendar(in);
+        if (events == null) {
+            throw new IOException("Calendar horizon without events");
+        }
+        return new CalendarHorizon(from, until, events);
+    }
+}
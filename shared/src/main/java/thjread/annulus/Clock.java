@@ -0,0 +1,24 @@
+package thjread.annulus;
+
+import android.os.SystemClock;
+
+/**
+ * Source of the time for sync logic, so that it can be run against a virtual clock.
+ */
+interface Clock {
+    long currentTimeMillis();
+
+    long elapsedRealtime();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+}
@@ -0,0 +1,158 @@
+package thjread.annulus;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Modelled battery cost, shared by the watch and the phone. Each event is charged an
+ * estimated charge in milliamp-seconds to a named subsystem, and totals are kept for today
+ * and yesterday (local time).
+ *
+ * The costs are rough figures for typical hardware rather than measurements; they are for
+ * comparing one version of the sync logic against another, not for predicting battery life.
+ */
+class EnergyLedger {
+    /**
+     * Extra current drawn while the CPU is busy.
+     */
+    static final double WATCH_CPU_MA = 30;
+    static final double PHONE_CPU_MA = 200;
+
+    /**
+     * Resuming from suspend and settling back: about 15mA for 100ms.
+     */
+    static final double WAKEUP_MAS = 1.5;
+    /**
+     * Composing and pushing one frame to the display, beyond the time spent in onDraw.
+     */
+    static final double FRAME_MAS = 0.1;
+    /**
+     * One Bluetooth transaction, keeping the link active for a couple of hundred ms, plus
+     * the cost of moving each kilobyte.
+     */
+    static final double MESSAGE_MAS = 4;
+    static final double MESSAGE_KB_MAS = 0.4;
+    /**
+     * One HTTP exchange over a cellular radio, dominated by the radio staying in its high
+     * power state for several seconds afterwards.
+     */
+    static final double FETCH_MAS = 1200;
+    /**
+     * One batch of balanced-power (network) location fixes.
+     */
+    static final double LOCATION_MAS = 40;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final double mCpuMilliamps;
+    private final TimeZone mZone;
+    private long mDay = Long.MIN_VALUE;
+    private Map<String, double[]> mToday = new TreeMap<>();
+    private Map<String, double[]> mYesterday = new TreeMap<>();
+
+    /**
+     * cpuMilliamps is {@link #WATCH_CPU_MA} or {@link #PHONE_CPU_MA}.
+     */
+    EnergyLedger(double cpuMilliamps) {
+        this(cpuMilliamps, TimeZone.getDefault());
+    }
+
+    EnergyLedger(double cpuMilliamps, TimeZone zone) {
+        mCpuMilliamps = cpuMilliamps;
+        mZone = zone;
+    }
+
+    /**
+     * Charges an event to a subsystem at the given wall clock time.
+     */
+    synchronized void charge(String subsystem, double milliampSeconds, long now) {
+        long day = (now + mZone.getOffset(now)) / DAY_MILLIS;
+        if (day != mDay) {
+            mYesterday = day == mDay + 1 ? mToday : new TreeMap<String, double[]>();
+            mToday = new TreeMap<>();
+            mDay = day;
+        }
+        double total[] = mToday.get(subsystem);
+        if (total == null) {
+            total = new double[2];
+            mToday.put(subsystem, total);
+        }
+        total[0] += milliampSeconds;
+        total[1]++;
+    }
+
+    void cpu(String subsystem, long nanos, long now) {
+        charge(subsystem, cpuCost(nanos), now);
+    }
+
+    void wakeup(String subsystem, long now) {
+        charge(subsystem, WAKEUP_MAS, now);
+    }
+
+    /**
+     * A frame drawn, having spent the given time in onDraw.
+     */
+    void frame(long nanos, long now) {
+        charge("draw", FRAME_MAS + cpuCost(nanos), now);
+    }
+
+    /**
+     * A message sent or received over the Bluetooth link.
+     */
+    void message(String subsystem, long bytes, long now) {
+        charge(subsystem, MESSAGE_MAS + MESSAGE_KB_MAS * bytes / 1024, now);
+    }
+
+    void fetch(long now) {
+        charge("weather", FETCH_MAS, now);
+    }
+
+    void location(long now) {
+        charge("location", LOCATION_MAS, now);
+    }
+
+    private double cpuCost(long nanos) {
+        return mCpuMilliamps * nanos / 1e9;
+    }
+
+    /**
+     * Today's charge to a subsystem, or to all of them if subsystem is null, in mAs.
+     */
+    synchronized double today(String subsystem) {
+        return total(mToday, subsystem);
+    }
+
+    synchronized double yesterday(String subsystem) {
+        return total(mYesterday, subsystem);
+    }
+
+    private static double total(Map<String, double[]> totals, String subsystem) {
+        double sum = 0;
+        for (Map.Entry<String, double[]> e : totals.entrySet()) {
+            if (subsystem == null || subsystem.equals(e.getKey())) {
+                sum += e.getValue()[0];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Human readable totals per subsystem, for today and yesterday.
+     */
+    synchronized String summary() {
+        StringBuilder s = new StringBuilder();
+        append(s, "today", mToday);
+        append(s, "yesterday", mYesterday);
+        return s.toString();
+    }
+
+    private static void append(StringBuilder s, String name, Map<String, double[]> totals) {
+        s.append(String.format(Locale.US, "energy %s: %.1f mAs\n", name, total(totals, null)));
+        for (Map.Entry<String, double[]> e : totals.entrySet()) {
+            s.append(String.format(Locale.US, "  %s %.1f mAs in %d events\n", e.getKey(),
+                    e.getValue()[0], (long) e.getValue()[1]));
+        }
+    }
+}
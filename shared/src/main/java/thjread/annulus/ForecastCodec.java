@@ -0,0 +1,305 @@
+package thjread.annulus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the parts of the forecast and calendar that the watch face
+ * actually draws, used for sync sections and the watch's snapshot file.
+ *
+ * Forecast series are quantized: times are varint deltas from the previous point (the first
+ * from currently.time), and each value is a single byte.
+ * <ul>
+ * <li>precipIntensity is on a log scale between {@link #MIN_INTENSITY} and
+ * {@link #MAX_INTENSITY} (about 0.01 and 33 mm/h), so it decodes within 1.7% of the original.
+ * Values below MIN_INTENSITY/2 decode as 0, values outside the range are clamped to it. The
+ * scale is laid out so that the rain thresholds the face tests intensity against, 0.09 and
+ * 0.12 mm/h, fall on rounding boundaries and are never crossed. At the face's
+ * assumed_max_rain of 8 mm/h the error is at most 0.13 mm/h.</li>
+ * <li>precipProbability and cloudCover are linear in steps of 1/250, so they decode within
+ * 0.002, which is less than one level of an 8-bit colour channel.</li>
+ * </ul>
+ * The minute ring compares intensity * probability with 0.12, so a value within about 2% of
+ * that threshold can still fall on the other side of it.
+ */
+class ForecastCodec {
+    private static final int NULL_BYTE = 255;
+    private static final int MAX_CODE = 254;
+    private static final double THRESHOLDS[] = {0.09, 0.12};
+    /**
+     * Nine steps between the two thresholds, with 0.09 halfway between codes 69 and 70.
+     */
+    private static final double LOG_STEP = Math.log(THRESHOLDS[1] / THRESHOLDS[0]) / 9;
+    static final double MIN_INTENSITY = THRESHOLDS[0] * Math.exp(-68.5 * LOG_STEP);
+    static final double MAX_INTENSITY = MIN_INTENSITY * Math.exp((MAX_CODE - 1) * LOG_STEP);
+
+    private static final int FIELD_INTENSITY = 1;
+    private static final int FIELD_PROBABILITY = 2;
+    private static final int FIELD_CLOUD = 4;
+    private static final int FIELD_SUN = 8;
+
+    private static final int CURRENTLY_FIELDS = FIELD_INTENSITY | FIELD_PROBABILITY | FIELD_CLOUD;
+    private static final int MINUTELY_FIELDS = FIELD_INTENSITY | FIELD_PROBABILITY;
+    private static final int HOURLY_FIELDS = FIELD_INTENSITY | FIELD_PROBABILITY | FIELD_CLOUD;
+    private static final int DAILY_FIELDS = FIELD_SUN;
+
+    static byte[] encodeWeather(WeatherService.WeatherData w) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            writeWeather(out, w);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bos.toByteArray();
+    }
+
+    static void writeWeather(DataOutput out, WeatherService.WeatherData w) throws IOException {
+        out.writeBoolean(w != null);
+        if (w == null) {
+            return;
+        }
+        writeDouble(out, w.latitude);
+        writeDouble(out, w.longitude);
+        int base = w.currently != null && w.currently.time != null ? w.currently.time : 0;
+        out.writeInt(base);
+        out.writeBoolean(w.currently != null);
+        if (w.currently != null) {
+            writeDatum(out, w.currently, base, CURRENTLY_FIELDS);
+        }
+        writeSeries(out, w.minutely != null ? w.minutely.data : null, base, MINUTELY_FIELDS);
+        writeSeries(out, w.hourly != null ? w.hourly.data : null, base, HOURLY_FIELDS);
+        writeSeries(out, w.daily != null ? w.daily.data : null, base, DAILY_FIELDS);
+    }
+
+    static WeatherService.WeatherData readWeather(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.latitude = readDouble(in);
+        w.longitude = readDouble(in);
+        int base = in.readInt();
+        if (in.readBoolean()) {
+            w.currently = readDatum(in, base, CURRENTLY_FIELDS);
+        }
+        List<WeatherService.Datum> minutely = readSeries(in, base, MINUTELY_FIELDS);
+        if (minutely != null) {
+            w.minutely = new WeatherService.Minutely();
+            w.minutely.data = minutely;
+        }
+        List<WeatherService.Datum> hourly = readSeries(in, base, HOURLY_FIELDS);
+        if (hourly != null) {
+            w.hourly = new WeatherService.Hourly();
+            w.hourly.data = hourly;
+        }
+        List<WeatherService.Datum> daily = readSeries(in, base, DAILY_FIELDS);
+        if (daily != null) {
+            w.daily = new WeatherService.Daily();
+            w.daily.data = daily;
+        }
+        return w;
+    }
+
+    static void writeCalendar(DataOutput out, List<CalendarData> calendar) throws IOException {
+        out.writeInt(calendar != null ? calendar.size() : -1);
+        if (calendar == null) {
+            return;
+        }
+        for (CalendarData c : calendar) {
+            out.writeUTF(c.title != null ? c.title : "");
+            out.writeLong(c.begin);
+            out.writeLong(c.end);
+        }
+    }
+
+    static ArrayList<CalendarData> readCalendar(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        ArrayList<CalendarData> calendar = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            CalendarData c = new CalendarData();
+            c.title = in.readUTF();
+            c.begin = in.readLong();
+            c.end = in.readLong();
+            calendar.add(c);
+        }
+        return calendar;
+    }
+
+    private static void writeSeries(DataOutput out, List<WeatherService.Datum> data, int base,
+                                    int fields) throws IOException {
+        writeVarint(out, data != null ? data.size() + 1 : 0);
+        if (data == null) {
+            return;
+        }
+        int previous = base;
+        for (WeatherService.Datum d : data) {
+            writeDatum(out, d, previous, fields);
+            if (d.time != null) {
+                previous = d.time;
+            }
+        }
+    }
+
+    private static List<WeatherService.Datum> readSeries(DataInput in, int base, int fields) throws IOException {
+        int n = (int) readVarint(in) - 1;
+        if (n < 0) {
+            return null;
+        }
+        List<WeatherService.Datum> data = new ArrayList<>(n);
+        int previous = base;
+        for (int i = 0; i < n; ++i) {
+            WeatherService.Datum d = readDatum(in, previous, fields);
+            if (d.time != null) {
+                previous = d.time;
+            }
+            data.add(d);
+        }
+        return data;
+    }
+
+    private static void writeDatum(DataOutput out, WeatherService.Datum d, int previous, int fields)
+            throws IOException {
+        writeTime(out, d.time, previous);
+        if ((fields & FIELD_INTENSITY) != 0) {
+            out.writeByte(encodeIntensity(d.precipIntensity));
+        }
+        if ((fields & FIELD_PROBABILITY) != 0) {
+            out.writeByte(encodeFraction(d.precipProbability));
+        }
+        if ((fields & FIELD_CLOUD) != 0) {
+            out.writeByte(encodeFraction(d.cloudCover));
+        }
+        if ((fields & FIELD_SUN) != 0) {
+            int t = d.time != null ? d.time : previous;
+            writeTime(out, d.sunriseTime, t);
+            writeTime(out, d.sunsetTime, t);
+        }
+    }
+
+    private static WeatherService.Datum readDatum(DataInput in, int previous, int fields) throws IOException {
+        WeatherService.Datum d = new WeatherService.Datum();
+        d.time = readTime(in, previous);
+        if ((fields & FIELD_INTENSITY) != 0) {
+            d.precipIntensity = decodeIntensity(in.readUnsignedByte());
+        }
+        if ((fields & FIELD_PROBABILITY) != 0) {
+            d.precipProbability = decodeFraction(in.readUnsignedByte());
+        }
+        if ((fields & FIELD_CLOUD) != 0) {
+            d.cloudCover = decodeFraction(in.readUnsignedByte());
+        }
+        if ((fields & FIELD_SUN) != 0) {
+            int t = d.time != null ? d.time : previous;
+            d.sunriseTime = readTime(in, t);
+            d.sunsetTime = readTime(in, t);
+        }
+        return d;
+    }
+
+    /**
+     * Log-scale intensity code: 0 for no rain, 1..254 for MIN_INTENSITY..MAX_INTENSITY.
+     */
+    static int encodeIntensity(Double value) {
+        if (value == null || Double.isNaN(value)) {
+            return NULL_BYTE;
+        }
+        double v = value;
+        if (v < MIN_INTENSITY / 2) {
+            return 0;
+        }
+        v = Math.min(Math.max(v, MIN_INTENSITY), MAX_INTENSITY);
+        int code = 1 + (int) Math.round(Math.log(v / MIN_INTENSITY) / LOG_STEP);
+        code = Math.min(Math.max(code, 1), MAX_CODE);
+        // Rounding error right on a threshold mustn't move the value across it
+        for (double threshold : THRESHOLDS) {
+            if (value < threshold && intensity(code) >= threshold) {
+                code--;
+            } else if (value >= threshold && intensity(code) < threshold) {
+                code++;
+            }
+        }
+        return code;
+    }
+
+    static Double decodeIntensity(int code) {
+        if (code == NULL_BYTE) {
+            return null;
+        }
+        return code == 0 ? 0.0 : intensity(code);
+    }
+
+    private static double intensity(int code) {
+        return MIN_INTENSITY * Math.exp((code - 1) * LOG_STEP);
+    }
+
+    static int encodeFraction(Double value) {
+        if (value == null || Double.isNaN(value)) {
+            return NULL_BYTE;
+        }
+        return (int) Math.round(Math.min(Math.max(value, 0), 1) * 250);
+    }
+
+    static Double decodeFraction(int code) {
+        return code == NULL_BYTE ? null : code / 250.0;
+    }
+
+    /**
+     * Times are seconds since the epoch, written as a zigzag varint delta from a reference
+     * time; 0 encodes null.
+     */
+    private static void writeTime(DataOutput out, Integer t, int reference) throws IOException {
+        if (t == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        long delta = (long) t - reference;
+        writeVarint(out, ((delta << 1) ^ (delta >> 63)) + 1);
+    }
+
+    private static Integer readTime(DataInput in, int reference) throws IOException {
+        long v = readVarint(in);
+        if (v == 0) {
+            return null;
+        }
+        v -= 1;
+        long delta = (v >>> 1) ^ -(v & 1);
+        return (int) (reference + delta);
+    }
+
+    private static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeDouble(DataOutput out, Double v) throws IOException {
+        out.writeDouble(v != null ? v : Double.NaN);
+    }
+
+    private static Double readDouble(DataInput in) throws IOException {
+        double v = in.readDouble();
+        return Double.isNaN(v) ? null : v;
+    }
+}
@@ -0,0 +1,133 @@
+package thjread.annulus;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional deflate compression of sync section bodies. A compressed body is the uncompressed
+ * length followed by raw deflate data, and is flagged with
+ * {@link SyncProtocol#FLAG_DEFLATE}.
+ *
+ * The phone only sends the compressed form when it is worth it: the body must be at least
+ * {@link #MIN_SIZE} bytes and compress to at most {@link #MAX_RATIO} of its size. If a section
+ * type keeps failing that test the compressor stops trying it, apart from an occasional probe.
+ * The deflater, inflater and buffers are reused between calls.
+ */
+class PayloadCompressor {
+    static final int MIN_SIZE = 256;
+    static final float MAX_RATIO = 0.9f;
+    private static final int PROBE_INTERVAL = 16;
+    private static final int HEADER_LENGTH = 4;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mBuffer = new byte[8192];
+
+    /**
+     * Smoothed compression ratio and attempts skipped, indexed by section type.
+     */
+    private final float mRatio[] = new float[8];
+    private final int mSkipped[] = new int[8];
+
+    /**
+     * Returns the compressed form of body, or null if it isn't worth sending compressed.
+     */
+    synchronized byte[] compress(int type, byte[] body) {
+        if (body.length < MIN_SIZE) {
+            return null;
+        }
+        if (mRatio[type] > MAX_RATIO && ++mSkipped[type] < PROBE_INTERVAL) {
+            return null;
+        }
+        mSkipped[type] = 0;
+
+        mDeflater.reset();
+        mDeflater.setInput(body);
+        mDeflater.finish();
+        ensureCapacity(HEADER_LENGTH + body.length + 64);
+        int length = HEADER_LENGTH;
+        while (!mDeflater.finished()) {
+            if (length == mBuffer.length) {
+                ensureCapacity(mBuffer.length * 2);
+            }
+            length += mDeflater.deflate(mBuffer, length, mBuffer.length - length);
+        }
+        ByteBuffer.wrap(mBuffer).putInt(body.length);
+
+        float ratio = (float) length / body.length;
+        mRatio[type] = mRatio[type] == 0 ? ratio : 0.75f * mRatio[type] + 0.25f * ratio;
+        if (ratio > MAX_RATIO) {
+            return null;
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(mBuffer, 0, out, 0, length);
+        return out;
+    }
+
+    /**
+     * Inflates a compressed body into the shared buffer. The returned stream is only valid
+     * until the next call.
+     */
+    synchronized ByteArrayInputStream inflate(byte[] compressed) throws IOException {
+        if (compressed.length < HEADER_LENGTH) {
+            throw new IOException("Truncated compressed body");
+        }
+        int length = ByteBuffer.wrap(compressed).getInt();
+        if (length < 0 || length > SyncProtocol.MAX_BODY_LENGTH) {
+            throw new IOException("Bad compressed body length");
+        }
+        ensureCapacity(length);
+        mInflater.reset();
+        mInflater.setInput(compressed, HEADER_LENGTH, compressed.length - HEADER_LENGTH);
+        int n = 0;
+        try {
+            while (n < length) {
+                int r = mInflater.inflate(mBuffer, n, length - n);
+                if (r == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                    break;
+                }
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body", e);
+        }
+        if (n != length) {
+            throw new IOException("Compressed body length mismatch");
+        }
+        return new ByteArrayInputStream(mBuffer, 0, length);
+    }
+
+    /**
+     * Inflates a compressed body as it is read from a stream, for bodies streamed over a
+     * channel. Uses its own inflater, released when the returned stream is closed.
+     */
+    static InputStream inflating(InputStream compressed) throws IOException {
+        int length = new DataInputStream(compressed).readInt();
+        if (length < 0 || length > SyncProtocol.MAX_BODY_LENGTH) {
+            throw new IOException("Bad compressed body length");
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(compressed, inflater) {
+            @Override
+            public void close() throws IOException {
+                inflater.end();
+                super.close();
+            }
+        };
+    }
+
+    private void ensureCapacity(int size) {
+        if (mBuffer.length < size) {
+            byte[] b = new byte[Math.max(size, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, b, 0, mBuffer.length);
+            mBuffer = b;
+        }
+    }
+}
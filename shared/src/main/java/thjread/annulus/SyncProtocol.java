@@ -0,0 +1,379 @@
+package thjread.annulus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Message framing shared by the watch and the phone.
+ *
+ * A poll is a single request on {@link #SYNC_PATH} listing the sections the watch wants and
+ * the versions it already holds. The phone answers with one envelope carrying any
+ * combination of sections; a section the watch already has comes back as not modified,
+ * without a body. Both directions start with the request's correlation id. Section bodies
+ * may be deflated, see {@link PayloadCompressor}.
+ *
+ * Envelopes up to {@link #MAX_MESSAGE_LENGTH} go as a single message. Larger ones are
+ * streamed over a channel on {@link #SYNC_PATH} in the same format, written straight from
+ * the section bodies and decoded a section at a time as the bytes arrive.
+ */
+class SyncProtocol {
+    static final String SYNC_PATH = "/annulus/sync";
+    static final String STATS_PATH = "/annulus/stats";
+
+    static final int ID_LENGTH = 8;
+
+    /**
+     * Bytes an envelope starts with: the correlation id and the number of sections.
+     */
+    static final int HEADER_LENGTH = ID_LENGTH + 1;
+
+    /**
+     * Bytes each section starts with: type, flags, version and body length.
+     */
+    static final int SECTION_HEADER_LENGTH = 10;
+
+    static final int SECTION_WEATHER = 1;
+    static final int SECTION_CALENDAR = 2;
+    static final int SECTION_META = 4;
+
+    static final int FLAG_NOT_MODIFIED = 1;
+    static final int FLAG_DEFLATE = 2;
+
+    /**
+     * Sanity limit on a decoded section body.
+     */
+    static final int MAX_BODY_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Largest envelope sent as a message, leaving headroom under MessageApi's 100KB limit.
+     */
+    static final int MAX_MESSAGE_LENGTH = 90 * 1024;
+
+    static class Request {
+        long requestId;
+        int sections;
+        int weatherVersion;
+        int calendarVersion;
+
+        int heldVersion(int section) {
+            switch (section) {
+                case SECTION_WEATHER:
+                    return weatherVersion;
+                case SECTION_CALENDAR:
+                    return calendarVersion;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    static class Section {
+        int type;
+        int flags;
+        int version;
+        byte[] body;
+
+        Section(int type, int flags, int version, byte[] body) {
+            this.type = type;
+            this.flags = flags;
+            this.version = version;
+            this.body = body;
+        }
+
+        /**
+         * A section with a fresh body, versioned by its content.
+         */
+        static Section of(int type, byte[] body) {
+            return new Section(type, 0, version(body), body);
+        }
+
+        Section notModified() {
+            return new Section(type, FLAG_NOT_MODIFIED, version, new byte[0]);
+        }
+
+        /**
+         * Swaps the body for its compressed form if the compressor thinks it's worth it. The
+         * version stays that of the uncompressed body.
+         */
+        Section compress(PayloadCompressor compressor) {
+            byte[] compressed = compressor.compress(type, body);
+            if (compressed != null) {
+                body = compressed;
+                flags |= FLAG_DEFLATE;
+            }
+            return this;
+        }
+
+        boolean isCompressed() {
+            return (flags & FLAG_DEFLATE) != 0;
+        }
+
+        boolean isNotModified() {
+            return (flags & FLAG_NOT_MODIFIED) != 0;
+        }
+    }
+
+    static class Envelope {
+        long requestId;
+        List<Section> sections = new ArrayList<>();
+
+        Section get(int type) {
+            for (Section s : sections) {
+                if (s.type == type) {
+                    return s;
+                }
+            }
+            return null;
+        }
+    }
+
+    static byte[] encodeRequest(Request r) {
+        return ByteBuffer.allocate(ID_LENGTH + 9)
+                .putLong(r.requestId)
+                .put((byte) r.sections)
+                .putInt(r.weatherVersion)
+                .putInt(r.calendarVersion)
+                .array();
+    }
+
+    static Request decodeRequest(byte[] message) {
+        Request r = new Request();
+        r.requestId = requestId(message);
+        if (message == null || message.length < ID_LENGTH + 9) {
+            r.sections = SECTION_WEATHER | SECTION_CALENDAR;
+            return r;
+        }
+        ByteBuffer b = ByteBuffer.wrap(message, ID_LENGTH, 9);
+        r.sections = b.get() & 0xff;
+        r.weatherVersion = b.getInt();
+        r.calendarVersion = b.getInt();
+        return r;
+    }
+
+    /**
+     * Correlation id of a request or envelope, or 0 if the message doesn't carry one.
+     */
+    static long requestId(byte[] message) {
+        if (message == null || message.length < ID_LENGTH) {
+            return 0;
+        }
+        return ByteBuffer.wrap(message).getLong();
+    }
+
+    /**
+     * Reads a streamed envelope's sections one at a time.
+     */
+    interface SectionReader {
+        /**
+         * Called for each section in turn with its header, its body's length and a stream over
+         * just its body, which needn't be read to the end.
+         */
+        void read(long requestId, Section header, int length, InputStream body) throws IOException;
+    }
+
+    static int envelopeLength(List<Section> sections) {
+        int size = HEADER_LENGTH;
+        for (Section s : sections) {
+            size += SECTION_HEADER_LENGTH + s.body.length;
+        }
+        return size;
+    }
+
+    static byte[] encodeEnvelope(long requestId, List<Section> sections) {
+        ByteBuffer b = ByteBuffer.allocate(envelopeLength(sections));
+        b.putLong(requestId);
+        b.put((byte) sections.size());
+        for (Section s : sections) {
+            b.put((byte) s.type);
+            b.put((byte) s.flags);
+            b.putInt(s.version);
+            b.putInt(s.body.length);
+            b.put(s.body);
+        }
+        return b.array();
+    }
+
+    static Envelope decodeEnvelope(byte[] message) throws IOException {
+        if (message == null || message.length < HEADER_LENGTH) {
+            throw new IOException("Truncated envelope");
+        }
+        ByteBuffer b = ByteBuffer.wrap(message);
+        Envelope e = new Envelope();
+        try {
+            e.requestId = b.getLong();
+            int n = b.get() & 0xff;
+            for (int i = 0; i < n; ++i) {
+                int type = b.get() & 0xff;
+                int flags = b.get() & 0xff;
+                int version = b.getInt();
+                int length = b.getInt();
+                if (length < 0 || length > b.remaining()) {
+                    throw new IOException("Bad section length");
+                }
+                byte[] body = new byte[length];
+                b.get(body);
+                e.sections.add(new Section(type, flags, version, body));
+            }
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed envelope", ex);
+        }
+        return e;
+    }
+
+    /**
+     * Writes an envelope to a stream, in the same format as {@link #encodeEnvelope}.
+     */
+    static void writeEnvelope(OutputStream stream, long requestId, List<Section> sections) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeLong(requestId);
+        out.writeByte(sections.size());
+        for (Section s : sections) {
+            out.writeByte(s.type);
+            out.writeByte(s.flags);
+            out.writeInt(s.version);
+            out.writeInt(s.body.length);
+            out.write(s.body);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads an envelope from a stream, handing each section to reader as soon as its header
+     * has arrived. The sections' headers are returned with empty bodies.
+     */
+    static Envelope readEnvelope(InputStream stream, SectionReader reader) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        Envelope e = new Envelope();
+        try {
+            e.requestId = in.readLong();
+            int n = in.readUnsignedByte();
+            for (int i = 0; i < n; ++i) {
+                Section header = new Section(in.readUnsignedByte(), in.readUnsignedByte(), in.readInt(), new byte[0]);
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BODY_LENGTH) {
+                    throw new IOException("Bad section length");
+                }
+                BodyInputStream body = new BodyInputStream(in, length);
+                reader.read(e.requestId, header, length, body);
+                body.skipRest();
+                e.sections.add(header);
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Truncated envelope", ex);
+        }
+        return e;
+    }
+
+    /**
+     * The next length bytes of a stream; closing it leaves the underlying stream open.
+     */
+    private static class BodyInputStream extends FilterInputStream {
+        private int mRemaining;
+
+        BodyInputStream(InputStream in, int length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated section");
+            }
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, Math.min(count, mRemaining));
+            if (n < 0) {
+                throw new EOFException("Truncated section");
+            }
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long n = in.skip(Math.min(count, mRemaining));
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void skipRest() throws IOException {
+            byte[] scratch = new byte[512];
+            while (mRemaining > 0) {
+                read(scratch, 0, scratch.length);
+            }
+        }
+    }
+
+    /**
+     * Metadata sent with every envelope: the phone's clock, when its forecast was fetched
+     * and whether it can currently download forecasts (the state of the phone's
+     * CircuitBreaker). The forecast is stale when the last is not 0.
+     */
+    static byte[] encodeMeta(long phoneTime, long weatherFetchedAt, int weatherStatus) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeLong(phoneTime);
+            out.writeLong(weatherFetchedAt);
+            out.writeByte(weatherStatus);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bos.toByteArray();
+    }
+
+    static long[] decodeMeta(byte[] body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            long phoneTime = in.readLong();
+            long weatherFetchedAt = in.readLong();
+            int weatherStatus = in.available() > 0 ? in.readUnsignedByte() : 0;
+            return new long[]{phoneTime, weatherFetchedAt, weatherStatus};
+        }
+    }
+
+    /**
+     * Content version of a section body. Never 0, which means "nothing held".
+     */
+    static int version(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int v = (int) crc.getValue();
+        return v != 0 ? v : 1;
+    }
+}
@@ -0,0 +1,138 @@
+package thjread.annulus;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sync telemetry shared by the watch and the phone. Keeps named counters, log2-bucketed
+ * histograms and a ring buffer of the most recent events, each tagged with the correlation id
+ * of the sync request it belongs to (0 if none).
+ */
+class SyncStats {
+    static final int RING_SIZE = 128;
+    private static final int BUCKETS = 40;
+
+    private static class Histogram {
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        final long buckets[] = new long[BUCKETS];
+
+        void add(long value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            buckets[bucket(value)]++;
+        }
+
+        /**
+         * Upper bound of the bucket containing the given percentile.
+         */
+        long percentile(double p) {
+            long target = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        static int bucket(long value) {
+            if (value <= 0) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+    }
+
+    private final Map<String, long[]> counters = new TreeMap<>();
+    private final Map<String, Histogram> histograms = new TreeMap<>();
+
+    private final long eventTime[] = new long[RING_SIZE];
+    private final String eventName[] = new String[RING_SIZE];
+    private final long eventRequestId[] = new long[RING_SIZE];
+    private final long eventValue[] = new long[RING_SIZE];
+    private int eventCount = 0;
+
+    synchronized void count(String name) {
+        add(name, 1);
+    }
+
+    synchronized void add(String name, long delta) {
+        long c[] = counters.get(name);
+        if (c == null) {
+            c = new long[1];
+            counters.put(name, c);
+        }
+        c[0] += delta;
+    }
+
+    synchronized long get(String name) {
+        long c[] = counters.get(name);
+        return c == null ? 0 : c[0];
+    }
+
+    /**
+     * Counts an event and appends it to the ring buffer.
+     */
+    synchronized void event(String name, long requestId) {
+        count(name);
+        append(name, requestId, 0);
+    }
+
+    /**
+     * Adds a sample to the named histogram and appends it to the ring buffer.
+     */
+    synchronized void record(String name, long requestId, long value) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            h = new Histogram();
+            histograms.put(name, h);
+        }
+        h.add(value);
+        append(name, requestId, value);
+    }
+
+    private void append(String name, long requestId, long value) {
+        int i = eventCount % RING_SIZE;
+        eventTime[i] = System.currentTimeMillis();
+        eventName[i] = name;
+        eventRequestId[i] = requestId;
+        eventValue[i] = value;
+        eventCount++;
+    }
+
+    synchronized String summary() {
+        return summary(0);
+    }
+
+    /**
+     * Human readable summary of all counters and histograms, followed by up to maxEvents of the
+     * most recent events.
+     */
+    synchronized String summary(int maxEvents) {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, long[]> e : counters.entrySet()) {
+            s.append(e.getKey()).append(' ').append(e.getValue()[0]).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            s.append(String.format(Locale.US, "%s n=%d mean=%d min=%d p50<=%d p90<=%d p99<=%d max=%d\n",
+                    e.getKey(), h.count, h.sum / h.count, h.min,
+                    h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.max));
+        }
+        int n = Math.min(maxEvents, Math.min(eventCount, RING_SIZE));
+        for (int k = n; k > 0; --k) {
+            int i = (eventCount - k) % RING_SIZE;
+            s.append(String.format(Locale.US, "@%d %s id=%x value=%d\n",
+                    eventTime[i], eventName[i], eventRequestId[i], eventValue[i]));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package thjread.annulus;
+
+import java.util.List;
+
+/**
+ * The link between the watch and the phone that sync messages go over; WearConnection on the
+ * watch and a GoogleApiClient on the phone.
+ */
+interface SyncTransport {
+    interface Callback {
+        /**
+         * Called once the message has been handed over, or failed to be.
+         */
+        void onResult(boolean success);
+    }
+
+    /**
+     * Sends a message to a node, or from the watch with a null nodeId, to the phone node in
+     * use. Returns false if there is no connection or node. Messages must fit in
+     * {@link SyncProtocol#MAX_MESSAGE_LENGTH}.
+     */
+    boolean send(String nodeId, String path, byte[] data, Callback callback);
+
+    /**
+     * Streams an envelope longer than {@link SyncProtocol#MAX_MESSAGE_LENGTH} to a node over
+     * a channel on {@link SyncProtocol#SYNC_PATH}, written straight from the section bodies
+     * with {@link SyncProtocol#writeEnvelope}. Returns false if there is no connection. Only
+     * the phone sends envelopes; the watch's transport always returns false.
+     */
+    boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections, Callback callback);
+}
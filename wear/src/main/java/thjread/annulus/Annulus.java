@@ -29,7 +29,7 @@ import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.support.annotation.NonNull;
+import android.os.SystemClock;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceStyle;
 import android.text.format.DateUtils;
@@ -38,36 +38,24 @@ import android.view.Gravity;
 import android.view.SurfaceHolder;
 import android.view.WindowInsets;
 
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.CapabilityApi;
-import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
 import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.Wearable;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
-import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-class CalendarData implements java.io.Serializable {
-    private static final long serialVersionUID = 1L;
-
-    public String title;
-    public long begin;
-    public long end;
-}
-
 /**
  * Analog watch face with a ticking second hand. In ambient mode, the second hand isn't shown. On
  * devices with low-bit ambient mode, the hands are drawn without anti-aliasing in ambient mode.
@@ -84,6 +72,11 @@ public class Annulus extends CanvasWatchFaceService {
      */
     private static final int MSG_UPDATE_TIME = 0;
 
+    /**
+     * How long to wait for a sync channel's stream to open.
+     */
+    private static final long CHANNEL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
     @Override
     public Engine onCreateEngine() {
         return new Engine();
@@ -109,8 +102,8 @@ public class Annulus extends CanvasWatchFaceService {
         }
     }
 
-    private class Engine extends CanvasWatchFaceService.Engine implements GoogleApiClient.ConnectionCallbacks,
-            GoogleApiClient.OnConnectionFailedListener, MessageApi.MessageListener {
+    private class Engine extends CanvasWatchFaceService.Engine implements MessageApi.MessageListener,
+            ChannelApi.ChannelListener, WearConnection.Listener, WatchSync.Listener {
         public final String TAG = "thjread.annulus";
 
         final Handler mUpdateTimeHandler = new EngineHandler(this);
@@ -170,13 +163,21 @@ public class Annulus extends CanvasWatchFaceService {
 
         boolean rapid_update = false;
 
-        boolean mApiConnected = false;
-        GoogleApiClient mGoogleApiClient;
+        WearConnection mConnection;
 
         boolean showCalendar = true;
 
         boolean wereEvents = false;
 
+        final SyncStats mStats = new SyncStats();
+        final EnergyLedger mEnergy = new EnergyLedger(EnergyLedger.WATCH_CPU_MA);
+        WatchSync mSync;
+
+        SnapshotStore mSnapshotStore;
+        final SolarCalculator mSun = new SolarCalculator();
+        long mCreateTime;
+        boolean mDrewFullFrame = false;
+
         @Override
         public void onApplyWindowInsets(WindowInsets insets) {
             super.onApplyWindowInsets(insets);
@@ -208,18 +209,29 @@ public class Annulus extends CanvasWatchFaceService {
 
             mCalendar = Calendar.getInstance();
 
-            mGoogleApiClient = new GoogleApiClient.Builder(Annulus.this)
-                    .addConnectionCallbacks(this)
-                    .addOnConnectionFailedListener(this)
-                    .addApi(Wearable.API)
-                    .build();
+            // Connected lazily once the first frame is up, see onDraw
+            mConnection = new WearConnection(Annulus.this, this, this, this, mStats);
+            mSync = new WatchSync(mConnection, Clock.SYSTEM, mStats, mEnergy, this);
 
-            mGoogleApiClient.connect();
+            mCreateTime = SystemClock.elapsedRealtime();
+            mSnapshotStore = new SnapshotStore(Annulus.this);
+            SnapshotStore.Snapshot snapshot = mSnapshotStore.load();
+            if (snapshot != null) {
+                mSync.restore(snapshot);
+                mStats.count("startup.snapshot_hit");
+            } else {
+                mStats.count("startup.snapshot_miss");
+            }
+            mStats.record("startup.snapshot_load_ms", 0, SystemClock.elapsedRealtime() - mCreateTime);
         }
 
         @Override
         public void onDestroy() {
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mMainHandler.removeCallbacksAndMessages(null);
+            mChannelReader.shutdownNow();
+            mSnapshotStore.close();
+            mConnection.destroy();
             super.onDestroy();
         }
 
@@ -233,7 +245,8 @@ public class Annulus extends CanvasWatchFaceService {
         @Override
         public void onTimeTick() {
             super.onTimeTick();
-            checkBackgroundUpdate();
+            mEnergy.wakeup("timer", System.currentTimeMillis());
+            mSync.check(mAmbient, rapid_update);
             invalidate();
         }
 
@@ -270,7 +283,7 @@ public class Annulus extends CanvasWatchFaceService {
                     // The user has completed the tap gesture.
                     //mBackgroundPaint.setColor(mRes.getColor(mTapCount % 2 == 0 ?
                             //R.color.background : R.color.background2));
-                    backgroundUpdate();
+                    mSync.request();
                     showCalendar = !showCalendar;
                     break;
             }
@@ -279,6 +292,9 @@ public class Annulus extends CanvasWatchFaceService {
 
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
+            long drawStart = System.nanoTime();
+            mConnection.start();
+
             // Draw the background.
             if (isInAmbientMode()) {
                 canvas.drawColor(Color.BLACK);
@@ -288,6 +304,8 @@ public class Annulus extends CanvasWatchFaceService {
 
             long currentTime = System.currentTimeMillis();
 
+            mSync.onRendered();
+
             // Find the center. Ignore the window insets so that, on round watches with a
             // "chin", the watch face is centered on the entire screen, not just the usable
             // portion.
@@ -319,31 +337,34 @@ public class Annulus extends CanvasWatchFaceService {
             java.util.Arrays.fill(rainProb, 0);
             boolean is_rain = false;
 
-            if (weatherData != null && weatherData.currently != null) {
-                long t = weatherData.currently.time;
-                t *= 1000;
-                if (currentTime - t >= 6 * DateUtils.HOUR_IN_MILLIS) {
-                    Log.d(TAG, "Weather data too old - deleting");
-                    weatherData = null;//Data is too old
-                }
+            mWindow.advance(mSync.weatherData, currentTime);
+            if (mSync.weatherData != null && ForecastHorizon.expired(mSync.weatherData, currentTime)) {
+                Log.d(TAG, "Weather data ran out - deleting");
+                mSync.weatherData = null;
+            }
+            if (mSync.calendar != null && !mSync.calendar.covers(currentTime)) {
+                Log.d(TAG, "Calendar data ran out - deleting");
+                mSync.calendar = null;
+            }
+            WeatherService.WeatherData weatherData = mSync.weatherData;
+            CalendarHorizon calendar = mSync.calendar;
+            if (calendar != null) {
+                calendar.advance(currentTime);
             }
+            long weatherAge = weatherData != null
+                    ? ForecastHorizon.age(weatherData, mSync.weatherFetchedAt, currentTime) : 0;
+            int weatherAlpha = ForecastHorizon.alpha(weatherAge);
 
-            if (weatherData != null && weatherData.minutely != null) {
-                for (WeatherService.Datum d : weatherData.minutely.data) {
-                    long time = d.time;
-                    time *= 1000;
-                    mCalendar.setTimeInMillis(time);
-                    minutes = mCalendar.get(Calendar.MINUTE);
-                    if (d.precipProbability != null && d.precipIntensity != null &&
-                            time - currentTime <= 59 * DateUtils.MINUTE_IN_MILLIS &&
-                            time - currentTime >= -DateUtils.MINUTE_IN_MILLIS) {
-                        double rain = d.precipIntensity * d.precipProbability; // minutely data is conditional on probability
-                        rainPrediction[minutes] = (float) rain;
-                        double prob = d.precipProbability;
-                        rainProb[minutes] = (float) prob;
-                        if (rain >= 0.12) {
-                            is_rain = true;
-                        }
+            if (!mDrewFullFrame && weatherData != null && calendar != null) {
+                mDrewFullFrame = true;
+                mStats.record("startup.first_full_frame_ms", 0, SystemClock.elapsedRealtime() - mCreateTime);
+            }
+
+            if (weatherData != null && ForecastHorizon.minuteRain(mWindow.minutely(), mWindow.hourly(),
+                    weatherAge, currentTime, mCalendar.getTimeZone(), rainPrediction, rainProb)) {
+                for (float rain : rainPrediction) {
+                    if (rain >= 0.12) {
+                        is_rain = true;
                     }
                 }
             }
@@ -367,6 +388,7 @@ public class Annulus extends CanvasWatchFaceService {
                     mHandPaint.setColor(Color.rgb((int) (p * Color.red(rain_color) + 255 * (1 - p)),
                             (int) (p * Color.green(rain_color) + 255 * (1 - p)),
                             (int) (p * Color.blue(rain_color) + 255 * (1 - p))));
+                    mHandPaint.setAlpha(weatherAlpha);
                 } else {
                     mHandPaint.setColor(Color.WHITE);
                 }
@@ -407,12 +429,8 @@ public class Annulus extends CanvasWatchFaceService {
 
             ArrayList<CalendarData> currentEvents = new ArrayList<CalendarData>();
 
-            if (calendarData != null) {
-                for (CalendarData c : calendarData) {
-                    if (c.begin < currentTime + DateUtils.MINUTE_IN_MILLIS * 57 && c.end > currentTime) {
-                        currentEvents.add(c);
-                    }
-                }
+            if (calendar != null) {
+                currentEvents.addAll(calendar.during(currentTime, currentTime + DateUtils.MINUTE_IN_MILLIS * 57));
             }
 
             if (currentEvents.isEmpty() && wereEvents) {
@@ -517,12 +535,14 @@ public class Annulus extends CanvasWatchFaceService {
                 if (weatherData != null && weatherData.hourly != null) {//TODO move to update function
                     List<DayWeatherPoint> dailyWeather = new ArrayList<>();
 
-                    for (WeatherService.Datum d : weatherData.hourly.data) {
+                    for (WeatherService.Datum d : mWindow.hourly()) {
                         long time = d.time;
                         time *= 1000;
 
-                        if (time - currentTime >= DateUtils.HOUR_IN_MILLIS * 12
-                                || time - currentTime < -DateUtils.HOUR_IN_MILLIS) {
+                        if (time - currentTime >= DateUtils.HOUR_IN_MILLIS * 12) {
+                            break;
+                        }
+                        if (time - currentTime < -DateUtils.HOUR_IN_MILLIS) {
                             continue;
                         }
                         if (time < currentTime) {
@@ -569,20 +589,22 @@ public class Annulus extends CanvasWatchFaceService {
                         dailyWeather.add(p);
                     }
 
-                    boolean do_sun = false;
-                    if (weatherData.daily != null && weatherData.daily.data.size() >= 2) {
-                        do_sun = true;
+                    long[] sun = null;
+                    if (weatherData.latitude != null && weatherData.longitude != null) {
+                        sun = mSun.times(weatherData.latitude, weatherData.longitude, currentTime,
+                                mCalendar.getTimeZone());
                     }
+                    boolean do_sun = sun != null;
                     if (do_sun) {
                         long nextChange;
-                        if (firstTime < weatherData.daily.data.get(0).sunriseTime) {
-                            nextChange = weatherData.daily.data.get(0).sunriseTime;
-                        } else if (firstTime < weatherData.daily.data.get(0).sunsetTime) {
-                            nextChange = weatherData.daily.data.get(0).sunsetTime;
-                        } else if (firstTime < weatherData.daily.data.get(1).sunriseTime) {
-                            nextChange = weatherData.daily.data.get(1).sunriseTime;
+                        if (firstTime < sun[0]) {
+                            nextChange = sun[0];
+                        } else if (firstTime < sun[1]) {
+                            nextChange = sun[1];
+                        } else if (firstTime < sun[2]) {
+                            nextChange = sun[2];
                         } else {
-                            nextChange = weatherData.daily.data.get(1).sunsetTime;
+                            nextChange = sun[3];
                         }
 
                         if (nextChange*1000 - currentTime < DateUtils.HOUR_IN_MILLIS * 11
@@ -630,9 +652,7 @@ public class Annulus extends CanvasWatchFaceService {
                         boolean dark = false;
                         long t = p.time;
                         if (do_sun) {
-                            if (t < weatherData.daily.data.get(0).sunriseTime
-                                    || (t >= weatherData.daily.data.get(0).sunsetTime &&
-                                    t < weatherData.daily.data.get(1).sunriseTime)) {
+                            if (t < sun[0] || (t >= sun[1] && t < sun[2])) {
                                 dark = true;
                             }
                         }
@@ -665,6 +685,7 @@ public class Annulus extends CanvasWatchFaceService {
                                     centreX, centreY, grid);
 
                             mHandPaint.setColor(prev.color);
+                            mHandPaint.setAlpha(weatherAlpha);
                             canvas.drawPath(path, mHandPaint);
                         }
                         prev = p;
@@ -705,6 +726,8 @@ public class Annulus extends CanvasWatchFaceService {
 
             mHandPaint.setStyle(Paint.Style.FILL);
             canvas.drawCircle(centreX, centreY, grid * circle_size, mHandPaint);
+
+            mEnergy.frame(System.nanoTime() - drawStart, currentTime);
         }
 
         private Path arcPath(float start_rot, float end_rot, float inner_radius, float outer_radius,
@@ -774,15 +797,11 @@ public class Annulus extends CanvasWatchFaceService {
 
                 // Update time zone in case it changed while we weren't visible.
                 mCalendar.setTimeZone(TimeZone.getDefault());
-                mGoogleApiClient.connect();
                 invalidate();
             } else {
-                if (mGoogleApiClient.isConnected()) {
-                    Wearable.MessageApi.removeListener(mGoogleApiClient, this);
-                    mGoogleApiClient.disconnect();
-                }
                 unregisterReceiver();
             }
+            mConnection.setVisible(visible);
 
             // Whether the timer should be running depends on whether we're visible (as well as
             // whether we're in ambient mode), so we may need to start or stop the timer.
@@ -835,181 +854,109 @@ public class Annulus extends CanvasWatchFaceService {
                 long delayMs = INTERACTIVE_UPDATE_RATE_MS
                         - (timeMs % INTERACTIVE_UPDATE_RATE_MS);
                 mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME, delayMs);
-                checkBackgroundUpdate();
+                mSync.check(mAmbient, rapid_update);
             }
         }
 
-        private long lastBackgroundUpdate = 0;
-
-        private void checkBackgroundUpdate() {
-            mCalendar.setTimeInMillis(System.currentTimeMillis());
-
-            if (!rapid_update && weatherData != null) {
-                if (mAmbient) {
-                    if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS * 10
-                            && mCalendar.get(Calendar.MINUTE) % 20 < 4) {
-                        backgroundUpdate();
-                    }
-                } else {
-                    if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS * 5) {
-                        backgroundUpdate();
-                    }
-                }
+        @Override
+        public void onNodeAvailable(String nodeId) {
+            if (mSync.weatherData == null) {
+                mSync.request();
             } else {
-                if (mAmbient && weatherData != null){
-                    if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS*3
-                            && mCalendar.get(Calendar.MINUTE) % 5 <= 1) {
-                        backgroundUpdate();
-                    }
-                } else {
-                    if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS) {
-                        backgroundUpdate();
-                    }
-                }
+                mSync.check(mAmbient, rapid_update);
             }
         }
 
-        private void backgroundUpdate() {
-            lastBackgroundUpdate = System.currentTimeMillis();
-
-            byte[] data = {};
+        final ExecutorService mChannelReader = Executors.newSingleThreadExecutor();
+        final Handler mMainHandler = new Handler();
 
-            Log.d(TAG, "Background update");
+        final ForecastWindow mWindow = new ForecastWindow();
 
-            if (mWeatherNodeId != null && mApiConnected) {
-                Wearable.MessageApi.sendMessage(mGoogleApiClient, mWeatherNodeId,
-                        WEATHER_PATH, data).setResultCallback(
-                        new ResultCallback<MessageApi.SendMessageResult>() {
-                            @Override
-                            public void onResult(@NonNull MessageApi.SendMessageResult result) {
-                            }
-                        }
-                );
+        @Override
+        public void onMessageReceived(MessageEvent messageEvent) {
+            if (messageEvent.getPath().equals(SyncProtocol.SYNC_PATH)) {
+                mSync.onMessage(messageEvent.getData());
             }
+        }
 
-            if (mWeatherNodeId != null && mApiConnected) {
-                Wearable.MessageApi.sendMessage(mGoogleApiClient, mWeatherNodeId,
-                        CALENDAR_PATH, data).setResultCallback(
-                        new ResultCallback<MessageApi.SendMessageResult>() {
+        /**
+         * Replies too big for a message are streamed over a channel; they are read and decoded
+         * off the main thread as they arrive, then applied like a message.
+         */
+        @Override
+        public void onChannelOpened(final Channel channel) {
+            if (!channel.getPath().equals(SyncProtocol.SYNC_PATH)) {
+                return;
+            }
+            final GoogleApiClient client = mConnection.getClient();
+            mChannelReader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final WatchSync.Reply reply = readChannel(client, channel);
+                    if (reply != null) {
+                        mMainHandler.post(new Runnable() {
                             @Override
-                            public void onResult(@NonNull MessageApi.SendMessageResult result) {
+                            public void run() {
+                                mSync.apply(reply);
                             }
-                        }
-                );
-            }
+                        });
+                    }
+                }
+            });
         }
 
-        private static final String WEATHER_CAPABILITY_NAME = "annulus_weather_data";
-        private static final String WEATHER_PATH = "/annulus/weather_data";
-        private static final String CALENDAR_PATH = "/annulus/calendar_data";
-
         @Override
-        public void onConnected(Bundle connectionHint) {
-            mApiConnected = true;
-            Wearable.MessageApi.addListener(mGoogleApiClient, this);
-
-            Wearable.CapabilityApi.getCapability(mGoogleApiClient, WEATHER_CAPABILITY_NAME,
-                    CapabilityApi.FILTER_REACHABLE).setResultCallback(
-                    new ResultCallback<CapabilityApi.GetCapabilityResult>() {
-                        @Override
-                        public void onResult(@NonNull CapabilityApi.GetCapabilityResult getCapabilityResult) {
-                            updateWeatherCapability(getCapabilityResult.getCapability());
-                        }
-                    }
-            );
-
-            CapabilityApi.CapabilityListener capabilityListener =
-                    new CapabilityApi.CapabilityListener() {
-                        @Override
-                        public void onCapabilityChanged(CapabilityInfo capabilityInfo) {
-                            updateWeatherCapability(capabilityInfo);
-                        }
-                    };
-            Wearable.CapabilityApi.addCapabilityListener(
-                    mGoogleApiClient,
-                    capabilityListener,
-                    WEATHER_CAPABILITY_NAME);
+        public void onChannelClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
         }
 
-        private String mWeatherNodeId = null;
+        @Override
+        public void onInputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+        }
 
-        private void updateWeatherCapability(CapabilityInfo capabilityInfo) {
-            Set<Node> connectedNodes = capabilityInfo.getNodes();
-            mWeatherNodeId = pickBestNodeId(connectedNodes);
-            if (weatherData == null) {
-                backgroundUpdate();
-            } else {
-                checkBackgroundUpdate();
-            }
+        @Override
+        public void onOutputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
         }
 
-        private String pickBestNodeId(Set<Node> nodes) {
-            String bestNodeId = null;
-            // Find a nearby node or pick one arbitrarily
-            for (Node node : nodes) {
-                if (node.isNearby()) {
-                    return node.getId();
+        private WatchSync.Reply readChannel(GoogleApiClient client, Channel channel) {
+            try {
+                Channel.GetInputStreamResult result = channel.getInputStream(client)
+                        .await(CHANNEL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (!result.getStatus().isSuccess() || result.getInputStream() == null) {
+                    mStats.count("reply.stream_failed");
+                    return null;
+                }
+                // the channel's stream is unbuffered, and the codecs read a byte at a time
+                try (InputStream in = new BufferedInputStream(result.getInputStream())) {
+                    return mSync.read(in);
                 }
-                bestNodeId = node.getId();
+            } catch (IOException e) {
+                mStats.count("reply.stream_failed");
+                return null;
+            } finally {
+                channel.close(client);
             }
-            return bestNodeId;
         }
 
-        private Object convertFromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-            try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                 ObjectInput in = new ObjectInputStream(bis)) {
-                return in.readObject();
-            }
+        @Override
+        public void onRequestSent(long requestId) {
+            mConnection.onRequestSent(requestId);
         }
 
-        WeatherService.WeatherData weatherData = null;
-        ArrayList<CalendarData> calendarData = null;
-
         @Override
-        public void onMessageReceived(MessageEvent messageEvent) {
-            byte[] d = messageEvent.getData();
-            if (messageEvent.getPath().equals(WEATHER_PATH)) {
-                Log.d(TAG, "Processing weather message");
-                WeatherService.WeatherData data = null;
-                try {
-                    data = (WeatherService.WeatherData) convertFromBytes(d);
-                } catch (IOException e) {
-                    Log.e(TAG, "Weather data conversion from bytes failed");
-                    Log.e(TAG, e.getMessage());
-                } catch (ClassNotFoundException e) {
-
-                }
-
-                if (data != null) {
-                    Log.d(TAG, "Weather data received");
-                    weatherData = data;
-                    invalidate();
-                }
-            } else if (messageEvent.getPath().equals(CALENDAR_PATH)) {
-                Log.d(TAG, "Processing calendar message");
-                ArrayList<CalendarData> data = null;
-                try {
-                    data = (ArrayList<CalendarData>) convertFromBytes(d);
-                } catch (IOException e) {
-                    Log.e(TAG, "Calendar data conversion from bytes failed");
-                } catch (ClassNotFoundException e) {
-
-                }
-
-                if (data != null) {
-                    Log.d(TAG, "Calendar data received");
-                    calendarData = data;
-                    invalidate();
-                }
-            }
+        public void onRequestFailed(long requestId) {
+            mConnection.onRequestFailed(requestId);
         }
 
-        public void onConnectionSuspended(int cause) {
-            mApiConnected = false;
+        @Override
+        public void onReply(long requestId) {
+            mConnection.onReply(requestId);
         }
 
-        public void onConnectionFailed(@NonNull ConnectionResult cause) {
-            mApiConnected = false;
+        @Override
+        public void onDataChanged() {
+            invalidate();
+            mSnapshotStore.save(mSync.weatherData, mSync.weatherVersion, mSync.calendar,
+                    mSync.calendarVersion);
         }
     }
 }
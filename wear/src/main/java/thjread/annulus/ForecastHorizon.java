@@ -0,0 +1,113 @@
+package thjread.annulus;
+
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * How much of an ageing forecast can still be shown. Minute-by-minute rain is only trusted
+ * for {@link #MINUTELY_FRESH_MS}; after that the minute ring is filled in by interpolating
+ * the hourly forecast. The hourly forecast is drawn for as long as it reaches past the
+ * current time, which is up to 48 hours after the fetch. Forecasts older than
+ * {@link #STALE_MS} are drawn faded, more so after {@link #VERY_STALE_MS}.
+ */
+class ForecastHorizon {
+    static final long MINUTELY_FRESH_MS = 30 * 60 * 1000;
+    static final long STALE_MS = 60 * 60 * 1000;
+    static final long VERY_STALE_MS = 6 * 60 * 60 * 1000;
+    static final int STALE_ALPHA = 170;
+    static final int VERY_STALE_ALPHA = 100;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    /**
+     * Age of a forecast, from when the phone fetched it if known, otherwise from its current
+     * conditions' time.
+     */
+    static long age(WeatherService.WeatherData data, long fetchedAt, long now) {
+        if (fetchedAt == 0 && data.currently != null && data.currently.time != null) {
+            fetchedAt = data.currently.time * 1000L;
+        }
+        return fetchedAt == 0 ? Long.MAX_VALUE : Math.max(0, now - fetchedAt);
+    }
+
+    /**
+     * Whether nothing is left to draw: the hourly forecast has run out.
+     */
+    static boolean expired(WeatherService.WeatherData data, long now) {
+        if (data.hourly == null || data.hourly.data.isEmpty()) {
+            return true;
+        }
+        Integer last = data.hourly.data.get(data.hourly.data.size() - 1).time;
+        return last == null || last * 1000L < now;
+    }
+
+    /**
+     * Opacity to draw weather with, for a forecast of the given age.
+     */
+    static int alpha(long age) {
+        if (age >= VERY_STALE_MS) {
+            return VERY_STALE_ALPHA;
+        }
+        return age >= STALE_MS ? STALE_ALPHA : 255;
+    }
+
+    /**
+     * Fills rain intensity and probability for the hour from now, indexed by minute of the
+     * hour in the given zone. Uses the minutely forecast when it is fresh, otherwise
+     * interpolates the hourly one. Both series are in time order, starting no more than a
+     * point before now (see {@link ForecastWindow}). Returns false if there was nothing to
+     * fill from.
+     */
+    static boolean minuteRain(List<WeatherService.Datum> minutely, List<WeatherService.Datum> hourly,
+                              long age, long now, TimeZone zone, float intensity[], float probability[]) {
+        if (age < MINUTELY_FRESH_MS && !minutely.isEmpty()) {
+            for (WeatherService.Datum d : minutely) {
+                if (d.time == null || d.precipProbability == null || d.precipIntensity == null) {
+                    continue;
+                }
+                long time = d.time * 1000L;
+                if (time - now > 59 * MINUTE_MILLIS) {
+                    break;
+                }
+                if (time - now >= -MINUTE_MILLIS) {
+                    int minute = minuteOfHour(time, zone);
+                    // minutely intensity is conditional on probability
+                    intensity[minute] = (float) (d.precipIntensity * d.precipProbability);
+                    probability[minute] = d.precipProbability.floatValue();
+                }
+            }
+            return true;
+        }
+        boolean filled = false;
+        long start = now - now % MINUTE_MILLIS;
+        int i = 0;
+        for (int m = 0; m < 60; ++m) {
+            long time = start + m * MINUTE_MILLIS;
+            // Find the hourly points either side, carrying on from the last minute's
+            while (i + 1 < hourly.size()
+                    && (hourly.get(i + 1).time == null || hourly.get(i + 1).time * 1000L <= time)) {
+                i++;
+            }
+            if (i + 1 >= hourly.size()) {
+                break;
+            }
+            WeatherService.Datum a = hourly.get(i);
+            WeatherService.Datum b = hourly.get(i + 1);
+            if (a.time == null || a.time * 1000L > time || a.precipIntensity == null || b.precipIntensity == null
+                    || a.precipProbability == null || b.precipProbability == null) {
+                continue;
+            }
+            float f = (float) (time - a.time * 1000L) / ((b.time - a.time) * 1000L);
+            int minute = minuteOfHour(time, zone);
+            intensity[minute] = (float) (a.precipIntensity + f * (b.precipIntensity - a.precipIntensity));
+            probability[minute] = (float) (a.precipProbability + f * (b.precipProbability - a.precipProbability));
+            filled = true;
+        }
+        return filled;
+    }
+
+    private static int minuteOfHour(long time, TimeZone zone) {
+        long local = time + zone.getOffset(time);
+        return (int) ((local / MINUTE_MILLIS) % 60);
+    }
+}
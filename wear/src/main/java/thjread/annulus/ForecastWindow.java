@@ -0,0 +1,85 @@
+package thjread.annulus;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of the forecast still to come. Keeps a cursor into each time-ordered series,
+ * moved past expired points once a minute, so drawing a frame only walks points that can be
+ * shown. Expired points are cut out of the lists {@link #COMPACT_AT} at a time, freeing them
+ * without shifting the list every minute.
+ *
+ * Minutely points are kept until a minute after their time and hourly points until an hour
+ * after, matching what the rings draw.
+ */
+class ForecastWindow {
+    static final long MINUTELY_KEEP_MS = 60 * 1000;
+    static final long HOURLY_KEEP_MS = 60 * 60 * 1000;
+    static final int COMPACT_AT = 8;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    private WeatherService.WeatherData mData = null;
+    private int mMinutely = 0;
+    private int mHourly = 0;
+    private long mMinute = -1;
+
+    /**
+     * Moves the cursors up to now, starting afresh if data isn't the forecast from last time.
+     * Does nothing more than once a minute.
+     */
+    void advance(WeatherService.WeatherData data, long now) {
+        if (data != mData) {
+            mData = data;
+            mMinutely = 0;
+            mHourly = 0;
+            mMinute = -1;
+        }
+        long minute = now / MINUTE_MILLIS;
+        if (data == null || minute == mMinute) {
+            return;
+        }
+        mMinute = minute;
+        if (data.minutely != null) {
+            mMinutely = prune(data.minutely.data, mMinutely, now - MINUTELY_KEEP_MS);
+        }
+        if (data.hourly != null) {
+            mHourly = prune(data.hourly.data, mHourly, now - HOURLY_KEEP_MS);
+        }
+    }
+
+    /**
+     * Minutely points from a minute ago on, in time order.
+     */
+    List<WeatherService.Datum> minutely() {
+        if (mData == null || mData.minutely == null) {
+            return Collections.emptyList();
+        }
+        return mData.minutely.data.subList(mMinutely, mData.minutely.data.size());
+    }
+
+    /**
+     * Hourly points from an hour ago on, in time order.
+     */
+    List<WeatherService.Datum> hourly() {
+        if (mData == null || mData.hourly == null) {
+            return Collections.emptyList();
+        }
+        return mData.hourly.data.subList(mHourly, mData.hourly.data.size());
+    }
+
+    private static int prune(List<WeatherService.Datum> series, int cursor, long before) {
+        while (cursor < series.size()) {
+            Integer time = series.get(cursor).time;
+            if (time != null && time * 1000L >= before) {
+                break;
+            }
+            cursor++;
+        }
+        if (cursor >= COMPACT_AT || (cursor > 0 && cursor == series.size())) {
+            series.subList(0, cursor).clear();
+            cursor = 0;
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,209 @@
+package thjread.annulus;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks how well each phone node answers sync requests, and picks which one to use.
+ *
+ * Each node has a smoothed round-trip time and failure rate, from replies, failed sends and
+ * requests unanswered after {@link #REPLY_TIMEOUT_MS}. Its score is the expected time to a
+ * successful reply, rtt / (1 - failure rate); nodes not heard from yet are assumed to answer
+ * in {@link #NEARBY_PRIOR_MS}, or {@link #REMOTE_PRIOR_MS} if they aren't nearby. The current
+ * node is kept until it is {@link #SWITCH_RATIO} times worse than the best, or fails
+ * {@link #MAX_CONSECUTIVE_FAILURES} times in a row, so that noise doesn't make it flap.
+ * A node's history is forgotten {@link #FORGET_MS} after it was last heard from, so a node
+ * that was abandoned gets another chance.
+ *
+ * The phone answers only the latest of a node's outstanding requests, so a request sent while
+ * an earlier one to the same node is pending takes its place: the earlier one isn't counted
+ * as failed, but the wait for a reply runs from when it was sent.
+ */
+class NodeHealth {
+    static final long REPLY_TIMEOUT_MS = 60 * 1000;
+    static final long NEARBY_PRIOR_MS = 1000;
+    static final long REMOTE_PRIOR_MS = 5000;
+    static final double WEIGHT = 0.25;
+    static final double SWITCH_RATIO = 2;
+    static final int MIN_SAMPLES = 3;
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    static final long FORGET_MS = 30 * 60 * 1000;
+    private static final double MAX_FAILURE_RATE = 0.95;
+
+    private static class Node {
+        boolean available;
+        boolean nearby;
+        double rtt;
+        double failureRate = 0;
+        int samples = 0;
+        int consecutiveFailures = 0;
+        long lastSampleAt = 0;
+
+        void reset() {
+            rtt = nearby ? NEARBY_PRIOR_MS : REMOTE_PRIOR_MS;
+            failureRate = 0;
+            samples = 0;
+            consecutiveFailures = 0;
+        }
+    }
+
+    private static class Pending {
+        final String nodeId;
+        final long sentAt;
+        /**
+         * When the node was first sent a request it hasn't answered since.
+         */
+        final long waitingSince;
+
+        Pending(String nodeId, long sentAt, long waitingSince) {
+            this.nodeId = nodeId;
+            this.sentAt = sentAt;
+            this.waitingSince = waitingSince;
+        }
+    }
+
+    private final SyncStats mStats;
+    private final Map<String, Node> mNodes = new HashMap<>();
+    private final Map<Long, Pending> mPending = new HashMap<>();
+
+    NodeHealth(SyncStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * The nodes currently offering the capability, each with whether it is nearby. History
+     * is kept for nodes that go away, in case they come back.
+     */
+    void setNodes(Map<String, Boolean> nearby) {
+        for (Node node : mNodes.values()) {
+            node.available = false;
+        }
+        for (Map.Entry<String, Boolean> e : nearby.entrySet()) {
+            Node node = node(e.getKey());
+            node.available = true;
+            node.nearby = e.getValue();
+            if (node.samples == 0) {
+                node.reset();
+            }
+        }
+    }
+
+    void onSent(String nodeId, long requestId, long now) {
+        long waitingSince = now;
+        Iterator<Map.Entry<Long, Pending>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> e = it.next();
+            if (e.getValue().nodeId.equals(nodeId)) {
+                it.remove();
+                waitingSince = Math.min(waitingSince, e.getValue().waitingSince);
+                mStats.event("node." + shortId(nodeId) + ".superseded", e.getKey());
+            }
+        }
+        mPending.put(requestId, new Pending(nodeId, now, waitingSince));
+    }
+
+    void onReply(long requestId, long now) {
+        Pending p = mPending.remove(requestId);
+        if (p == null) {
+            return;
+        }
+        Node node = node(p.nodeId);
+        long rtt = now - p.sentAt;
+        node.rtt = node.samples == 0 ? rtt : node.rtt + WEIGHT * (rtt - node.rtt);
+        node.failureRate -= WEIGHT * node.failureRate;
+        node.samples++;
+        node.consecutiveFailures = 0;
+        node.lastSampleAt = now;
+        mStats.record("node." + shortId(p.nodeId) + ".rtt_ms", requestId, rtt);
+    }
+
+    void onFailed(long requestId, long now) {
+        Pending p = mPending.remove(requestId);
+        if (p != null) {
+            fail(p.nodeId, requestId, now);
+        }
+    }
+
+    /**
+     * Counts requests unanswered for too long as failed.
+     */
+    void expire(long now) {
+        Iterator<Map.Entry<Long, Pending>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> e = it.next();
+            if (now - e.getValue().waitingSince >= REPLY_TIMEOUT_MS) {
+                it.remove();
+                fail(e.getValue().nodeId, e.getKey(), now);
+            }
+        }
+    }
+
+    private void fail(String nodeId, long requestId, long now) {
+        Node node = node(nodeId);
+        node.failureRate += WEIGHT * (1 - node.failureRate);
+        node.samples++;
+        node.consecutiveFailures++;
+        node.lastSampleAt = now;
+        mStats.event("node." + shortId(nodeId) + ".failed", requestId);
+    }
+
+    /**
+     * Expected milliseconds to a successful reply from a node.
+     */
+    double score(String nodeId) {
+        Node node = node(nodeId);
+        return node.rtt / (1 - Math.min(node.failureRate, MAX_FAILURE_RATE));
+    }
+
+    /**
+     * The node to send to next, given the one in use (possibly null). Keeps the current node
+     * if nothing is known about which nodes are available.
+     */
+    String choose(String current, long now) {
+        expire(now);
+        for (Node node : mNodes.values()) {
+            if (node.samples > 0 && now - node.lastSampleAt >= FORGET_MS) {
+                node.reset();
+            }
+        }
+        String best = null;
+        Node currentNode = current != null ? mNodes.get(current) : null;
+        boolean currentFailing = currentNode != null
+                && currentNode.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES;
+        for (Map.Entry<String, Node> e : mNodes.entrySet()) {
+            if (!e.getValue().available || (currentFailing && e.getKey().equals(current))) {
+                continue;
+            }
+            if (best == null || score(e.getKey()) < score(best)) {
+                best = e.getKey();
+            }
+        }
+        if (best == null || best.equals(current)) {
+            return current;
+        }
+        if (currentNode == null || !currentNode.available || currentFailing) {
+            return best;
+        }
+        // a few samples aren't enough to judge a node by, but no samples at all is just the prior
+        boolean comparable = currentNode.samples == 0 || currentNode.samples >= MIN_SAMPLES;
+        if (comparable && score(current) > SWITCH_RATIO * score(best)) {
+            return best;
+        }
+        return current;
+    }
+
+    private Node node(String nodeId) {
+        Node node = mNodes.get(nodeId);
+        if (node == null) {
+            node = new Node();
+            node.reset();
+            mNodes.put(nodeId, node);
+        }
+        return node;
+    }
+
+    private static String shortId(String nodeId) {
+        return nodeId.length() > 8 ? nodeId.substring(0, 8) : nodeId;
+    }
+}
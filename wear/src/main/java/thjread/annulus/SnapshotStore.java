@@ -0,0 +1,130 @@
+package thjread.annulus;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists the last received weather and calendar data so the face can draw them straight
+ * after a restart, without waiting for the phone. Saves are encoded on the caller's thread
+ * and written atomically on a background thread; a newer save supersedes a pending one.
+ */
+class SnapshotStore {
+    private static final String TAG = "thjread.annulus";
+    private static final String FILE_NAME = "snapshot.bin";
+    private static final int MAGIC = 0x414e4e53; // "ANNS"
+    private static final int VERSION = 5;
+
+    static class Snapshot {
+        WeatherService.WeatherData weatherData;
+        int weatherVersion;
+        CalendarHorizon calendar;
+        int calendarVersion;
+    }
+
+    private final AtomicFile mFile;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private byte[] mPending = null;
+
+    SnapshotStore(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Loads the last saved snapshot, or returns null if there is none or it is unreadable.
+     */
+    Snapshot load() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(mFile.openRead());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            Snapshot s = new Snapshot();
+            s.weatherVersion = in.readInt();
+            s.weatherData = ForecastCodec.readWeather(in);
+            s.calendarVersion = in.readInt();
+            s.calendar = CalendarHorizon.read(in);
+            return s;
+        } catch (IOException e) {
+            Log.e(TAG, "Snapshot load failed");
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Saves data along with the sync protocol versions it was received as.
+     */
+    void save(WeatherService.WeatherData weatherData, int weatherVersion,
+              CalendarHorizon calendar, int calendarVersion) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(weatherVersion);
+            ForecastCodec.writeWeather(out, weatherData);
+            out.writeInt(calendarVersion);
+            CalendarHorizon.write(out, calendar);
+        } catch (IOException e) {
+            Log.e(TAG, "Snapshot encoding failed");
+            return;
+        }
+
+        synchronized (this) {
+            boolean scheduled = mPending != null;
+            mPending = bos.toByteArray();
+            if (scheduled) {
+                return;
+            }
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data;
+                synchronized (SnapshotStore.this) {
+                    data = mPending;
+                    mPending = null;
+                }
+                write(data);
+            }
+        });
+    }
+
+    private void write(byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Snapshot write failed");
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    void close() {
+        mWriter.shutdown();
+    }
+}
@@ -0,0 +1,115 @@
+package thjread.annulus;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Sunrise and sunset from the NOAA solar calculator equations, so the face can shade day and
+ * night without the forecast's daily block. Accurate to about a minute outside the polar
+ * circles.
+ *
+ * Results are cached for the last local date and location asked for, so calling this every
+ * frame only costs a calendar lookup.
+ */
+class SolarCalculator {
+    /**
+     * Zenith of sunrise and sunset: the sun's radius plus atmospheric refraction.
+     */
+    private static final double ZENITH = 90.833;
+    private static final double JULIAN_UNIX_EPOCH = 2440587.5;
+    private static final double J2000 = 2451545.0;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final Calendar mLocal = Calendar.getInstance();
+    private final Calendar mUtc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private int mCachedDate = -1;
+    private double mCachedLatitude;
+    private double mCachedLongitude;
+    private long mCached[] = null;
+
+    /**
+     * Today's sunrise and sunset followed by tomorrow's, in seconds since the epoch, for the
+     * local date of now in the given time zone. Returns null if the sun doesn't rise and set
+     * on both days, e.g. in polar summer or winter.
+     */
+    long[] times(double latitude, double longitude, long now, TimeZone zone) {
+        mLocal.setTimeZone(zone);
+        mLocal.setTimeInMillis(now);
+        int year = mLocal.get(Calendar.YEAR);
+        int month = mLocal.get(Calendar.MONTH);
+        int day = mLocal.get(Calendar.DAY_OF_MONTH);
+        int date = (year * 12 + month) * 31 + day;
+        if (date == mCachedDate && latitude == mCachedLatitude && longitude == mCachedLongitude) {
+            return mCached;
+        }
+
+        mUtc.clear();
+        mUtc.set(year, month, day);
+        long midnight = mUtc.getTimeInMillis();
+        long today[] = sunriseSunset(latitude, longitude, midnight);
+        long tomorrow[] = sunriseSunset(latitude, longitude, midnight + DAY_MILLIS);
+
+        mCachedDate = date;
+        mCachedLatitude = latitude;
+        mCachedLongitude = longitude;
+        mCached = today != null && tomorrow != null ?
+                new long[]{today[0], today[1], tomorrow[0], tomorrow[1]} : null;
+        return mCached;
+    }
+
+    /**
+     * Sunrise and sunset in seconds since the epoch on the date starting at utcMidnight, or
+     * null if the sun stays up or down all day.
+     */
+    static long[] sunriseSunset(double latitude, double longitude, long utcMidnight) {
+        double jd = JULIAN_UNIX_EPOCH + (double) utcMidnight / DAY_MILLIS;
+        // Evaluate the sun's position at approximate local solar noon
+        double t = (jd + 0.5 - longitude / 360 - J2000) / 36525;
+
+        double l0 = mod360(280.46646 + t * (36000.76983 + t * 0.0003032));
+        double m = 357.52911 + t * (35999.05029 - 0.0001537 * t);
+        double e = 0.016708634 - t * (0.000042037 + 0.0000001267 * t);
+        double c = sin(m) * (1.914602 - t * (0.004817 + 0.000014 * t))
+                + sin(2 * m) * (0.019993 - 0.000101 * t)
+                + sin(3 * m) * 0.000289;
+        double omega = 125.04 - 1934.136 * t;
+        double apparentLongitude = l0 + c - 0.00569 - 0.00478 * sin(omega);
+        double meanObliquity = 23 + (26 + (21.448 - t * (46.815 + t * (0.00059 - t * 0.001813))) / 60) / 60;
+        double obliquity = meanObliquity + 0.00256 * cos(omega);
+        double declination = Math.toDegrees(Math.asin(sin(obliquity) * sin(apparentLongitude)));
+
+        double y = Math.tan(Math.toRadians(obliquity / 2));
+        y *= y;
+        double equationOfTime = 4 * Math.toDegrees(y * sin(2 * l0)
+                - 2 * e * sin(m)
+                + 4 * e * y * sin(m) * cos(2 * l0)
+                - 0.5 * y * y * sin(4 * l0)
+                - 1.25 * e * e * sin(2 * m));
+
+        double cosHourAngle = cos(ZENITH) / (cos(latitude) * cos(declination))
+                - Math.tan(Math.toRadians(latitude)) * Math.tan(Math.toRadians(declination));
+        if (cosHourAngle < -1 || cosHourAngle > 1) {
+            return null;
+        }
+        double hourAngle = Math.toDegrees(Math.acos(cosHourAngle));
+
+        double noonMinutes = 720 - 4 * longitude - equationOfTime;
+        long midnightSeconds = utcMidnight / 1000;
+        return new long[]{
+                midnightSeconds + Math.round((noonMinutes - 4 * hourAngle) * 60),
+                midnightSeconds + Math.round((noonMinutes + 4 * hourAngle) * 60)};
+    }
+
+    private static double sin(double degrees) {
+        return Math.sin(Math.toRadians(degrees));
+    }
+
+    private static double cos(double degrees) {
+        return Math.cos(Math.toRadians(degrees));
+    }
+
+    private static double mod360(double degrees) {
+        double d = degrees % 360;
+        return d < 0 ? d + 360 : d;
+    }
+}
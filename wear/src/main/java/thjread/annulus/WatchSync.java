@@ -0,0 +1,387 @@
+package thjread.annulus;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The watch's side of syncing with the phone: when to ask for weather and calendar data,
+ * the requests themselves, and applying the replies. Holds the latest data for drawing.
+ *
+ * Talks to the phone through a {@link SyncTransport} and tells the time with a
+ * {@link Clock}, so that it runs the same against a simulated phone as on a device.
+ */
+class WatchSync {
+    private static final String TAG = "thjread.annulus";
+
+    /**
+     * Calendar changes far less often than the forecast, and the phone sends days of it at
+     * a time (see {@link CalendarHorizon}), so it rides along with a weather poll every
+     * CALENDAR_UPDATE_INTERVAL and is only polled on its own every CALENDAR_ALONE_INTERVAL.
+     * Either is almost always answered as not modified.
+     */
+    static final long CALENDAR_UPDATE_INTERVAL = DateUtils.MINUTE_IN_MILLIS * 15;
+    static final long CALENDAR_ALONE_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+
+    interface Listener {
+        void onRequestSent(long requestId);
+
+        void onRequestFailed(long requestId);
+
+        void onReply(long requestId);
+
+        /**
+         * Called when a reply has brought new weather or calendar data.
+         */
+        void onDataChanged();
+    }
+
+    private final SyncTransport mTransport;
+    private final Clock mClock;
+    private final SyncStats mStats;
+    private final EnergyLedger mEnergy;
+    private final Listener mListener;
+    private final PayloadCompressor mCompressor = new PayloadCompressor();
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    WeatherService.WeatherData weatherData = null;
+    CalendarHorizon calendar = null;
+    int weatherVersion = 0;
+    int calendarVersion = 0;
+    /**
+     * When the phone downloaded the forecast, by our clock, and whether it has been
+     * failing to download since (see {@link SyncProtocol#encodeMeta}).
+     */
+    long weatherFetchedAt = 0;
+    int weatherStatus = 0;
+
+    /**
+     * Send time (elapsed realtime) of recent sync requests, by correlation id.
+     */
+    private final Map<Long, Long> mPendingRequests = new HashMap<>();
+    private long mNextRequestId = new java.util.Random().nextLong();
+    private long mRenderRequestId = 0;
+    private long mLastStatsUpload = 0;
+    private long lastBackgroundUpdate = 0;
+    private long lastCalendarUpdate = 0;
+
+    WatchSync(SyncTransport transport, Clock clock, SyncStats stats, EnergyLedger energy, Listener listener) {
+        mTransport = transport;
+        mClock = clock;
+        mStats = stats;
+        mEnergy = energy;
+        mListener = listener;
+    }
+
+    void restore(SnapshotStore.Snapshot snapshot) {
+        weatherData = snapshot.weatherData;
+        calendar = snapshot.calendar;
+        weatherVersion = snapshot.weatherVersion;
+        calendarVersion = snapshot.calendarVersion;
+    }
+
+    /**
+     * Asks for whatever is due. Polls faster while rain is imminent (rapid), and in ambient
+     * mode only in the first few minutes of every twenty (or five), to batch with other
+     * wakeups.
+     */
+    void check(boolean ambient, boolean rapid) {
+        mCalendar.setTimeInMillis(mClock.currentTimeMillis());
+
+        boolean weatherDue = false;
+        if (!rapid && weatherData != null) {
+            if (ambient) {
+                if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS * 10
+                        && mCalendar.get(Calendar.MINUTE) % 20 < 4) {
+                    weatherDue = true;
+                }
+            } else {
+                if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS * 5) {
+                    weatherDue = true;
+                }
+            }
+        } else {
+            if (ambient && weatherData != null){
+                if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS*3
+                        && mCalendar.get(Calendar.MINUTE) % 5 <= 1) {
+                    weatherDue = true;
+                }
+            } else {
+                if (mCalendar.getTimeInMillis() - lastBackgroundUpdate >= DateUtils.MINUTE_IN_MILLIS) {
+                    weatherDue = true;
+                }
+            }
+        }
+
+        long sinceCalendar = mCalendar.getTimeInMillis() - lastCalendarUpdate;
+        boolean calendarDue;
+        if (calendar == null) {
+            calendarDue = sinceCalendar >= DateUtils.MINUTE_IN_MILLIS;
+        } else if (weatherDue) {
+            calendarDue = sinceCalendar >= CALENDAR_UPDATE_INTERVAL;
+        } else {
+            calendarDue = sinceCalendar >= CALENDAR_ALONE_INTERVAL;
+        }
+
+        int sections = (weatherDue ? SyncProtocol.SECTION_WEATHER : 0)
+                | (calendarDue ? SyncProtocol.SECTION_CALENDAR : 0);
+        if (sections != 0) {
+            request(sections);
+        }
+    }
+
+    /**
+     * Asks for everything, whether it is due or not.
+     */
+    void request() {
+        request(SyncProtocol.SECTION_WEATHER | SyncProtocol.SECTION_CALENDAR);
+    }
+
+    void request(int sections) {
+        long currentTime = mClock.currentTimeMillis();
+        if ((sections & SyncProtocol.SECTION_WEATHER) != 0) {
+            lastBackgroundUpdate = currentTime;
+        }
+        if ((sections & SyncProtocol.SECTION_CALENDAR) != 0) {
+            lastCalendarUpdate = currentTime;
+        }
+
+        final SyncProtocol.Request request = new SyncProtocol.Request();
+        request.requestId = mNextRequestId++;
+        request.sections = sections;
+        request.weatherVersion = weatherData != null ? weatherVersion : 0;
+        request.calendarVersion = calendar != null ? calendarVersion : 0;
+
+        Log.d(TAG, "Background update");
+
+        long now = mClock.elapsedRealtime();
+        Iterator<Long> it = mPendingRequests.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() > DateUtils.HOUR_IN_MILLIS) {
+                it.remove();
+            }
+        }
+
+        SyncTransport.Callback callback = new SyncTransport.Callback() {
+            @Override
+            public void onResult(boolean success) {
+                if (!success) {
+                    mStats.event("request.send_failed", request.requestId);
+                    mListener.onRequestFailed(request.requestId);
+                }
+            }
+        };
+
+        byte[] message = SyncProtocol.encodeRequest(request);
+        if (!mTransport.send(null, SyncProtocol.SYNC_PATH, message, callback)) {
+            mStats.event("request.not_connected", request.requestId);
+            return;
+        }
+        mEnergy.message("sync", message.length, currentTime);
+        mPendingRequests.put(request.requestId, now);
+        mStats.event("request.sent", request.requestId);
+        mListener.onRequestSent(request.requestId);
+
+        if (currentTime - mLastStatsUpload >= DateUtils.HOUR_IN_MILLIS) {
+            mLastStatsUpload = currentTime;
+            byte[] summary = (mStats.summary() + mEnergy.summary()).getBytes(Charset.forName("UTF-8"));
+            SyncTransport.Callback statsCallback = new SyncTransport.Callback() {
+                @Override
+                public void onResult(boolean success) {
+                    // says nothing about whether the node will answer the sync request
+                    if (!success) {
+                        mStats.count("stats.send_failed");
+                    }
+                }
+            };
+            if (mTransport.send(null, SyncProtocol.STATS_PATH, summary, statsCallback)) {
+                mEnergy.message("stats", summary.length, currentTime);
+            }
+        }
+    }
+
+    /**
+     * Called when a frame has been drawn, to time how long a reply took to show.
+     */
+    void onRendered() {
+        if (mRenderRequestId != 0) {
+            Long sent = mPendingRequests.get(mRenderRequestId);
+            if (sent != null) {
+                mStats.record("sync.render_ms", mRenderRequestId, mClock.elapsedRealtime() - sent);
+            }
+            mRenderRequestId = 0;
+        }
+    }
+
+    /**
+     * A reply sent as a single message.
+     */
+    void onMessage(byte[] message) {
+        SyncProtocol.Envelope envelope;
+        try {
+            envelope = SyncProtocol.decodeEnvelope(message);
+        } catch (IOException e) {
+            Log.e(TAG, "Sync message malformed");
+            mStats.count("reply.malformed");
+            return;
+        }
+        Reply reply = new Reply(false);
+        for (SyncProtocol.Section section : envelope.sections) {
+            reply.read(envelope.requestId, section, section.body.length,
+                    new ByteArrayInputStream(section.body));
+        }
+        apply(reply);
+    }
+
+    /**
+     * Decodes a reply streamed over a channel as it arrives. Can be called on any thread;
+     * the result is to be passed to {@link #apply} on the main thread. Returns null if
+     * nothing could be read.
+     */
+    Reply read(InputStream in) {
+        Reply reply = new Reply(true);
+        try {
+            SyncProtocol.readEnvelope(in, reply);
+            mStats.event("sync.streamed", reply.mRequestId);
+        } catch (IOException e) {
+            Log.e(TAG, "Sync stream failed");
+            mStats.count("reply.stream_failed");
+        }
+        return reply.mSections > 0 ? reply : null;
+    }
+
+    /**
+     * The sections of one reply, decoded on whichever thread reads them and then applied
+     * together on the main thread.
+     */
+    class Reply implements SyncProtocol.SectionReader {
+        final boolean mStreamed;
+        long mRequestId;
+        long mBytes = SyncProtocol.HEADER_LENGTH;
+        int mSections = 0;
+        long[] mMeta;
+        /**
+         * Whether there was a weather section, modified or not.
+         */
+        boolean mHasWeather;
+        WeatherService.WeatherData mWeather;
+        int mWeatherVersion;
+        CalendarHorizon mCalendar;
+        int mCalendarVersion;
+
+        Reply(boolean streamed) {
+            mStreamed = streamed;
+        }
+
+        @Override
+        public void read(long requestId, SyncProtocol.Section section, int length, InputStream body) {
+            mRequestId = requestId;
+            mBytes += SyncProtocol.SECTION_HEADER_LENGTH + length;
+            mSections++;
+            if (section.type == SyncProtocol.SECTION_META) {
+                try {
+                    byte[] meta = new byte[length];
+                    new DataInputStream(body).readFully(meta);
+                    mMeta = SyncProtocol.decodeMeta(meta);
+                } catch (IOException e) {
+                    mStats.event("meta.decode_failed", requestId);
+                }
+                return;
+            }
+            String name = section.type == SyncProtocol.SECTION_WEATHER ? "weather" : "calendar";
+            if (section.type == SyncProtocol.SECTION_WEATHER) {
+                mHasWeather = true;
+            }
+            if (section.isNotModified()) {
+                mStats.event(name + ".not_modified", requestId);
+                return;
+            }
+            mStats.record(name + ".bytes", requestId, length);
+
+            try (InputStream in = open(section, body, requestId)) {
+                if (section.type == SyncProtocol.SECTION_WEATHER) {
+                    Log.d(TAG, "Weather data received");
+                    mWeather = ForecastCodec.readWeather(new DataInputStream(in));
+                    mWeatherVersion = section.version;
+                } else if (section.type == SyncProtocol.SECTION_CALENDAR) {
+                    Log.d(TAG, "Calendar data received");
+                    mCalendar = CalendarHorizon.read(new DataInputStream(in));
+                    mCalendarVersion = section.version;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, name + " data conversion from bytes failed");
+                mStats.event(name + ".decode_failed", requestId);
+            }
+        }
+
+        /**
+         * A section's body, inflated if need be. A message's body is inflated in one go into
+         * the shared buffer; a streamed one as it is read.
+         */
+        private InputStream open(SyncProtocol.Section section, InputStream body, long requestId)
+                throws IOException {
+            if (!section.isCompressed()) {
+                return body;
+            }
+            if (mStreamed) {
+                return PayloadCompressor.inflating(body);
+            }
+            long start = System.nanoTime();
+            ByteArrayInputStream in = mCompressor.inflate(section.body);
+            mStats.record("sync.inflate_us", requestId, (System.nanoTime() - start) / 1000);
+            return in;
+        }
+    }
+
+    void apply(Reply reply) {
+        long requestId = reply.mRequestId;
+        mStats.record("sync.bytes", requestId, reply.mBytes);
+        mEnergy.message("sync", reply.mBytes, mClock.currentTimeMillis());
+
+        if (reply.mMeta != null) {
+            long[] meta = reply.mMeta;
+            // the phone's fetch time describes the forecast we hold only if the reply was about it
+            if (meta[1] != 0 && reply.mHasWeather) {
+                mStats.record("weather.age_ms", requestId, meta[0] - meta[1]);
+                weatherFetchedAt = mClock.currentTimeMillis() - (meta[0] - meta[1]);
+            }
+            if (meta[2] != 0 && weatherStatus == 0) {
+                mStats.event("weather.phone_failing", requestId);
+            }
+            weatherStatus = (int) meta[2];
+        }
+        boolean changed = false;
+        if (reply.mWeather != null) {
+            weatherData = reply.mWeather;
+            weatherVersion = reply.mWeatherVersion;
+            changed = true;
+        }
+        if (reply.mCalendar != null) {
+            calendar = reply.mCalendar;
+            calendarVersion = reply.mCalendarVersion;
+            changed = true;
+        }
+
+        Long sent = mPendingRequests.get(requestId);
+        if (sent != null) {
+            mStats.record("sync.rtt_ms", requestId, mClock.elapsedRealtime() - sent);
+            mListener.onReply(requestId);
+            mRenderRequestId = requestId;
+        } else {
+            mStats.event("sync.unsolicited", requestId);
+        }
+
+        if (changed) {
+            mListener.onDataChanged();
+        }
+    }
+}
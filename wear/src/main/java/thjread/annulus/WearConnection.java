@@ -0,0 +1,288 @@
+package thjread.annulus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.CapabilityApi;
+import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owns the watch face's GoogleApiClient. The client is only built and connected once the
+ * first frame has been drawn, stays connected through short visibility flaps, registers its
+ * listeners once per connection and remembers the phone node between connections (and
+ * across restarts) so a request can go out as soon as the client is connected.
+ *
+ * Sync requests and their replies are reported back so that {@link NodeHealth} can switch to
+ * another phone node when the one in use gets slow or stops answering.
+ */
+class WearConnection implements SyncTransport, GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener, CapabilityApi.CapabilityListener {
+    private static final String TAG = "thjread.annulus";
+    private static final String WEATHER_CAPABILITY_NAME = "annulus_weather_data";
+    private static final String PREFS_NAME = "connection";
+    private static final String PREF_NODE_ID = "weather_node_id";
+
+    /**
+     * How long to stay connected after the face becomes invisible.
+     */
+    static final long DISCONNECT_GRACE_MS = 30 * 1000;
+
+    interface Listener {
+        /**
+         * Called on the main thread when a phone node becomes usable, either on connection
+         * or because the capability changed.
+         */
+        void onNodeAvailable(String nodeId);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final MessageApi.MessageListener mMessageListener;
+    private final ChannelApi.ChannelListener mChannelListener;
+    private final Listener mListener;
+    private final SyncStats mStats;
+    private final SharedPreferences mPrefs;
+    private final NodeHealth mHealth;
+
+    private GoogleApiClient mGoogleApiClient = null;
+    private boolean mConnected = false;
+    private boolean mListenersRegistered = false;
+    private boolean mWanted = false;
+    private String mNodeId;
+    private long mStartTime;
+
+    private final Runnable mDisconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            disconnect();
+        }
+    };
+    private final Runnable mReselectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reselect();
+        }
+    };
+
+    WearConnection(Context context, MessageApi.MessageListener messageListener,
+                   ChannelApi.ChannelListener channelListener, Listener listener, SyncStats stats) {
+        mContext = context;
+        mMessageListener = messageListener;
+        mChannelListener = channelListener;
+        mListener = listener;
+        mStats = stats;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mNodeId = mPrefs.getString(PREF_NODE_ID, null);
+        mHealth = new NodeHealth(stats);
+    }
+
+    /**
+     * Connects after the current frame, unless already started.
+     */
+    void start() {
+        if (mGoogleApiClient != null) {
+            return;
+        }
+        mStartTime = SystemClock.elapsedRealtime();
+        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(Wearable.API)
+                .build();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWanted) {
+                    connect();
+                }
+            }
+        });
+    }
+
+    void setVisible(boolean visible) {
+        mWanted = visible;
+        mHandler.removeCallbacks(mDisconnectRunnable);
+        if (visible) {
+            connect();
+        } else {
+            mHandler.postDelayed(mDisconnectRunnable, DISCONNECT_GRACE_MS);
+        }
+    }
+
+    void destroy() {
+        mHandler.removeCallbacksAndMessages(null);
+        disconnect();
+    }
+
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    String getNodeId() {
+        return mNodeId;
+    }
+
+    GoogleApiClient getClient() {
+        return mGoogleApiClient;
+    }
+
+    @Override
+    public boolean send(String nodeId, String path, byte[] data, final SyncTransport.Callback callback) {
+        if (nodeId == null) {
+            nodeId = mNodeId;
+        }
+        if (!mConnected || nodeId == null) {
+            return false;
+        }
+        Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId, path, data)
+                .setResultCallback(new ResultCallback<MessageApi.SendMessageResult>() {
+                    @Override
+                    public void onResult(@NonNull MessageApi.SendMessageResult result) {
+                        callback.onResult(result.getStatus().isSuccess());
+                    }
+                });
+        return true;
+    }
+
+    @Override
+    public boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                                  SyncTransport.Callback callback) {
+        return false;
+    }
+
+    /**
+     * A sync request has gone to the current node. A phone that accepts messages but never
+     * answers them neither replies nor fails the send, so the request is checked on again
+     * once it could have timed out.
+     */
+    void onRequestSent(long requestId) {
+        if (mNodeId != null) {
+            mHealth.onSent(mNodeId, requestId, SystemClock.elapsedRealtime());
+            mHandler.postDelayed(mReselectRunnable, NodeHealth.REPLY_TIMEOUT_MS);
+        }
+    }
+
+    void onRequestFailed(long requestId) {
+        mHealth.onFailed(requestId, SystemClock.elapsedRealtime());
+        reselect();
+    }
+
+    void onReply(long requestId) {
+        mHealth.onReply(requestId, SystemClock.elapsedRealtime());
+        reselect();
+    }
+
+    private void reselect() {
+        String nodeId = mHealth.choose(mNodeId, SystemClock.elapsedRealtime());
+        if (nodeId == null || nodeId.equals(mNodeId)) {
+            return;
+        }
+        if (mNodeId != null) {
+            mStats.event("node.switched", 0);
+        }
+        Log.d(TAG, "Weather node changed");
+        mNodeId = nodeId;
+        mPrefs.edit().putString(PREF_NODE_ID, nodeId).apply();
+        mListener.onNodeAvailable(nodeId);
+    }
+
+    private void connect() {
+        if (mGoogleApiClient == null || mGoogleApiClient.isConnected()
+                || mGoogleApiClient.isConnecting()) {
+            return;
+        }
+        mStats.count("connection.connect");
+        mGoogleApiClient.connect();
+    }
+
+    private void disconnect() {
+        if (mGoogleApiClient == null) {
+            return;
+        }
+        if (mListenersRegistered && mGoogleApiClient.isConnected()) {
+            Wearable.MessageApi.removeListener(mGoogleApiClient, mMessageListener);
+            Wearable.ChannelApi.removeListener(mGoogleApiClient, mChannelListener);
+            Wearable.CapabilityApi.removeCapabilityListener(mGoogleApiClient, this,
+                    WEATHER_CAPABILITY_NAME);
+        }
+        mListenersRegistered = false;
+        if (mGoogleApiClient.isConnected() || mGoogleApiClient.isConnecting()) {
+            mStats.count("connection.disconnect");
+            mGoogleApiClient.disconnect();
+        }
+        mConnected = false;
+    }
+
+    @Override
+    public void onConnected(Bundle connectionHint) {
+        mConnected = true;
+        if (mStartTime != 0) {
+            mStats.record("startup.connect_ms", 0, SystemClock.elapsedRealtime() - mStartTime);
+            mStartTime = 0;
+        }
+
+        if (!mListenersRegistered) {
+            mListenersRegistered = true;
+            Wearable.MessageApi.addListener(mGoogleApiClient, mMessageListener);
+            Wearable.ChannelApi.addListener(mGoogleApiClient, mChannelListener);
+            Wearable.CapabilityApi.addCapabilityListener(mGoogleApiClient, this,
+                    WEATHER_CAPABILITY_NAME);
+        }
+
+        if (mNodeId != null) {
+            mStats.count("connection.cached_node");
+            mListener.onNodeAvailable(mNodeId);
+        }
+
+        // Refresh the cached node in the background; it only matters if the phone changed.
+        Wearable.CapabilityApi.getCapability(mGoogleApiClient, WEATHER_CAPABILITY_NAME,
+                CapabilityApi.FILTER_REACHABLE).setResultCallback(
+                new ResultCallback<CapabilityApi.GetCapabilityResult>() {
+                    @Override
+                    public void onResult(@NonNull CapabilityApi.GetCapabilityResult getCapabilityResult) {
+                        if (getCapabilityResult.getStatus().isSuccess()) {
+                            onCapabilityChanged(getCapabilityResult.getCapability());
+                        }
+                    }
+                }
+        );
+    }
+
+    @Override
+    public void onCapabilityChanged(CapabilityInfo capabilityInfo) {
+        Map<String, Boolean> nodes = new HashMap<>();
+        for (Node node : capabilityInfo.getNodes()) {
+            nodes.put(node.getId(), node.isNearby());
+        }
+        mHealth.setNodes(nodes);
+        reselect();
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        mConnected = false;
+    }
+
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult cause) {
+        mConnected = false;
+        mListenersRegistered = false;
+        mStats.count("connection.failed");
+    }
+}
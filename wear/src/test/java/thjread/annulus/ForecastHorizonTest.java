@@ -0,0 +1,97 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ForecastHorizonTest {
+    private static final long START = 1499997600 * 1000L; // on the hour
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone INDIA = TimeZone.getTimeZone("Asia/Kolkata");
+
+    private static WeatherService.Datum point(long time, double intensity, double probability) {
+        WeatherService.Datum d = new WeatherService.Datum();
+        d.time = (int) (time / 1000);
+        d.precipIntensity = intensity;
+        d.precipProbability = probability;
+        return d;
+    }
+
+    /**
+     * Dry for the next hour minute by minute, but the hourly forecast goes from 0 to 2 mm/h
+     * over the first hour, then stays there for two days.
+     */
+    private static WeatherService.WeatherData forecast() {
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.currently = point(START, 0, 0);
+        w.minutely = new WeatherService.Minutely();
+        for (int i = 0; i <= 60; ++i) {
+            w.minutely.data.add(point(START + i * MINUTE, 0, 0));
+        }
+        w.hourly = new WeatherService.Hourly();
+        w.hourly.data.add(point(START, 0, 0));
+        for (int i = 1; i <= 48; ++i) {
+            w.hourly.data.add(point(START + i * HOUR, 2, 1));
+        }
+        return w;
+    }
+
+    @Test
+    public void freshMinutelyIsUsed() {
+        float intensity[] = new float[60];
+        float probability[] = new float[60];
+        WeatherService.WeatherData w = forecast();
+        long now = START + 10 * MINUTE;
+        assertTrue(ForecastHorizon.minuteRain(w.minutely.data, w.hourly.data, ForecastHorizon.age(w, 0, now), now,
+                UTC, intensity, probability));
+        for (float f : intensity) {
+            assertEquals(0, f, 0);
+        }
+    }
+
+    @Test
+    public void staleMinutelyFallsBackToHourly() {
+        float intensity[] = new float[60];
+        float probability[] = new float[60];
+        WeatherService.WeatherData w = forecast();
+        long fetchedAt = START - ForecastHorizon.MINUTELY_FRESH_MS;
+        assertTrue(ForecastHorizon.minuteRain(w.minutely.data, w.hourly.data,
+                ForecastHorizon.age(w, fetchedAt, START), START, UTC, intensity, probability));
+        assertEquals(0, intensity[0], 1e-6);
+        assertEquals(1, intensity[30], 1e-6);
+        assertEquals(0.5, probability[30], 1e-6);
+        assertEquals(2 * 59 / 60f, intensity[59], 1e-6);
+
+        // Half past the hour there, so minute 0 is half an hour from now
+        Arrays.fill(intensity, 0);
+        assertTrue(ForecastHorizon.minuteRain(w.minutely.data, w.hourly.data,
+                ForecastHorizon.MINUTELY_FRESH_MS, START, INDIA, intensity, probability));
+        assertEquals(1, intensity[0], 1e-6);
+        assertEquals(0, intensity[30], 1e-6);
+    }
+
+    @Test
+    public void hourlyLastsUntilItRunsOut() {
+        WeatherService.WeatherData w = forecast();
+        assertFalse(ForecastHorizon.expired(w, START + 12 * HOUR));
+        assertFalse(ForecastHorizon.expired(w, START + 48 * HOUR));
+        assertTrue(ForecastHorizon.expired(w, START + 48 * HOUR + 1));
+        w.hourly = null;
+        assertTrue(ForecastHorizon.expired(w, START));
+    }
+
+    @Test
+    public void staleForecastsFade() {
+        WeatherService.WeatherData w = forecast();
+        assertEquals(ForecastHorizon.STALE_MS, ForecastHorizon.age(w, 0, START + ForecastHorizon.STALE_MS));
+        assertEquals(HOUR, ForecastHorizon.age(w, START + HOUR, START + 2 * HOUR));
+        assertEquals(255, ForecastHorizon.alpha(ForecastHorizon.STALE_MS - 1));
+        assertEquals(ForecastHorizon.STALE_ALPHA, ForecastHorizon.alpha(ForecastHorizon.STALE_MS));
+        assertEquals(ForecastHorizon.VERY_STALE_ALPHA, ForecastHorizon.alpha(24 * HOUR));
+    }
+}
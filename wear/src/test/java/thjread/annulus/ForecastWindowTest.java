@@ -0,0 +1,94 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ForecastWindowTest {
+    private static final long START = 1499997600 * 1000L;
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static WeatherService.Datum point(long time) {
+        WeatherService.Datum d = new WeatherService.Datum();
+        d.time = (int) (time / 1000);
+        d.precipIntensity = 0.0;
+        d.precipProbability = 0.0;
+        return d;
+    }
+
+    private static WeatherService.WeatherData forecast(int minutes, int hours) {
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.minutely = new WeatherService.Minutely();
+        for (int i = 0; i < minutes; ++i) {
+            w.minutely.data.add(point(START + i * MINUTE));
+        }
+        w.hourly = new WeatherService.Hourly();
+        for (int i = 0; i < hours; ++i) {
+            w.hourly.data.add(point(START + i * HOUR));
+        }
+        return w;
+    }
+
+    @Test
+    public void dropsExpiredPoints() {
+        WeatherService.WeatherData w = forecast(61, 49);
+        ForecastWindow window = new ForecastWindow();
+        window.advance(w, START);
+        assertEquals(61, window.minutely().size());
+        assertEquals(49, window.hourly().size());
+
+        window.advance(w, START + 5 * MINUTE);
+        List<WeatherService.Datum> minutely = window.minutely();
+        assertEquals(57, minutely.size());
+        assertEquals(START + 4 * MINUTE, minutely.get(0).time * 1000L);
+        // Still held until enough have expired to be worth cutting out
+        assertEquals(61, w.minutely.data.size());
+
+        window.advance(w, START + 9 * MINUTE);
+        assertEquals(53, window.minutely().size());
+        assertEquals(53, w.minutely.data.size());
+
+        window.advance(w, START + 3 * HOUR + 30 * MINUTE);
+        assertEquals(START + 3 * HOUR, window.hourly().get(0).time * 1000L);
+        assertTrue(window.minutely().isEmpty());
+        assertTrue(w.minutely.data.isEmpty());
+    }
+
+    @Test
+    public void newForecastStartsAfresh() {
+        ForecastWindow window = new ForecastWindow();
+        window.advance(forecast(61, 49), START + 5 * MINUTE);
+        WeatherService.WeatherData w = forecast(61, 49);
+        window.advance(w, START + 5 * MINUTE);
+        assertEquals(57, window.minutely().size());
+        window.advance(null, START);
+        assertTrue(window.hourly().isEmpty());
+    }
+
+    /**
+     * A day of frames, one a second, over a forecast with a week of hourly points. Only
+     * points from an hour ago on are ever walked, however long the forecast.
+     */
+    @Test
+    public void frameWorkStaysBounded() {
+        WeatherService.WeatherData w = forecast(61, 7 * 24);
+        ForecastWindow window = new ForecastWindow();
+        int most = 0;
+        for (long now = START + HOUR; now < START + 25 * HOUR; now += 1000) {
+            window.advance(w, now);
+            int walked = 0;
+            for (WeatherService.Datum d : window.hourly()) {
+                if (d.time * 1000L - now >= 12 * HOUR) {
+                    break;
+                }
+                walked++;
+            }
+            most = Math.max(most, walked);
+        }
+        assertTrue("walked " + most + " hourly points", most <= 14);
+        assertTrue(w.hourly.data.size() <= 7 * 24 - 24 + ForecastWindow.COMPACT_AT);
+    }
+}
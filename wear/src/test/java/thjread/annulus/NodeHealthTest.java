@@ -0,0 +1,222 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NodeHealthTest {
+    private static final long MINUTE = 60 * 1000;
+
+    /**
+     * A phone node with a scripted round-trip time and chance of losing a request.
+     */
+    private static class SimNode {
+        long rtt;
+        double loss;
+        boolean sendFails;
+
+        SimNode(long rtt, double loss) {
+            this.rtt = rtt;
+            this.loss = loss;
+        }
+    }
+
+    /**
+     * Sends a request a minute to whichever node the health tracker chooses, over simulated
+     * nodes on a virtual clock. Lost requests are never answered, so time out. As in
+     * WearConnection, a node is only chosen again after a reply, a failed send or a
+     * request's {@link NodeHealth#REPLY_TIMEOUT_MS} running out.
+     */
+    private static class SimTransport {
+        final NodeHealth health = new NodeHealth(new SyncStats());
+        final Map<String, SimNode> nodes = new HashMap<>();
+        final Map<String, Boolean> nearby = new HashMap<>();
+        final Random random = new Random(42);
+        final Map<String, Integer> sent = new HashMap<>();
+        final List<Long> checks = new ArrayList<>();
+        String current = null;
+        int switches = 0;
+        long now = 0;
+        long requestId = 0;
+
+        void add(String id, boolean nearby, long rtt, double loss) {
+            nodes.put(id, new SimNode(rtt, loss));
+            this.nearby.put(id, nearby);
+            health.setNodes(this.nearby);
+            choose();
+        }
+
+        void run(int minutes) {
+            for (int i = 0; i < minutes; ++i) {
+                long start = now;
+                Iterator<Long> it = checks.iterator();
+                while (it.hasNext()) {
+                    if (it.next() <= now) {
+                        it.remove();
+                        choose();
+                    }
+                }
+                long id = ++requestId;
+                SimNode node = nodes.get(current);
+                health.onSent(current, id, now);
+                checks.add(now + NodeHealth.REPLY_TIMEOUT_MS);
+                Integer n = sent.get(current);
+                sent.put(current, n == null ? 1 : n + 1);
+                if (node.sendFails) {
+                    health.onFailed(id, now);
+                    choose();
+                } else if (random.nextDouble() >= node.loss) {
+                    // +-25% jitter
+                    now += node.rtt * (75 + random.nextInt(51)) / 100;
+                    health.onReply(id, now);
+                    choose();
+                }
+                now = start + MINUTE;
+            }
+        }
+
+        void choose() {
+            String next = health.choose(current, now);
+            if (current != null && !current.equals(next)) {
+                switches++;
+            }
+            current = next;
+        }
+
+        int sent(String id) {
+            Integer n = sent.get(id);
+            return n == null ? 0 : n;
+        }
+    }
+
+    @Test
+    public void prefersNearbyNodeBeforeMeasuring() {
+        SimTransport t = new SimTransport();
+        t.add("remote-cloud", false, 300, 0);
+        t.add("watch-phone", true, 300, 0);
+        assertEquals("watch-phone", t.current);
+    }
+
+    @Test
+    public void movesAwayFromDegradedNodeWithoutFlapping() {
+        SimTransport t = new SimTransport();
+        t.add("phone-a", true, 400, 0.02);
+        t.add("phone-b", true, 1200, 0.02);
+        t.run(60);
+        assertEquals("phone-a", t.current);
+        assertEquals(0, t.switches);
+
+        // phone-a gets slow and lossy, e.g. its Bluetooth link is congested
+        t.nodes.get("phone-a").rtt = 6000;
+        t.nodes.get("phone-a").loss = 0.3;
+        int before = t.sent("phone-a");
+        t.run(60);
+        assertEquals("phone-b", t.current);
+        assertEquals(1, t.switches);
+        assertTrue("Switched after " + (t.sent("phone-a") - before) + " requests",
+                t.sent("phone-a") - before <= 10);
+
+        // a jittery but healthy phone-b is kept
+        t.run(120);
+        assertEquals("phone-b", t.current);
+        assertEquals(1, t.switches);
+    }
+
+    /**
+     * A half-connected phone takes every request and answers none; nothing but the requests
+     * timing out says so.
+     */
+    @Test
+    public void movesAwayFromNodeThatNeverAnswers() {
+        SimTransport t = new SimTransport();
+        t.add("phone-a", true, 400, 0);
+        t.add("phone-b", true, 450, 0);
+        t.run(10);
+        String first = t.current;
+        t.nodes.get(first).loss = 1;
+        int before = t.sent(first);
+        t.run(30);
+        assertNotEquals(first, t.current);
+        assertEquals(NodeHealth.MAX_CONSECUTIVE_FAILURES, t.sent(first) - before);
+    }
+
+    @Test
+    public void movesAwayWhenSendsFail() {
+        SimTransport t = new SimTransport();
+        t.add("phone-a", true, 400, 0);
+        t.add("phone-b", true, 450, 0);
+        t.run(10);
+        String first = t.current;
+        t.nodes.get(first).sendFails = true;
+        t.run(NodeHealth.MAX_CONSECUTIVE_FAILURES);
+        assertNotEquals(first, t.current);
+    }
+
+    @Test
+    public void keepsOnlyNodeEvenWhenFailing() {
+        SimTransport t = new SimTransport();
+        t.add("phone-a", true, 400, 1);
+        t.run(10);
+        assertEquals("phone-a", t.current);
+    }
+
+    @Test
+    public void givesAbandonedNodeAnotherChance() {
+        SimTransport t = new SimTransport();
+        t.add("phone-a", true, 400, 0);
+        t.add("phone-b", false, 3000, 0);
+        t.run(5);
+        t.nodes.get("phone-a").loss = 1;
+        t.run(NodeHealth.MAX_CONSECUTIVE_FAILURES + 1);
+        assertEquals("phone-b", t.current);
+
+        // phone-a recovers, and is tried again once its failures are forgotten
+        t.nodes.get("phone-a").loss = 0;
+        t.run((int) (NodeHealth.FORGET_MS / MINUTE) + 1);
+        assertEquals("phone-a", t.current);
+    }
+
+    @Test
+    public void supersededRequestIsNotAFailure() {
+        NodeHealth health = new NodeHealth(new SyncStats());
+        Map<String, Boolean> nodes = new HashMap<>();
+        nodes.put("phone-a", true);
+        nodes.put("phone-b", true);
+        health.setNodes(nodes);
+        health.onSent("phone-a", 1, 0);
+        health.onReply(1, 300);
+
+        // the phone coalesces 2 into 3 and only answers 3
+        for (int i = 0; i < NodeHealth.MAX_CONSECUTIVE_FAILURES; ++i) {
+            long now = MINUTE * (i + 1);
+            health.onSent("phone-a", 2 * i + 2, now);
+            health.onSent("phone-a", 2 * i + 3, now + 40 * 1000);
+            health.onReply(2 * i + 3, now + 40 * 1000 + 300);
+            health.expire(now + NodeHealth.REPLY_TIMEOUT_MS);
+        }
+        assertEquals(300, health.score("phone-a"), 1);
+        assertEquals("phone-a", health.choose("phone-a", 5 * MINUTE));
+    }
+
+    @Test
+    public void supersededRequestsStillTimeOut() {
+        NodeHealth health = new NodeHealth(new SyncStats());
+        Map<String, Boolean> nodes = new HashMap<>();
+        nodes.put("phone-a", true);
+        health.setNodes(nodes);
+        double before = health.score("phone-a");
+        // a request every 40s to a node that never answers
+        for (long now = 0; now < NodeHealth.REPLY_TIMEOUT_MS * 3; now += 40 * 1000) {
+            health.expire(now);
+            health.onSent("phone-a", now, now);
+        }
+        assertTrue(health.score("phone-a") > before);
+    }
+}
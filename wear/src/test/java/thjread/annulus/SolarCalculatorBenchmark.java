@@ -0,0 +1,50 @@
+package thjread.annulus;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Measures {@link SolarCalculator#times}: a cache miss, which works out two days' sunrise and
+ * sunset, and the cache hit every other frame of the day gets. Not run as part of the unit
+ * tests; run main for the figures.
+ */
+class SolarCalculatorBenchmark {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) {
+        long[] costs = costs();
+        System.out.println(String.format(Locale.US, "solar: miss %dns, hit %dns", costs[0], costs[1]));
+    }
+
+    /**
+     * Median nanoseconds a call over batches of calls, for a miss and for a hit.
+     */
+    static long[] costs() {
+        SolarCalculator sun = new SolarCalculator();
+        TimeZone zone = TimeZone.getTimeZone("Europe/London");
+        long start = 1483272000000L; // 2017-01-01 12:00 UTC
+        long miss[] = new long[21];
+        long hit[] = new long[21];
+        for (int batch = -5; batch < miss.length; ++batch) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                sun.times(51.5, -0.1, start + i * DAY_MILLIS, zone);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                sun.times(51.5, -0.1, start + i, zone);
+            }
+            long t2 = System.nanoTime();
+            // the first batches only warm up
+            if (batch >= 0) {
+                miss[batch] = (t1 - t0) / ITERATIONS;
+                hit[batch] = (t2 - t1) / ITERATIONS;
+            }
+        }
+        Arrays.sort(miss);
+        Arrays.sort(hit);
+        return new long[]{miss[miss.length / 2], hit[hit.length / 2]};
+    }
+}
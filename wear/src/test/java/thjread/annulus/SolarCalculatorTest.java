@@ -0,0 +1,83 @@
+package thjread.annulus;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class SolarCalculatorTest {
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(year, month - 1, day, hour, minute);
+        return c.getTimeInMillis() / 1000;
+    }
+
+    private static long midnight(int year, int month, int day) {
+        return utc(year, month, day, 0, 0) * 1000;
+    }
+
+    /**
+     * Tables round to the minute, and the places they use differ a little from ours.
+     */
+    private static void assertNear(String message, long expected, long actual) {
+        assertTrue(message + ": " + (actual - expected) + "s out", Math.abs(actual - expected) <= 90);
+    }
+
+    private static void check(String place, double lat, double lon, long midnight,
+                              long sunrise, long sunset) {
+        long times[] = SolarCalculator.sunriseSunset(lat, lon, midnight);
+        assertNotNull(place, times);
+        assertNear(place + " sunrise", sunrise, times[0]);
+        assertNear(place + " sunset", sunset, times[1]);
+    }
+
+    /**
+     * Against published sunrise and sunset tables, which are given to the minute.
+     */
+    @Test
+    public void matchesTables() throws Exception {
+        check("London midsummer", 51.5074, -0.1278, midnight(2017, 6, 21),
+                utc(2017, 6, 21, 3, 43), utc(2017, 6, 21, 20, 21));
+        check("London midwinter", 51.5074, -0.1278, midnight(2017, 12, 21),
+                utc(2017, 12, 21, 8, 4), utc(2017, 12, 21, 15, 53));
+        check("New York midsummer", 40.7128, -74.0060, midnight(2017, 6, 21),
+                utc(2017, 6, 21, 9, 25), utc(2017, 6, 22, 0, 31));
+        check("Sydney midwinter", -33.8688, 151.2093, midnight(2017, 6, 21),
+                utc(2017, 6, 20, 21, 0), utc(2017, 6, 21, 6, 53));
+    }
+
+    @Test
+    public void polarDayAndNightHaveNoTimes() throws Exception {
+        assertNull(SolarCalculator.sunriseSunset(69.6492, 18.9553, midnight(2017, 6, 21)));
+        assertNull(SolarCalculator.sunriseSunset(69.6492, 18.9553, midnight(2017, 12, 21)));
+        assertNull(new SolarCalculator().times(69.6492, 18.9553, midnight(2017, 6, 21),
+                TimeZone.getTimeZone("Europe/Oslo")));
+    }
+
+    @Test
+    public void timesFollowTheLocalDate() throws Exception {
+        SolarCalculator sun = new SolarCalculator();
+        TimeZone london = TimeZone.getTimeZone("Europe/London");
+        // 00:30 BST on the 21st is still the 20th in UTC
+        long times[] = sun.times(51.5074, -0.1278, utc(2017, 6, 20, 23, 30) * 1000, london);
+        assertNear("today", utc(2017, 6, 21, 3, 43), times[0]);
+        assertNear("tomorrow", utc(2017, 6, 22, 3, 43), times[2]);
+        assertTrue(times[0] < times[1] && times[1] < times[2] && times[2] < times[3]);
+        assertSame(times, sun.times(51.5074, -0.1278, utc(2017, 6, 21, 12, 0) * 1000, london));
+        assertNotSame(times, sun.times(51.5074, -0.1278, utc(2017, 6, 21, 23, 30) * 1000, london));
+    }
+
+    /**
+     * The per-frame cache hit is much cheaper than working the times out. Compares medians
+     * with a wide margin, as the difference is tens of times; see SolarCalculatorBenchmark for
+     * the figures.
+     */
+    @Test
+    public void cacheHitIsCheap() {
+        long[] costs = SolarCalculatorBenchmark.costs();
+        assertTrue("miss " + costs[0] + "ns, hit " + costs[1] + "ns", costs[1] < costs[0] / 4);
+    }
+}
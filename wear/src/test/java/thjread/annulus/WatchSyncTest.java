@@ -0,0 +1,114 @@
+package thjread.annulus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WatchSyncTest {
+    private static final long NOW = 1499990400 * 1000L;
+    private static final long MINUTE = 60 * 1000;
+
+    private final List<SyncProtocol.Request> mSent = new ArrayList<>();
+    private long mNow = NOW;
+    private WatchSync mSync;
+
+    @Before
+    public void setUp() {
+        SyncTransport transport = new SyncTransport() {
+            @Override
+            public boolean send(String nodeId, String path, byte[] data, Callback callback) {
+                if (path.equals(SyncProtocol.SYNC_PATH)) {
+                    mSent.add(SyncProtocol.decodeRequest(data));
+                }
+                return true;
+            }
+
+            @Override
+            public boolean streamEnvelope(String nodeId, long requestId, List<SyncProtocol.Section> sections,
+                                          Callback callback) {
+                return false;
+            }
+        };
+        Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+
+            @Override
+            public long elapsedRealtime() {
+                return mNow - NOW;
+            }
+        };
+        mSync = new WatchSync(transport, clock, new SyncStats(), new EnergyLedger(EnergyLedger.WATCH_CPU_MA),
+                new WatchSync.Listener() {
+                    @Override
+                    public void onRequestSent(long requestId) {
+                    }
+
+                    @Override
+                    public void onRequestFailed(long requestId) {
+                    }
+
+                    @Override
+                    public void onReply(long requestId) {
+                    }
+
+                    @Override
+                    public void onDataChanged() {
+                    }
+                });
+    }
+
+    private static WeatherService.WeatherData forecast() {
+        WeatherService.WeatherData w = new WeatherService.WeatherData();
+        w.latitude = 51.5;
+        w.longitude = -0.12;
+        w.currently = new WeatherService.Datum();
+        w.currently.time = (int) (NOW / 1000);
+        w.hourly = new WeatherService.Hourly();
+        for (int i = 0; i <= 48; ++i) {
+            WeatherService.Datum d = new WeatherService.Datum();
+            d.time = w.currently.time + i * 3600;
+            w.hourly.data.add(d);
+        }
+        return w;
+    }
+
+    private void reply(long phoneFetchedAt, SyncProtocol.Section... sections) {
+        List<SyncProtocol.Section> list = new ArrayList<>();
+        for (SyncProtocol.Section s : sections) {
+            list.add(s);
+        }
+        list.add(SyncProtocol.Section.of(SyncProtocol.SECTION_META,
+                SyncProtocol.encodeMeta(mNow, phoneFetchedAt, 0)));
+        mSync.onMessage(SyncProtocol.encodeEnvelope(mSent.get(mSent.size() - 1).requestId, list));
+    }
+
+    @Test
+    public void onlyWeatherRepliesDateTheForecast() {
+        mSync.request();
+        SyncProtocol.Section weather = SyncProtocol.Section.of(SyncProtocol.SECTION_WEATHER,
+                ForecastCodec.encodeWeather(forecast()));
+        reply(NOW, weather);
+        assertEquals(NOW, mSync.weatherFetchedAt);
+
+        // a calendar poll while the phone has a newer forecast the watch hasn't got
+        mNow += 30 * MINUTE;
+        mSync.request(SyncProtocol.SECTION_CALENDAR);
+        reply(mNow - MINUTE, SyncProtocol.Section.of(SyncProtocol.SECTION_CALENDAR,
+                CalendarHorizon.encode(new CalendarHorizon(NOW, NOW + CalendarHorizon.AHEAD_MS,
+                        new ArrayList<CalendarData>()))));
+        assertEquals(NOW, mSync.weatherFetchedAt);
+
+        // not modified still says the forecast held is the phone's latest
+        mNow += MINUTE;
+        mSync.request(SyncProtocol.SECTION_WEATHER);
+        reply(mNow - MINUTE, weather.notModified());
+        assertEquals(mNow - MINUTE, mSync.weatherFetchedAt);
+    }
+}